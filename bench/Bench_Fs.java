@@ -0,0 +1,172 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+
+
+// jmh.Fs over a File_System, the disk every benchmark runs on
+public class Bench_Fs implements jmh.Fs{
+    // disk for every benchmark, 8 MiB, 1/16 of it for snapshots
+    static final Disk_Geometry GEO = new Disk_Geometry(16384, 512, 1024, 4096).withSnapshots(1024);
+
+    private File_System fs;
+    private Async_File_System async;
+    private File dir;
+
+    private final OutputStream devNull = new OutputStream(){
+        public void write(int b){
+        }
+        public void write(byte[] b, int off, int len){
+        }
+    };
+
+    public void setup(String device, String journal, String dirFormat, double frag, int files){
+        try{
+            dir = Files.createTempDirectory("fs_bench").toFile();
+            Disk_Geometry geo = dirFormat.equals("btree") ? GEO.withFlags(GEO.flags | Disk_Geometry.FLAG_BTREE) : GEO;
+            if (device.equals("mapped")){
+                fs = File_System.mapImage(new File(dir, "disk.img").getPath(), geo);
+            }
+            else{
+                fs = new File_System(device.equals("direct") ? new Direct_Device(geo.numBlocks, geo.blockSize)
+                        : new Heap_Device(geo.numBlocks, geo.blockSize), geo);
+            }
+        } catch (IOException e){
+            throw new IllegalStateException(e);
+        }
+        if (journal.equals("on")){
+            fs.setJournal(true);
+            fs.saveDisk(new File(dir, "journal.img").getPath());
+        }
+        fragment(frag);
+        for (int i = 0; i < files; i++){
+            fs.create(jmh.Fs.name(i));
+        }
+    }
+
+    // interleave two files a block at a time over part of the disk, then
+    // destroy one, every other block is left free
+    private void fragment(double share){
+        int blocks = (int)(GEO.numBlocks * share / 2);
+        if (blocks == 0){
+            return;
+        }
+        fs.create("#fa");
+        fs.create("#fb");
+        int a = fs.open("#fa");
+        int b = fs.open("#fb");
+        byte[] blk = new byte[GEO.blockSize];
+        for (int i = 0; i < blocks; i++){
+            fs.write(a, blk, blk.length);
+            fs.write(b, blk, blk.length);
+        }
+        fs.close(a);
+        fs.close(b);
+        fs.destroy("#fb");
+    }
+
+    public void teardown() throws IOException{
+        if (async != null){
+            async.close();
+        }
+        fs.closeDisk();
+        File[] fl = dir.listFiles();
+        for (int i = 0; fl != null && i < fl.length; i++){
+            fl[i].delete();
+        }
+        dir.delete();
+    }
+
+    public File dir(){
+        return dir;
+    }
+
+    public int blockSize(){
+        return GEO.blockSize;
+    }
+
+    public int oftSize(){
+        return GEO.oftSize;
+    }
+
+    public int bigFile(String name){
+        fs.create(name);
+        int h = fs.open(name);
+        byte[] blk = new byte[64 * 1024];
+        for (int i = 0; i < FILE_LEN; i += blk.length){
+            fs.write(h, blk, blk.length);
+        }
+        fs.lseek(h, 0);
+        return h;
+    }
+
+    public boolean create(String name){
+        return fs.create(name);
+    }
+
+    public boolean destroy(String name){
+        return fs.destroy(name);
+    }
+
+    public int open(String name){
+        return fs.open(name);
+    }
+
+    public boolean close(int h){
+        return fs.close(h);
+    }
+
+    public boolean lseek(int h, int pos){
+        return fs.lseek(h, pos);
+    }
+
+    public int read(int h, byte[] b, int n){
+        return fs.read(h, b, n);
+    }
+
+    public int write(int h, byte[] b, int n){
+        return fs.write(h, b, n);
+    }
+
+    public boolean punchHole(int h, int pos, int n){
+        return fs.punchHole(h, pos, n);
+    }
+
+    public CompletableFuture<Integer> readAsync(int h, byte[] b, int n){
+        if (async == null){
+            async = new Async_File_System(fs);
+        }
+        return async.readAsync(h, b, 0, n);
+    }
+
+    public String directory(){
+        return fs.directory();
+    }
+
+    public int defragment(){
+        return fs.defragment();
+    }
+
+    public boolean snapshot(String name){
+        return fs.snapshot(name);
+    }
+
+    public boolean deleteSnapshot(String name){
+        return fs.deleteSnapshot(name);
+    }
+
+    public boolean saveDisk(String fname){
+        return fs.saveDisk(fname);
+    }
+
+    public boolean loadDisk(String fname){
+        return fs.loadDisk(fname);
+    }
+
+    public void replay(byte[] script) throws IOException{
+        Batch_Shell sh = new Batch_Shell(new File_System(), devNull, null);
+        sh.run(new ByteArrayInputStream(script));
+    }
+}
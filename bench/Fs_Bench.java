@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+
+
+// runs the JMH benchmarks of every File_System operation, jmh/Fs_*.java,
+// and compares them with an earlier run
+//
+// usage: Fs_Bench [-b baseline.csv] [-bt percent] [JMH options] [benchmark ...]
+//   JMH options as for org.openjdk.jmh.Main, -h lists them, for example
+//   -p size=64,4096     run with every listed value of a parameter
+//   -rf csv -rff x.csv  save the results
+//   -b compares with an earlier -rf csv file and exits 1 when a benchmark
+//      got slower by more than -bt percent (default 10), -r is JMH's
+//      measurement time
+public class Fs_Bench{
+    public static void main(String[] args) throws IOException, RunnerException{
+        String baseline = null;
+        double regression = 10;
+        List<String> jmh = new ArrayList<String>();
+        for (int a = 0; a < args.length; a++){
+            if (args[a].equals("-b"))
+                baseline = args[++a];
+            else if (args[a].equals("-bt"))
+                regression = Double.parseDouble(args[++a]);
+            else
+                jmh.add(args[a]);
+        }
+
+        CommandLineOptions opts;
+        try{
+            opts = new CommandLineOptions(jmh.toArray(new String[0]));
+        } catch (CommandLineOptionException e){
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        if (opts.shouldHelp()){
+            opts.showHelp();
+            return;
+        }
+        Collection<RunResult> results = new Runner(opts).run();
+        if (baseline == null){
+            return;
+        }
+
+        Map<String, Double> before = readCsv(baseline);
+        boolean slower = false;
+        for (RunResult r : results){
+            String key = key(r.getParams());
+            Double b = before.get(key);
+            double now = r.getPrimaryResult().getScore();
+            if (b == null){
+                continue;
+            }
+            // throughput is better higher, the other modes are times
+            double change = r.getParams().getMode().shortLabel().equals("thrpt") ? b / now - 1 : now / b - 1;
+            if (change * 100 > regression){
+                System.out.printf("%s slower than the baseline %.3f by %.0f%%%n", key, b, change * 100);
+                slower = true;
+            }
+        }
+        if (slower){
+            System.exit(1);
+        }
+    }
+
+    // benchmark, mode and parameters, in the same order however they came
+    static String key(BenchmarkParams p){
+        TreeMap<String, String> ps = new TreeMap<String, String>();
+        for (String k : p.getParamsKeys()){
+            ps.put(k, p.getParam(k));
+        }
+        return p.getBenchmark() + " " + p.getMode().shortLabel() + " " + ps;
+    }
+
+    // scores of a JMH csv result file by key
+    static Map<String, Double> readCsv(String fname) throws IOException{
+        Map<String, Double> m = new TreeMap<String, Double>();
+        List<String> lines = Files.readAllLines(Paths.get(fname));
+        if (lines.isEmpty()){
+            return m;
+        }
+        String[] head = fields(lines.get(0));
+        for (String line : lines.subList(1, lines.size())){
+            String[] f = fields(line);
+            if (f.length != head.length){
+                continue;
+            }
+            TreeMap<String, String> ps = new TreeMap<String, String>();
+            String bench = null;
+            String mode = null;
+            double score = Double.NaN;
+            for (int i = 0; i < f.length; i++){
+                if (head[i].equals("Benchmark"))
+                    bench = f[i];
+                else if (head[i].equals("Mode"))
+                    mode = f[i];
+                else if (head[i].equals("Score"))
+                    score = Double.parseDouble(f[i]);
+                else if (head[i].startsWith("Param: ") && !f[i].isEmpty())
+                    ps.put(head[i].substring(7), f[i]);
+            }
+            m.put(bench + " " + mode + " " + ps, score);
+        }
+        return m;
+    }
+
+    // the fields of a csv line, quotes taken off
+    static String[] fields(String line){
+        List<String> f = new ArrayList<String>();
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++){
+            char c = line.charAt(i);
+            if (c == '"')
+                quoted = !quoted;
+            else if (c == ',' && !quoted){
+                f.add(sb.toString());
+                sb.setLength(0);
+            }
+            else
+                sb.append(c);
+        }
+        f.add(sb.toString());
+        return f.toArray(new String[0]);
+    }
+}
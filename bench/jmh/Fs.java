@@ -0,0 +1,85 @@
+package jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+
+// the File_System calls the benchmarks make
+//
+// JMH wants benchmarks in a package and code in a package cannot name the
+// classes of the default package, so Bench_Fs implements this over a
+// File_System and open loads it by name
+public interface Fs{
+    int FILE_LEN = 2 << 20;     // bytes in the file of the read, write and seek benchmarks
+
+    // a disk for one trial:
+    //   device  heap, direct or mapped
+    //   journal on or off
+    //   dir     flat or btree directory
+    //   frag    share of the disk left as one-block holes
+    //   files   directory entries created up front, named name(0..files)
+    static Fs open(String device, String journal, String dir, double frag, int files){
+        try{
+            Fs fs = (Fs)Class.forName("Bench_Fs").getDeclaredConstructor().newInstance();
+            fs.setup(device, journal, dir, frag, files);
+            return fs;
+        } catch (ReflectiveOperationException e){
+            throw new IllegalStateException("Bench_Fs not on the class path", e);
+        }
+    }
+
+    // names up to 4 chars, one per number
+    static String name(int i){
+        return Integer.toString(i, 36);
+    }
+
+    void setup(String device, String journal, String dir, double frag, int files);
+
+    // close the disk and delete the scratch directory
+    void teardown() throws IOException;
+
+    // scratch directory of this disk, for images
+    File dir();
+
+    int blockSize();
+
+    int oftSize();
+
+    // create a file of FILE_LEN bytes and open it at 0, return the handle
+    int bigFile(String name);
+
+    boolean create(String name);
+
+    boolean destroy(String name);
+
+    int open(String name);
+
+    boolean close(int h);
+
+    boolean lseek(int h, int pos);
+
+    int read(int h, byte[] b, int n);
+
+    int write(int h, byte[] b, int n);
+
+    boolean punchHole(int h, int pos, int n);
+
+    // through an Async_File_System on this disk, made on first use
+    CompletableFuture<Integer> readAsync(int h, byte[] b, int n);
+
+    String directory();
+
+    int defragment();
+
+    boolean snapshot(String name);
+
+    boolean deleteSnapshot(String name);
+
+    boolean saveDisk(String fname);
+
+    boolean loadDisk(String fname);
+
+    // run a shell script in batch mode on a new default disk, output dropped
+    void replay(byte[] script) throws IOException;
+}
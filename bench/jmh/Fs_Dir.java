@@ -0,0 +1,55 @@
+package jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// listing a directory of files names
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class Fs_Dir{
+    @Param({"10", "100", "1000"})
+    public int files;
+    @Param("0")
+    public double frag;
+    @Param("heap")
+    public String device;
+    @Param("off")
+    public String journal;
+    @Param("flat")
+    public String dir;
+
+    Fs fs;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        fs = Fs.open(device, journal, dir, frag, files);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException{
+        fs.teardown();
+    }
+
+    @Benchmark
+    public String directory(){
+        return fs.directory();
+    }
+}
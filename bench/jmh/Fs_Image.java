@@ -0,0 +1,78 @@
+package jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// saving and loading a disk of files names as an image, raw or packed
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class Fs_Image{
+    @Param("raw")
+    public String image;
+    @Param("100")
+    public int files;
+    @Param("0")
+    public double frag;
+    @Param("heap")
+    public String device;
+    @Param("off")
+    public String journal;
+    @Param("flat")
+    public String dir;
+
+    Fs fs;
+    String img;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        fs = Fs.open(device, journal, dir, frag, files);
+        img = new File(fs.dir(), image.equals("packed") ? "save.fsz" : "save.img").getPath();
+        fs.saveDisk(img);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException{
+        fs.teardown();
+    }
+
+    // one file changed since the last save, a raw image is written in place
+    @State(Scope.Thread)
+    public static class Changed{
+        byte[] one = new byte[1];
+
+        @Setup(Level.Invocation)
+        public void change(Fs_Image b){
+            int h = b.fs.open(Fs.name(0));
+            b.fs.write(h, one, 1);
+        }
+    }
+
+    @Benchmark
+    public boolean saveDisk(Changed c){
+        return fs.saveDisk(img);
+    }
+
+    @Benchmark
+    public boolean loadDisk(){
+        return fs.loadDisk(img);
+    }
+}
@@ -0,0 +1,148 @@
+package jmh;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// reads and writes of size bytes on a file of Fs.FILE_LEN bytes
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class Fs_Io{
+    public static final int IN_FLIGHT = 16;    // reads readAsync has going at once
+
+    @Param({"64", "512", "4096", "65536"})
+    public int size;
+    @Param("0")
+    public int files;
+    @Param("0")
+    public double frag;
+    @Param("heap")
+    public String device;
+    @Param("off")
+    public String journal;
+    @Param("flat")
+    public String dir;
+
+    Fs fs;
+    byte[] buf;
+    int h;
+    int pos = 0;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        fs = Fs.open(device, journal, dir, frag, files);
+        buf = new byte[size];
+        Arrays.fill(buf, (byte)'b');
+        h = fs.bigFile("#f");
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException{
+        fs.teardown();
+    }
+
+    @Benchmark
+    public int read(){
+        if (pos + size > Fs.FILE_LEN){
+            fs.lseek(h, 0);
+            pos = 0;
+        }
+        pos += size;
+        return fs.read(h, buf, size);
+    }
+
+    // overwrite the file in place
+    @Benchmark
+    public int write(){
+        if (pos + size > Fs.FILE_LEN){
+            fs.lseek(h, 0);
+            pos = 0;
+        }
+        pos += size;
+        return fs.write(h, buf, size);
+    }
+
+    // a new file, started over when it is Fs.FILE_LEN long
+    @State(Scope.Thread)
+    public static class Appending{
+        int h;
+        int len;
+
+        @Setup(Level.Trial)
+        public void setup(Fs_Io b){
+            b.fs.create("#a");
+            h = b.fs.open("#a");
+        }
+
+        @Setup(Level.Invocation)
+        public void full(Fs_Io b){
+            if (len + b.size > Fs.FILE_LEN){
+                b.fs.close(h);
+                b.fs.destroy("#a");
+                b.fs.create("#a");
+                h = b.fs.open("#a");
+                len = 0;
+            }
+        }
+    }
+
+    // grow the file, blocks are allocated as it goes
+    @Benchmark
+    public int append(Appending a){
+        a.len += size;
+        return fs.write(a.h, buf, size);
+    }
+
+    // IN_FLIGHT handles spread over the file, each reading on from where it
+    // is through an Async_File_System
+    @State(Scope.Thread)
+    public static class Async{
+        int[] hs = new int[IN_FLIGHT];
+        byte[][] bufs = new byte[IN_FLIGHT][];
+        CompletableFuture<?>[] all = new CompletableFuture<?>[IN_FLIGHT];
+
+        @Setup(Level.Trial)
+        public void setup(Fs_Io b){
+            for (int i = 0; i < hs.length; i++){
+                hs[i] = b.fs.open("#f");
+                b.fs.lseek(hs[i], i * (Fs.FILE_LEN / hs.length));
+                bufs[i] = new byte[b.size];
+            }
+        }
+    }
+
+    // a read on every handle, then wait for all of them
+    @Benchmark
+    @OperationsPerInvocation(IN_FLIGHT)
+    public void readAsync(Async a){
+        for (int i = 0; i < a.hs.length; i++){
+            int hi = a.hs[i];
+            a.all[i] = fs.readAsync(hi, a.bufs[i], size).thenAccept(r -> {
+                if (r < size){
+                    fs.lseek(hi, 0);
+                }
+            });
+        }
+        CompletableFuture.allOf(a.all).join();
+    }
+}
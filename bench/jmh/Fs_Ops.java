@@ -0,0 +1,255 @@
+package jmh;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// the calls on names, handles and the disk as a whole
+// the work of putting the state back between calls runs in Level.Invocation
+// helpers, outside the time
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class Fs_Ops{
+    @Param("0")
+    public int files;
+    @Param("0")
+    public double frag;
+    @Param("heap")
+    public String device;
+    @Param("off")
+    public String journal;
+    @Param("flat")
+    public String dir;
+
+    Fs fs;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        fs = Fs.open(device, journal, dir, frag, files);
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException{
+        fs.teardown();
+    }
+
+    // names past the filled ones, destroyed again when the descriptors run out
+    @State(Scope.Thread)
+    public static class Creating{
+        int base;
+        int next;
+        int room;
+
+        @Setup(Level.Trial)
+        public void setup(Fs_Ops b){
+            base = next = b.files;
+            while (b.fs.create(Fs.name(next))){
+                next++;
+            }
+            room = next - base;
+            reset(b);
+        }
+
+        @Setup(Level.Invocation)
+        public void full(Fs_Ops b){
+            if (next - base == room){
+                reset(b);
+            }
+        }
+
+        void reset(Fs_Ops b){
+            for (int i = base; i < next; i++){
+                b.fs.destroy(Fs.name(i));
+            }
+            next = base;
+        }
+    }
+
+    @Benchmark
+    public boolean create(Creating c){
+        return fs.create(Fs.name(c.next++));
+    }
+
+    // names past the filled ones, created again when all are gone
+    @State(Scope.Thread)
+    public static class Destroying{
+        int base;
+        int left = 0;
+
+        @Setup(Level.Trial)
+        public void setup(Fs_Ops b){
+            base = b.files;
+        }
+
+        @Setup(Level.Invocation)
+        public void empty(Fs_Ops b){
+            while (left == 0 && b.fs.create(Fs.name(base + left))){
+                left++;
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean destroy(Destroying d){
+        return fs.destroy(Fs.name(d.base + --d.left));
+    }
+
+    // handles on the filled names, at least one
+    @State(Scope.Thread)
+    public abstract static class Handles{
+        int[] handles;
+        int open = 0;
+        int files;
+
+        @Setup(Level.Trial)
+        public void setup(Fs_Ops b){
+            handles = new int[b.fs.oftSize()];
+            files = Math.max(1, b.files);
+            for (int i = 0; i < files; i++){
+                b.fs.create(Fs.name(i));
+            }
+        }
+    }
+
+    // closed when the table is full
+    @State(Scope.Thread)
+    public static class Opening extends Handles{
+        int k = 0;
+
+        @Setup(Level.Invocation)
+        public void full(Fs_Ops b){
+            if (open == handles.length - 1){
+                while (open > 0){
+                    b.fs.close(handles[--open]);
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public int open(Opening o){
+        int h = fs.open(Fs.name(o.k++ % o.files));
+        o.handles[o.open++] = h;
+        return h;
+    }
+
+    // opened again when all are closed
+    @State(Scope.Thread)
+    public static class Closing extends Handles{
+        @Setup(Level.Invocation)
+        public void empty(Fs_Ops b){
+            if (open == 0){
+                for (int i = 0; i < handles.length - 1; i++){
+                    handles[open++] = b.fs.open(Fs.name(i % files));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean close(Closing c){
+        return fs.close(c.handles[--c.open]);
+    }
+
+    // a file of Fs.FILE_LEN bytes
+    @State(Scope.Thread)
+    public static class OnFile{
+        int h;
+        int pos = 0;
+        byte[] blk;
+
+        @Setup(Level.Trial)
+        public void setup(Fs_Ops b){
+            h = b.fs.bigFile("#f");
+            blk = new byte[b.fs.blockSize()];
+        }
+    }
+
+    @Benchmark
+    public boolean lseek(OnFile f){
+        f.pos = (f.pos * 1103515245 + 12345) & 0x7fffffff;
+        return fs.lseek(f.h, f.pos % Fs.FILE_LEN);
+    }
+
+    // the block freed is written again after each call
+    @State(Scope.Thread)
+    public static class Punching{
+        @TearDown(Level.Invocation)
+        public void refill(Fs_Ops b, OnFile f){
+            b.fs.lseek(f.h, f.pos);
+            b.fs.write(f.h, f.blk, f.blk.length);
+            f.pos = (f.pos + f.blk.length) % Fs.FILE_LEN;
+        }
+    }
+
+    @Benchmark
+    public boolean punchHole(OnFile f, Punching p){
+        return fs.punchHole(f.h, f.pos, f.blk.length);
+    }
+
+    // after each snapshot a block of the file is overwritten, which copies
+    // it out, and the snapshot deleted again
+    @State(Scope.Thread)
+    public static class Snapshotting{
+        @TearDown(Level.Invocation)
+        public void drop(Fs_Ops b, OnFile f){
+            b.fs.lseek(f.h, f.pos);
+            b.fs.write(f.h, f.blk, f.blk.length);
+            b.fs.deleteSnapshot("#s");
+            f.pos = (f.pos + f.blk.length) % Fs.FILE_LEN;
+        }
+    }
+
+    @Benchmark
+    public boolean snapshot(Snapshotting s){
+        return fs.snapshot("#s");
+    }
+
+    // a file of 64 blocks interleaved with another one that is destroyed,
+    // the same layout as the frag parameter on a small scale
+    @State(Scope.Thread)
+    public static class Fragmented{
+        @Setup(Level.Invocation)
+        public void setup(Fs_Ops b){
+            byte[] blk = new byte[b.fs.blockSize()];
+            b.fs.create("#da");
+            b.fs.create("#db");
+            int x = b.fs.open("#da");
+            int y = b.fs.open("#db");
+            for (int i = 0; i < 64; i++){
+                b.fs.write(x, blk, blk.length);
+                b.fs.write(y, blk, blk.length);
+            }
+            b.fs.close(x);
+            b.fs.close(y);
+            b.fs.destroy("#db");
+        }
+
+        @TearDown(Level.Invocation)
+        public void teardown(Fs_Ops b){
+            b.fs.destroy("#da");
+        }
+    }
+
+    @Benchmark
+    public int defragment(Fragmented f){
+        return fs.defragment();
+    }
+}
@@ -0,0 +1,61 @@
+package jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+// a shell script run end to end in batch mode, input.txt by default, with
+// the images it saves and loads in a scratch directory
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class Fs_Replay{
+    @Param("input.txt")
+    public String script;
+
+    Fs fs;
+    byte[] lines;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException{
+        fs = Fs.open("heap", "off", "flat", 0, 0);
+        StringBuilder sb = new StringBuilder();
+        for (String line : Files.readAllLines(Paths.get(script))){
+            String t = line.trim();
+            if (t.length() > 3 && (t.startsWith("sv ") || t.startsWith("in ") || t.startsWith("sy "))){
+                line = t.substring(0, 3) + new File(fs.dir(), t.substring(3).trim()).getPath();
+            }
+            sb.append(line).append('\n');
+        }
+        lines = sb.toString().getBytes();
+    }
+
+    @TearDown(Level.Trial)
+    public void teardown() throws IOException{
+        fs.teardown();
+    }
+
+    @Benchmark
+    public void replay() throws IOException{
+        fs.replay(lines);
+    }
+}
@@ -0,0 +1,132 @@
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+
+// the calls of a File_System run on an executor, each returning at once a
+// CompletableFuture of what the call returns
+//
+// calls on one handle run one after another in the order they were made,
+// calls on different handles and calls by name run side by side, the file
+// system's own locks keep them apart where they touch the same file
+// a buffer given to a read or write belongs to the call until its future
+// completes
+//
+// the default executor makes a virtual thread per call on a JDK that has
+// them, otherwise a few platform threads take the calls from a queue, so
+// thousands can be in flight either way
+public class Async_File_System implements AutoCloseable{
+    private final File_System sys;
+    private final Executor executor;
+    private final ExecutorService owned;   // shut down by close, null=given
+
+    // last call queued on each handle, removed when it is done
+    private final HashMap<Integer, CompletableFuture<?>> lanes = new HashMap<Integer, CompletableFuture<?>>();
+
+    public Async_File_System(File_System sys){
+        this.sys = sys;
+        this.owned = defaultExecutor();
+        this.executor = owned;
+    }
+
+    public Async_File_System(File_System sys, Executor executor){
+        this.sys = sys;
+        this.owned = null;
+        this.executor = executor;
+    }
+
+    // a virtual thread per task when the JDK has them (21 on), else a
+    // fixed pool of daemon threads, two per processor
+    public static ExecutorService defaultExecutor(){
+        try{
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e){
+            int n = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+            return Executors.newFixedThreadPool(n, r -> {
+                Thread t = new Thread(r, "fs-async");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    public File_System fileSystem(){
+        return sys;
+    }
+
+    // run op after the calls queued on the same handle
+    private <T> CompletableFuture<T> onHandle(int index, Supplier<T> op){
+        synchronized (lanes){
+            CompletableFuture<?> tail = lanes.get(index);
+            CompletableFuture<T> f = tail == null ? CompletableFuture.supplyAsync(op, executor)
+                    : tail.handleAsync((r, e) -> op.get(), executor);
+            lanes.put(index, f);
+            f.whenComplete((r, e) -> {
+                synchronized (lanes){
+                    lanes.remove(index, f);
+                }
+            });
+            return f;
+        }
+    }
+
+    private <T> CompletableFuture<T> byName(Supplier<T> op){
+        return CompletableFuture.supplyAsync(op, executor);
+    }
+
+    public CompletableFuture<Boolean> createAsync(String fname){
+        return byName(() -> sys.create(fname));
+    }
+
+    public CompletableFuture<Boolean> destroyAsync(String fname){
+        return byName(() -> sys.destroy(fname));
+    }
+
+    public CompletableFuture<Integer> openAsync(String fname){
+        return byName(() -> sys.open(fname));
+    }
+
+    public CompletableFuture<Boolean> closeAsync(int index){
+        return onHandle(index, () -> sys.close(index));
+    }
+
+    public CompletableFuture<Boolean> lseekAsync(int index, int pos){
+        return onHandle(index, () -> sys.lseek(index, pos));
+    }
+
+    public CompletableFuture<Integer> readAsync(int index, byte[] data, int off, int count){
+        return onHandle(index, () -> sys.read(index, data, off, count));
+    }
+
+    public CompletableFuture<Integer> readAsync(int index, ByteBuffer dst){
+        return onHandle(index, () -> sys.read(index, dst));
+    }
+
+    public CompletableFuture<Integer> writeAsync(int index, byte[] data, int off, int count){
+        return onHandle(index, () -> sys.write(index, data, off, count));
+    }
+
+    public CompletableFuture<Integer> writeAsync(int index, ByteBuffer src){
+        return onHandle(index, () -> sys.write(index, src));
+    }
+
+    public CompletableFuture<Boolean> punchHoleAsync(int index, int pos, int count){
+        return onHandle(index, () -> sys.punchHole(index, pos, count));
+    }
+
+    public CompletableFuture<Boolean> syncAsync(String fname, boolean force){
+        return byName(() -> sys.sync(fname, force));
+    }
+
+    // calls still queued run, no new ones are taken, a given executor is
+    // left running
+    public void close(){
+        if (owned != null){
+            owned.shutdown();
+        }
+    }
+}
@@ -0,0 +1,442 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+
+// directory as a B+tree of pages in the directory file, one page a block,
+// for long names and many files
+//
+// page 0 is the header: int magic, root page, first free page, free pages,
+// pages in the file, height, names
+// every other page is a node: byte kind, short count, int link, then count
+// entries of a byte name length, the name and an int
+//   leaf      names in order with their descriptor index, link=next leaf
+//   internal  link=child before the first key, each key with the child
+//             holding the names from it up to the next key
+//   free      link=next free page
+// names compare as the unsigned bytes of their UTF-8 form
+//
+// a node that no longer fits is split in two by bytes and the first key of
+// the right half goes up to the parent, a full root gets a new root above
+// an add that splits takes every page it may need first, so a full disk
+// fails it before anything changes
+// removes do not merge nodes, the tree keeps the height of its largest size
+public class BTree_Directory implements Directory{
+    public static final int MAGIC = 0x42545245;    // "BTRE"
+    public static final int MAX_NAME = 255;        // bytes
+
+    static final int LEAF = 1;
+    static final int INTERNAL = 2;
+    static final int FREE = 3;
+    static final int NODE_HEADER = 7;   // kind, count, link
+
+    class Node{
+        int page = 0;
+        int kind = LEAF;
+        int link = 0;
+        ArrayList<byte[]> keys = new ArrayList<byte[]>();
+        ArrayList<Integer> vals = new ArrayList<Integer>();
+
+        // bytes it takes in a page
+        int bytes(){
+            int n = NODE_HEADER;
+            for (byte[] k : keys){
+                n += 5 + k.length;
+            }
+            return n;
+        }
+
+        // child holding key
+        int child(byte[] key){
+            int i = upper(this, key);
+            return i == 0 ? link : vals.get(i - 1);
+        }
+    }
+
+    private Store file;
+    private int pageSize;
+    private int maxName;
+
+    // header
+    private int root = 1;
+    private int free = 0;       // 0=none
+    private int freePages = 0;
+    private int pages = 0;
+    private int height = 1;
+    private int count = 0;
+
+    public BTree_Directory(Store file, int pageSize){
+        this.file = file;
+        this.pageSize = pageSize;
+        this.maxName = maxName(pageSize);
+        if (maxName < File_System.FILE_NAME_LEN){
+            throw new IllegalArgumentException("block size " + pageSize + " too small for a B+tree directory");
+        }
+    }
+
+    // longest name for a page size, any three entries must fit in a node
+    // so a split always leaves both halves in a page
+    public static int maxName(int pageSize){
+        return Math.min(MAX_NAME, (pageSize - NODE_HEADER) / 3 - 5);
+    }
+
+    public int load(){
+        if (file.length() == 0){
+            // new directory, the header and an empty leaf
+            root = 1;
+            free = 0;
+            freePages = 0;
+            pages = 2;
+            height = 1;
+            count = 0;
+            writeHeader();
+            Node n = new Node();
+            n.page = 1;
+            write(n);
+            return 0;
+        }
+
+        ByteBuffer b = ByteBuffer.wrap(readPage(0));
+        if (b.getInt() != MAGIC){
+            throw new IllegalStateException("not a B+tree directory");
+        }
+        root = b.getInt();
+        free = b.getInt();
+        freePages = b.getInt();
+        pages = b.getInt();
+        height = b.getInt();
+        count = b.getInt();
+        return 1;
+    }
+
+    public boolean validName(String fname){
+        return !fname.isEmpty() && key(fname).length <= maxName;
+    }
+
+    // searched in the page bytes, nothing is decoded on the way down
+    public int lookup(String fname){
+        byte[] key = key(fname);
+        int page = root;
+        for (int level = 1; level < height; level++){
+            page = search(readPage(page), key, false);
+        }
+        return search(readPage(page), key, true);
+    }
+
+    // in a leaf page the value of key, -1=not there, in an internal page
+    // the child holding key
+    private static int search(byte[] b, byte[] key, boolean leaf){
+        int cnt = (b[1] & 0xff) << 8 | (b[2] & 0xff);
+        int result = leaf ? -1 : getInt(b, 3);
+        int p = NODE_HEADER;
+        for (int i = 0; i < cnt; i++){
+            int len = b[p] & 0xff;
+            int c = Arrays.compareUnsigned(b, p + 1, p + 1 + len, key, 0, key.length);
+            int v = p + 1 + len;
+            if (leaf ? c >= 0 : c > 0){
+                return leaf && c == 0 ? getInt(b, v) : result;
+            }
+            if (!leaf){
+                result = getInt(b, v);
+            }
+            p = v + 4;
+        }
+        return result;
+    }
+
+    private static int getInt(byte[] b, int p){
+        return (b[p] & 0xff) << 24 | (b[p+1] & 0xff) << 16 | (b[p+2] & 0xff) << 8 | (b[p+3] & 0xff);
+    }
+
+    public boolean add(String fname, int index){
+        byte[] key = key(fname);
+        if (key.length > maxName){
+            return false;
+        }
+
+        // path from the root, the nodes and the child taken in each
+        Node[] path = new Node[height];
+        int[] at = new int[height];
+        int d = 0;
+        Node n = read(root);
+        while (n.kind == INTERNAL){
+            path[d] = n;
+            at[d] = upper(n, key);
+            n = read(n.child(key));
+            d++;
+        }
+
+        int i = lower(n, key);
+        if (i < n.keys.size() && Arrays.equals(n.keys.get(i), key)){
+            return false;
+        }
+        n.keys.add(i, key);
+        n.vals.add(i, index);
+        if (n.bytes() > pageSize && !reserve(height + 1)){
+            return false;
+        }
+        count++;
+
+        // split up the path while nodes do not fit
+        while (n.bytes() > pageSize){
+            Node r = new Node();
+            r.page = take();
+            r.kind = n.kind;
+            int m = split(n);
+            byte[] up;
+            if (n.kind == LEAF){
+                up = n.keys.get(m);
+                move(n, m, r);
+                r.link = n.link;
+                n.link = r.page;
+            }
+            else{
+                up = n.keys.get(m);
+                r.link = n.vals.get(m);
+                move(n, m + 1, r);
+                n.keys.remove(m);
+                n.vals.remove(m);
+            }
+            write(r);
+
+            if (d == 0){
+                // new root above
+                write(n);
+                Node top = new Node();
+                top.page = take();
+                top.kind = INTERNAL;
+                top.link = n.page;
+                top.keys.add(up);
+                top.vals.add(r.page);
+                n = top;
+                root = top.page;
+                height++;
+                break;
+            }
+            write(n);
+            d--;
+            n = path[d];
+            n.keys.add(at[d], up);
+            n.vals.add(at[d], r.page);
+        }
+        write(n);
+        writeHeader();
+        return true;
+    }
+
+    public boolean remove(String fname){
+        byte[] key = key(fname);
+        Node n = read(root);
+        while (n.kind == INTERNAL){
+            n = read(n.child(key));
+        }
+        int i = lower(n, key);
+        if (i >= n.keys.size() || !Arrays.equals(n.keys.get(i), key)){
+            return false;
+        }
+        n.keys.remove(i);
+        n.vals.remove(i);
+        count--;
+        write(n);
+        writeHeader();
+        return true;
+    }
+
+    // names in order, from the leaf holding the first along the leaf links
+    // the cursor is the name to go on from, the one after the last given is
+    // that name with a zero byte added, so names made or removed between
+    // calls neither repeat nor hide the others
+    public String list(String from, String to, String cursor, Predicate<String> each){
+        byte[] lo = from == null ? null : key(from);
+        if (cursor != null && (lo == null || compare(key(cursor), lo) > 0)){
+            lo = key(cursor);
+        }
+        byte[] hi = to == null ? null : key(to);
+
+        Node n = read(root);
+        while (n.kind == INTERNAL){
+            n = read(lo == null ? n.link : n.child(lo));
+        }
+
+        int i = lo == null ? 0 : lower(n, lo);
+        while (true){
+            for (; i < n.keys.size(); i++){
+                byte[] k = n.keys.get(i);
+                if (hi != null && compare(k, hi) >= 0){
+                    return null;
+                }
+                String fname = new String(k, StandardCharsets.UTF_8);
+                if (!each.test(fname)){
+                    return fname + "\0";
+                }
+            }
+            if (n.link == 0){
+                return null;
+            }
+            n = read(n.link);
+            i = 0;
+        }
+    }
+
+    public boolean sorted(){
+        return true;
+    }
+
+    public int size(){
+        return count;
+    }
+
+    // levels of nodes
+    public int height(){
+        return height;
+    }
+
+    private static byte[] key(String fname){
+        return fname.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int compare(byte[] a, byte[] b){
+        return Arrays.compareUnsigned(a, b);
+    }
+
+    // first key >= key
+    private static int lower(Node n, byte[] key){
+        int lo = 0;
+        int hi = n.keys.size();
+        while (lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if (compare(n.keys.get(mid), key) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    // first key > key
+    private static int upper(Node n, byte[] key){
+        int lo = 0;
+        int hi = n.keys.size();
+        while (lo < hi){
+            int mid = (lo + hi) >>> 1;
+            if (compare(n.keys.get(mid), key) <= 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    // where to split n, about half its bytes go left, both sides keep a key
+    // and an internal node one more for the key that goes up
+    private int split(Node n){
+        int half = (n.bytes() - NODE_HEADER) / 2;
+        int size = 0;
+        int m = 0;
+        while (m < n.keys.size() && size + 5 + n.keys.get(m).length <= half){
+            size += 5 + n.keys.get(m).length;
+            m++;
+        }
+        int most = n.kind == LEAF ? n.keys.size() - 1 : n.keys.size() - 2;
+        return Math.max(1, Math.min(m, most));
+    }
+
+    // move the entries of n from i on to r
+    private static void move(Node n, int i, Node r){
+        r.keys.addAll(n.keys.subList(i, n.keys.size()));
+        r.vals.addAll(n.vals.subList(i, n.vals.size()));
+        n.keys.subList(i, n.keys.size()).clear();
+        n.vals.subList(i, n.vals.size()).clear();
+    }
+
+    // make sure n free pages are there, growing the file, false=disk full
+    private boolean reserve(int n){
+        boolean grown = false;
+        while (freePages < n){
+            Node f = new Node();
+            f.kind = FREE;
+            f.page = pages;
+            f.link = free;
+            if (!file.write(f.page * pageSize, encode(f), 0, pageSize)){
+                break;
+            }
+            free = f.page;
+            freePages++;
+            pages++;
+            grown = true;
+        }
+        if (grown){
+            writeHeader();
+        }
+        return freePages >= n;
+    }
+
+    // a reserved page
+    private int take(){
+        int p = free;
+        free = read(p).link;
+        freePages--;
+        return p;
+    }
+
+    private byte[] readPage(int page){
+        byte[] b = new byte[pageSize];
+        if (file.read(page * pageSize, b, 0, pageSize) != pageSize){
+            throw new IllegalStateException("directory page " + page + " missing");
+        }
+        return b;
+    }
+
+    private Node read(int page){
+        ByteBuffer b = ByteBuffer.wrap(readPage(page));
+        Node n = new Node();
+        n.page = page;
+        n.kind = b.get();
+        int cnt = b.getShort() & 0xffff;
+        n.link = b.getInt();
+        for (int i = 0; i < cnt; i++){
+            byte[] k = new byte[b.get() & 0xff];
+            b.get(k);
+            n.keys.add(k);
+            n.vals.add(b.getInt());
+        }
+        return n;
+    }
+
+    private byte[] encode(Node n){
+        ByteBuffer b = ByteBuffer.allocate(pageSize);
+        b.put((byte)n.kind);
+        b.putShort((short)n.keys.size());
+        b.putInt(n.link);
+        for (int i = 0; i < n.keys.size(); i++){
+            byte[] k = n.keys.get(i);
+            b.put((byte)k.length);
+            b.put(k);
+            b.putInt(n.vals.get(i));
+        }
+        return b.array();
+    }
+
+    // pages written here are in the file already, only a broken disk fails
+    private void write(Node n){
+        if (!file.write(n.page * pageSize, encode(n), 0, pageSize)){
+            throw new IllegalStateException("directory page " + n.page + " not written");
+        }
+    }
+
+    private void writeHeader(){
+        ByteBuffer b = ByteBuffer.allocate(pageSize);
+        b.putInt(MAGIC);
+        b.putInt(root);
+        b.putInt(free);
+        b.putInt(freePages);
+        b.putInt(pages);
+        b.putInt(height);
+        b.putInt(count);
+        if (!file.write(0, b.array(), 0, pageSize)){
+            throw new IllegalStateException("directory header not written");
+        }
+    }
+}
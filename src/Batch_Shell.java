@@ -0,0 +1,713 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+
+
+// batch mode of the shell for replaying long command scripts
+//
+// same commands and output as File_System.main, but lines are split in
+// place in a reused buffer, commands are switched on their two letters,
+// numbers are parsed from the bytes and results are collected in one
+// output buffer that goes to the output file, and the console unless -q
+//
+// scripts can also be compiled to a compact binary form, a magic number,
+// then per command a code byte and its arguments: a name as a short length
+// and bytes, numbers as ints, the wr char as a byte
+//
+// usage: Batch_Shell [-q] [-c binary] [-t trace] [input [output]]
+//   -q  do not echo to the console
+//   -c  compile the text input to the binary file and stop
+//   -t  record the calls the script makes to a trace for Trace_Replayer
+// a binary input is recognised by its magic number
+public class Batch_Shell{
+    public static final int MAGIC = 0x46534231;    // "FSB1"
+
+    // command codes, also the binary format
+    static final int BLANK = 0;
+    static final int IN = 1;
+    static final int SV = 2;
+    static final int SY = 3;
+    static final int OP = 4;
+    static final int CL = 5;
+    static final int RD = 6;
+    static final int SK = 7;
+    static final int DR = 8;
+    static final int WR = 9;
+    static final int CR = 10;
+    static final int DE = 11;
+    static final int BAD = 12;     // unknown command or bad arguments, prints error
+    static final int ST = 13;
+    static final int DP = 14;      // dr with a prefix
+    static final int DF = 15;
+    static final int SS = 16;
+
+    private static final byte[] NL = System.lineSeparator().getBytes();
+
+    private File_System sys;
+    private OutputStream file;
+    private OutputStream console;   // null=quiet
+
+    // output collected here and written out when full
+    private byte[] out = new byte[64 * 1024];
+    private int outLen = 0;
+
+    // the current input line and its tokens
+    private byte[] line = new byte[256];
+    private int lineLen = 0;
+    private int pos = 0;        // parse position in line
+
+    // input buffer of the text reader
+    private InputStream in;
+    private byte[] inBuf = new byte[64 * 1024];
+    private int inPos = 0;
+    private int inLen = 0;
+    private boolean lastCR = false;
+
+    // data of rd and wr, grown to the largest count
+    private byte[] data = new byte[256];
+
+    // the parsed command
+    private int code;
+    private int nameOff;
+    private int nameLen;
+    private int arg1;
+    private int arg2;
+    private byte ch;
+
+    public Batch_Shell(File_System sys, OutputStream file, OutputStream console){
+        this.sys = sys;
+        this.file = file;
+        this.console = console;
+    }
+
+    // run a text or binary script
+    public void run(InputStream input) throws IOException{
+        in = input.markSupported() ? input : new BufferedInputStream(input, 64 * 1024);
+        in.mark(4);
+        byte[] m = new byte[4];
+        int n = 0;
+        while (n < 4){
+            int r = in.read(m, n, 4 - n);
+            if (r < 0)
+                break;
+            n += r;
+        }
+        in.reset();
+
+        if (n == 4 && ((m[0] & 0xff) << 24 | (m[1] & 0xff) << 16 | (m[2] & 0xff) << 8 | (m[3] & 0xff)) == MAGIC){
+            runBinary(new DataInputStream(in));
+        }
+        else{
+            runText();
+        }
+        flush();
+    }
+
+    private void runText() throws IOException{
+        while (readLine()){
+            parse();
+            execute();
+        }
+    }
+
+    private void runBinary(DataInputStream bin) throws IOException{
+        bin.readInt();  // magic
+        while (true){
+            int c = bin.read();
+            if (c < 0){
+                break;
+            }
+            code = c;
+            switch (code){
+                case IN:
+                case SV:
+                case SY:
+                case OP:
+                case CR:
+                case DE:
+                case DP:
+                case SS:
+                    lineLen = bin.readUnsignedShort();
+                    ensureLine(lineLen);
+                    bin.readFully(line, 0, lineLen);
+                    nameOff = 0;
+                    nameLen = lineLen;
+                    break;
+                case CL:
+                    arg1 = bin.readInt();
+                    break;
+                case RD:
+                case SK:
+                    arg1 = bin.readInt();
+                    arg2 = bin.readInt();
+                    break;
+                case WR:
+                    arg1 = bin.readInt();
+                    ch = bin.readByte();
+                    arg2 = bin.readInt();
+                    break;
+                case BLANK:
+                case DR:
+                case ST:
+                case DF:
+                case BAD:
+                    break;
+                default:
+                    throw new IOException("bad command code " + code);
+            }
+            execute();
+        }
+    }
+
+    // next line of the text input into line, false=end of input
+    // a line ends at \n, \r or \r\n
+    private boolean readLine() throws IOException{
+        lineLen = 0;
+        boolean any = false;
+        while (true){
+            if (inPos == inLen){
+                inLen = in.read(inBuf, 0, inBuf.length);
+                inPos = 0;
+                if (inLen <= 0){
+                    inLen = 0;
+                    return any;
+                }
+            }
+            byte b = inBuf[inPos++];
+            if (lastCR){
+                lastCR = false;
+                if (b == '\n'){
+                    continue;
+                }
+            }
+            any = true;
+            if (b == '\n'){
+                return true;
+            }
+            if (b == '\r'){
+                lastCR = true;
+                return true;
+            }
+            if (lineLen == line.length){
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[lineLen++] = b;
+        }
+    }
+
+    private void ensureLine(int n){
+        if (line.length < n){
+            line = new byte[Math.max(n, line.length * 2)];
+        }
+    }
+
+    // split the line into a command code and its arguments
+    private void parse(){
+        int end = lineLen;
+        pos = 0;
+        while (pos < end && space(line[pos]))
+            pos++;
+        while (end > pos && space(line[end-1]))
+            end--;
+        lineLen = end;
+        if (pos == end){
+            code = BLANK;
+            return;
+        }
+
+        int start = pos;
+        skipToken();
+        code = pos - start == 2 ? command(line[start], line[start+1]) : BAD;
+        try{
+            if (code == DR){
+                rest(false);
+                if (nameLen > 0){
+                    code = DP;
+                }
+            }
+            switch (code){
+                case IN:
+                    rest(false);
+                    break;
+                case SV:
+                case SY:
+                case OP:
+                case CR:
+                case DE:
+                case SS:
+                    rest(true);
+                    break;
+                case CL:
+                    arg1 = nextInt();
+                    break;
+                case RD:
+                case SK:
+                    arg1 = nextInt();
+                    arg2 = nextInt();
+                    break;
+                case WR:
+                    arg1 = nextInt();
+                    ch = nextChar();
+                    arg2 = nextInt();
+                    break;
+                default:
+                    break;
+            }
+        } catch (IllegalArgumentException e){
+            code = BAD;
+        }
+    }
+
+    private static int command(byte a, byte b){
+        switch (a << 8 | b){
+            case 'i' << 8 | 'n': return IN;
+            case 's' << 8 | 'v': return SV;
+            case 's' << 8 | 'y': return SY;
+            case 'o' << 8 | 'p': return OP;
+            case 'c' << 8 | 'l': return CL;
+            case 'r' << 8 | 'd': return RD;
+            case 's' << 8 | 'k': return SK;
+            case 'd' << 8 | 'r': return DR;
+            case 'w' << 8 | 'r': return WR;
+            case 'c' << 8 | 'r': return CR;
+            case 'd' << 8 | 'e': return DE;
+            case 's' << 8 | 't': return ST;
+            case 'd' << 8 | 'f': return DF;
+            case 's' << 8 | 's': return SS;
+            default: return BAD;
+        }
+    }
+
+    // ascii blanks and control chars, as String.trim drops
+    private static boolean space(byte b){
+        return b >= 0 && b <= ' ';
+    }
+
+    private void skipToken(){
+        while (pos < lineLen && !space(line[pos]))
+            pos++;
+    }
+
+    // the rest of the line is the name, required=an empty one is an error
+    private void rest(boolean required){
+        int p = pos;
+        while (p < lineLen && space(line[p]))
+            p++;
+        if (required && pos == lineLen){
+            throw new IllegalArgumentException("no name");
+        }
+        nameOff = p;
+        nameLen = lineLen - p;
+    }
+
+    // next token as an int
+    private int nextInt(){
+        while (pos < lineLen && space(line[pos]))
+            pos++;
+        int start = pos;
+        skipToken();
+        if (start == pos){
+            throw new IllegalArgumentException("no number");
+        }
+
+        int p = start;
+        boolean neg = line[p] == '-';
+        if (neg || line[p] == '+')
+            p++;
+        if (p == pos){
+            throw new IllegalArgumentException("no digits");
+        }
+        long v = 0;
+        for (; p < pos; p++){
+            int d = line[p] - '0';
+            if (d < 0 || d > 9){
+                throw new IllegalArgumentException("not a number");
+            }
+            v = v * 10 + d;
+            if (v > Integer.MAX_VALUE + 1L){
+                throw new IllegalArgumentException("too big");
+            }
+        }
+        if (neg)
+            v = -v;
+        if (v > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("too big");
+        }
+        return (int)v;
+    }
+
+    // first char of the next token, as the byte the shell writes
+    private byte nextChar(){
+        while (pos < lineLen && space(line[pos]))
+            pos++;
+        int start = pos;
+        skipToken();
+        if (start == pos){
+            throw new IllegalArgumentException("no char");
+        }
+        if (line[start] >= 0){
+            return line[start];
+        }
+        return (byte)new String(line, start, pos - start).charAt(0);
+    }
+
+    private String name(){
+        return new String(line, nameOff, nameLen);
+    }
+
+    // run the parsed command and print its result
+    private void execute(){
+        try{
+            switch (code){
+                case BLANK:
+                    newLine();
+                    break;
+                case IN:
+                    print(sys.loadDisk(name()) ? "disk restored" : "disk initialized");
+                    newLine();
+                    break;
+                case SV:
+                    if (sys.saveDisk(name())){
+                        print("disk saved");
+                        newLine();
+                    }
+                    break;
+                case SY:
+                    if (sys.sync(name(), true)){
+                        print("disk synced");
+                        newLine();
+                    }
+                    else{
+                        error();
+                    }
+                    break;
+                case OP:{
+                    int idx = sys.open(name());
+                    if (idx >= 0){
+                        printName();
+                        print(" opened ");
+                        print(idx);
+                        newLine();
+                    }
+                    else{
+                        error();
+                    }
+                    break;
+                }
+                case CL:
+                    if (arg1 <= 0 || !sys.close(arg1)){
+                        error();
+                    }
+                    else{
+                        print(arg1);
+                        print(" closed");
+                        newLine();
+                    }
+                    break;
+                case RD:
+                    read(arg1, arg2);
+                    break;
+                case SK:
+                    if (sys.lseek(arg1, arg2)){
+                        print("position is ");
+                        print(arg2);
+                        newLine();
+                    }
+                    else{
+                        error();
+                    }
+                    break;
+                case DR:
+                case DP:{
+                    // printed as it is read
+                    Iterator<String> it = (code == DP ? sys.names(name()) : sys.names()).iterator();
+                    for (boolean first = true; it.hasNext(); first = false){
+                        if (!first){
+                            print(" ");
+                        }
+                        print(it.next());
+                    }
+                    newLine();
+                    break;
+                }
+                case WR:
+                    write(arg1, ch, arg2);
+                    break;
+                case CR:
+                    if (sys.create(name())){
+                        printName();
+                        print(" created");
+                        newLine();
+                    }
+                    else{
+                        error();
+                    }
+                    break;
+                case DE:
+                    if (sys.destroy(name())){
+                        printName();
+                        print(" destroyed");
+                        newLine();
+                    }
+                    else{
+                        error();
+                    }
+                    break;
+                case ST:
+                    print(sys.stats().snapshot());
+                    newLine();
+                    break;
+                case DF:
+                    print(sys.defragment());
+                    print(" files moved");
+                    newLine();
+                    break;
+                case SS:
+                    if (sys.snapshot(name())){
+                        printName();
+                        print(" snapshot taken");
+                        newLine();
+                    }
+                    else{
+                        error();
+                    }
+                    break;
+                default:
+                    error();
+                    break;
+            }
+        } catch (Exception e){
+            error();
+        }
+    }
+
+    private void read(int idx, int cnt){
+        if (cnt < 0){
+            error();
+            return;
+        }
+        if (data.length < cnt){
+            data = new byte[Math.max(cnt, data.length * 2)];
+        }
+        int n = sys.read(idx, data, cnt);
+        if (n < 0){
+            error();
+            return;
+        }
+
+        // zero bytes are not printed
+        ensureOut(n);
+        for (int i = 0; i < n; i++){
+            if (data[i] != 0){
+                out[outLen++] = data[i];
+            }
+        }
+        newLine();
+    }
+
+    private void write(int idx, byte c, int cnt){
+        if (cnt < 0 || idx <= 0){
+            error();
+            return;
+        }
+        if (data.length < cnt){
+            data = new byte[Math.max(cnt, data.length * 2)];
+        }
+        Arrays.fill(data, 0, cnt, c);
+
+        int written = sys.write(idx, data, cnt);
+        if (written >= 0){
+            print(written);
+            print(" bytes written");
+            newLine();
+        }
+        else{
+            error();
+        }
+    }
+
+    // output
+
+    private void error(){
+        print("error");
+        newLine();
+    }
+
+    private void newLine(){
+        ensureOut(NL.length);
+        for (int i = 0; i < NL.length; i++){
+            out[outLen++] = NL[i];
+        }
+    }
+
+    private void printName(){
+        ensureOut(nameLen);
+        System.arraycopy(line, nameOff, out, outLen, nameLen);
+        outLen += nameLen;
+    }
+
+    private void print(String s){
+        int n = s.length();
+        ensureOut(n);
+        for (int i = 0; i < n; i++){
+            char c = s.charAt(i);
+            if (c >= 0x80){
+                // not plain ascii, let the charset do it
+                byte[] b = s.substring(i).getBytes();
+                ensureOut(b.length);
+                System.arraycopy(b, 0, out, outLen, b.length);
+                outLen += b.length;
+                return;
+            }
+            out[outLen++] = (byte)c;
+        }
+    }
+
+    private void print(int v){
+        ensureOut(11);
+        if (v < 0){
+            if (v == Integer.MIN_VALUE){
+                print(Integer.toString(v));
+                return;
+            }
+            out[outLen++] = '-';
+            v = -v;
+        }
+        int start = outLen;
+        do{
+            out[outLen++] = (byte)('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        // digits came out backwards
+        for (int i = start, j = outLen - 1; i < j; i++, j--){
+            byte t = out[i];
+            out[i] = out[j];
+            out[j] = t;
+        }
+    }
+
+    // room for n more output bytes
+    private void ensureOut(int n){
+        if (outLen + n > out.length){
+            try{
+                flush();
+            } catch (IOException e){
+                throw new RuntimeException(e);
+            }
+            if (n > out.length){
+                out = new byte[n];
+            }
+        }
+    }
+
+    public void flush() throws IOException{
+        file.write(out, 0, outLen);
+        if (console != null){
+            console.write(out, 0, outLen);
+        }
+        outLen = 0;
+    }
+
+    // translate a text script to the binary form
+    public void compile(InputStream input, OutputStream output) throws IOException{
+        in = input;
+        DataOutputStream bin = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+        bin.writeInt(MAGIC);
+        while (readLine()){
+            parse();
+            bin.writeByte(code);
+            switch (code){
+                case IN:
+                case SV:
+                case SY:
+                case OP:
+                case CR:
+                case DE:
+                case DP:
+                case SS:
+                    bin.writeShort(Math.min(nameLen, 0xffff));
+                    bin.write(line, nameOff, Math.min(nameLen, 0xffff));
+                    break;
+                case CL:
+                    bin.writeInt(arg1);
+                    break;
+                case RD:
+                case SK:
+                    bin.writeInt(arg1);
+                    bin.writeInt(arg2);
+                    break;
+                case WR:
+                    bin.writeInt(arg1);
+                    bin.writeByte(ch);
+                    bin.writeInt(arg2);
+                    break;
+                default:
+                    break;
+            }
+        }
+        bin.flush();
+    }
+
+    public static void main(String[] args) throws IOException{
+        boolean quiet = false;
+        String binary = null;
+        String trace = null;
+        int a = 0;
+        while (a < args.length && args[a].startsWith("-") && args[a].length() > 1){
+            if (args[a].equals("-q")){
+                quiet = true;
+            }
+            else if (args[a].equals("-c") && a + 1 < args.length){
+                binary = args[++a];
+            }
+            else if (args[a].equals("-t") && a + 1 < args.length){
+                trace = args[++a];
+            }
+            else{
+                System.err.println("usage: Batch_Shell [-q] [-c binary] [-t trace] [input [output]]");
+                return;
+            }
+            a++;
+        }
+
+        InputStream input = a < args.length ? new FileInputStream(args[a]) : System.in;
+        try{
+            if (binary != null){
+                OutputStream bin = new FileOutputStream(binary);
+                try{
+                    new Batch_Shell(null, null, null).compile(input, bin);
+                } finally{
+                    bin.close();
+                }
+                return;
+            }
+
+            OutputStream file = new FileOutputStream(a + 1 < args.length ? args[a+1] : "output.txt");
+            try{
+                File_System sys = trace != null ? new Recording_File_System(trace) : new File_System();
+                sys.stats().register("batch");
+                Batch_Shell sh = new Batch_Shell(sys, file, quiet ? null : System.out);
+                try{
+                    sh.run(input);
+                } finally{
+                    if (trace != null){
+                        ((Recording_File_System)sys).closeTrace();
+                    }
+                }
+            } finally{
+                file.close();
+                System.out.flush();
+            }
+        } finally{
+            input.close();
+        }
+    }
+}
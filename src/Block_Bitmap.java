@@ -0,0 +1,269 @@
+// free-block bitmap kept in memory as 64-bit words, bit i set = block i used
+// bit i lives in byte i/8, bit i%8 on disk, so word w is bytes 8w..8w+7
+// read little endian
+public class Block_Bitmap{
+    private long[] words;
+    private int size;   // number of blocks
+    private int first;  // first allocatable block
+    private int hint;   // next-fit start
+    private int dirtyLo;    // changed words since the last store, lo > hi = clean
+    private int dirtyHi;
+
+    public Block_Bitmap(int size, int first){
+        this.size = size;
+        this.first = first;
+        this.words = new long[(size + 63) / 64];
+        this.hint = first;
+        clean();
+    }
+
+    public int size(){
+        return size;
+    }
+
+    // load from the bitmap bytes on disk
+    public void load(byte[] data, int loc){
+        for (int w = 0; w < words.length; w++){
+            long v = 0;
+            for (int b = 7; b >= 0; b--){
+                int p = w * 8 + b;
+                v = v << 8;
+                if (p * 8 < size){
+                    v = v | ((long)data[loc + p] & 0xff);
+                }
+            }
+            words[w] = v;
+        }
+        // bits past the end count as used
+        if (size % 64 != 0){
+            words[words.length - 1] |= -1L << (size % 64);
+        }
+        hint = first;
+        clean();
+    }
+
+    // store into the bitmap bytes on disk
+    public void store(byte[] data, int loc){
+        store(data, loc, 0, (size + 7) / 8);
+        clean();
+    }
+
+    // store only the words changed since the last store
+    public void storeDirty(byte[] data, int loc){
+        if (dirtyLo <= dirtyHi){
+            store(data, loc, dirtyLo * 8, Math.min((dirtyHi + 1) * 8, (size + 7) / 8));
+        }
+        clean();
+    }
+
+    // first and last dirty byte offsets, -1=clean
+    public int dirtyFirstByte(){
+        return dirtyLo <= dirtyHi ? dirtyLo * 8 : -1;
+    }
+
+    public int dirtyLastByte(){
+        return dirtyLo <= dirtyHi ? Math.min((dirtyHi + 1) * 8, (size + 7) / 8) - 1 : -1;
+    }
+
+    private void clean(){
+        dirtyLo = Integer.MAX_VALUE;
+        dirtyHi = -1;
+    }
+
+    private void touch(int w){
+        if (w < dirtyLo)
+            dirtyLo = w;
+        if (w > dirtyHi)
+            dirtyHi = w;
+    }
+
+    // store bytes [from, to) of the bitmap
+    private void store(byte[] data, int loc, int from, int to){
+        for (int p = from; p < to; p++){
+            int v = (int)(words[p / 8] >>> ((p % 8) * 8));
+            if (p * 8 + 8 > size){
+                v = v & ((1 << (size - p * 8)) - 1);  // drop the padding bits
+            }
+            data[loc + p] = (byte)v;
+        }
+    }
+
+    public boolean get(int idx){
+        return (words[idx >>> 6] & (1L << idx)) != 0;
+    }
+
+    public void set(int idx){
+        words[idx >>> 6] |= 1L << idx;
+        touch(idx >>> 6);
+    }
+
+    public void clear(int idx){
+        words[idx >>> 6] &= ~(1L << idx);
+        touch(idx >>> 6);
+        if (idx < hint && idx >= first){
+            hint = idx;
+        }
+    }
+
+    // mark blocks [start, start+len) used or free a word at a time
+    public void setRange(int start, int len, boolean val){
+        int end = start + len;
+        for (int i = start; i < end; ){
+            int n = Math.min(64 - (i & 63), end - i);
+            long mask = (n == 64 ? -1L : ((1L << n) - 1)) << i;
+            if (val)
+                words[i >>> 6] |= mask;
+            else
+                words[i >>> 6] &= ~mask;
+            touch(i >>> 6);
+            i += n;
+        }
+        if (!val && start < hint && start >= first){
+            hint = start;
+        }
+    }
+
+    // first free block at or after from, -1=none
+    public int nextFree(int from){
+        if (from >= size){
+            return -1;
+        }
+        int w = from >>> 6;
+        long v = ~words[w] & (-1L << from);
+        while (true){
+            if (v != 0){
+                int idx = (w << 6) + Long.numberOfTrailingZeros(v);
+                return idx < size ? idx : -1;
+            }
+            if (++w >= words.length){
+                return -1;
+            }
+            v = ~words[w];
+        }
+    }
+
+    // first used block at or after from, size=none
+    public int nextUsed(int from){
+        if (from >= size){
+            return size;
+        }
+        int w = from >>> 6;
+        long v = words[w] & (-1L << from);
+        while (true){
+            if (v != 0){
+                return Math.min((w << 6) + Long.numberOfTrailingZeros(v), size);
+            }
+            if (++w >= words.length){
+                return size;
+            }
+            v = words[w];
+        }
+    }
+
+    // start of the first run of count free blocks at or after from, then
+    // from the first allocatable block, -1=none
+    public int findRun(int from, int count){
+        from = Math.max(from, first);
+        int s = findRun(from, size, count);
+        return s >= 0 || from == first ? s : findRun(first, size, count);
+    }
+
+    private int findRun(int from, int to, int count){
+        int s = nextFree(from);
+        while (s >= 0 && s + count <= to){
+            int e = nextUsed(s);
+            if (e - s >= count){
+                return s;
+            }
+            s = nextFree(e);
+        }
+        return -1;
+    }
+
+    // allocate count blocks into blks[off..] keeping them together: what is
+    // free from goal on first (goal < first=none), so a file grows in place,
+    // the rest in the next free run long enough, else anywhere
+    // all or nothing, return false=disk full
+    public boolean allocateNear(int goal, int count, int[] blks, int off){
+        boolean hasGoal = goal >= first && goal < size;
+        int done = 0;
+        if (hasGoal && !get(goal)){
+            done = Math.min(count, nextUsed(goal) - goal);
+            for (int i = 0; i < done; i++){
+                blks[off + i] = goal + i;
+            }
+            setRange(goal, done, true);
+        }
+
+        int rest = count - done;
+        if (rest > 0){
+            int s = findRun(hasGoal ? goal : hint, rest);
+            if (s >= 0){
+                for (int i = 0; i < rest; i++){
+                    blks[off + done + i] = s + i;
+                }
+                setRange(s, rest, true);
+            }
+            else if (!allocate(rest, blks, off + done)){
+                for (int i = 0; i < done; i++){
+                    clear(blks[off + i]);
+                }
+                return false;
+            }
+        }
+        if (count > 0){
+            hint = blks[off + count - 1] + 1;
+            if (hint >= size){
+                hint = first;
+            }
+        }
+        return true;
+    }
+
+    // allocate count blocks into blks[off..], all or nothing, return false=disk full
+    public boolean allocate(int count, int[] blks, int off){
+        int found = 0;
+        int idx = nextFree(hint);
+        boolean wrapped = false;
+        while (found < count){
+            if (idx < 0){
+                if (wrapped || hint == first){
+                    break;
+                }
+                // wrap around to the start of the data blocks
+                wrapped = true;
+                idx = nextFree(first);
+                continue;
+            }
+            if (wrapped && idx >= hint){
+                break;
+            }
+            blks[off + found] = idx;
+            found++;
+            idx = nextFree(idx + 1);
+        }
+        if (found != count){
+            return false;
+        }
+
+        for (int i = 0; i < count; i++){
+            set(blks[off + i]);
+        }
+        if (count > 0){
+            hint = blks[off + count - 1] + 1;
+            if (hint >= size){
+                hint = first;
+            }
+        }
+        return true;
+    }
+
+    // number of free blocks
+    public int countFree(){
+        int n = 0;
+        for (int w = 0; w < words.length; w++){
+            n += Long.bitCount(~words[w]);
+        }
+        return n;
+    }
+}
@@ -0,0 +1,522 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+// shared block cache between File_System and IO_System
+// LRU eviction, a dirty bit per block and pinning, dirty blocks are only
+// written to the disk when evicted or flushed
+//
+// the cache is split into segments by block number, each with its own LRU
+// list and lock, so threads working on different blocks rarely meet
+//
+// prefetch and writeBehind hand work to a background thread: blocks read
+// into the cache before they are asked for, dirty blocks written to the
+// disk before they are evicted, so callers find them there or clean
+// both are hints, dropped when the background queue is full
+// the disk is read and written without a segment's lock: a frame being
+// read in, or evicted and being written back, makes only the callers of
+// that block wait
+public class Block_Cache{
+    public static final int DEFAULT_CAPACITY = 1024;  // blocks
+    public static final int SEGMENTS = 16;            // for capacities of 64 blocks and up
+    public static final int BACKGROUND_QUEUE = 256;   // runs waiting for the background thread
+
+    class Frame{
+        int blk = 0;
+        byte[] data;
+        boolean dirty = false;
+        int pins = 0;
+        boolean loading = false;    // being read from the disk, data not there yet
+        boolean writing = false;    // a copy being written behind
+    }
+
+    class Segment{
+        int capacity;
+        LinkedHashMap<Integer, Frame> frames = new LinkedHashMap<Integer, Frame>(16, 0.75f, true);
+        HashMap<Integer, Frame> leaving = new HashMap<Integer, Frame>();  // evicted, being written back
+        Frame spare;    // evicted frame kept for reuse
+        int busy = 0;   // reads and writes of the disk under way
+
+        // counters, updated with or without the lock
+        LongAdder hits = new LongAdder();
+        LongAdder misses = new LongAdder();
+        LongAdder evictions = new LongAdder();
+        LongAdder writeBacks = new LongAdder();
+        LongAdder prefetched = new LongAdder();
+        LongAdder writtenBehind = new LongAdder();
+
+        // frame of block i once no read of it is under way, null=not cached
+        // and no evicted copy of it on the way to the disk; lock held
+        Frame settle(int i){
+            while (true){
+                Frame f = frames.get(i);
+                if (f != null ? !f.loading : !leaving.containsKey(i)){
+                    return f;
+                }
+                waitIo();
+            }
+        }
+
+        // wait for a read or write of the disk to finish; lock held
+        void waitIo(){
+            try{
+                wait();
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // cached frame of block i, pinned, read from the disk on a miss
+        // without the lock; unpin when done with it
+        Frame load(int i){
+            Frame f;
+            ArrayList<Frame> out = new ArrayList<Frame>();
+            synchronized (this){
+                f = settle(i);
+                if (f != null){
+                    hits.increment();
+                    f.pins++;
+                    return f;
+                }
+                misses.increment();
+                f = newFrame(i, out);
+                f.loading = true;
+                f.pins++;
+                busy++;
+            }
+            writeOut(out);
+            read(f);
+            return f;
+        }
+
+        // read the data of a frame made loading, then let others at it
+        void read(Frame f){
+            boolean ok = false;
+            try{
+                io.readBlock(f.blk, f.data);
+                ok = true;
+            } finally{
+                synchronized (this){
+                    f.loading = false;
+                    busy--;
+                    if (!ok){
+                        f.pins--;
+                        if (frames.get(f.blk) == f){
+                            frames.remove(f.blk);
+                        }
+                    }
+                    notifyAll();
+                }
+            }
+        }
+
+        // new frame for block i, frames evicted dirty to make room are added
+        // to out for writeOut; lock held and settle(i) returned null
+        Frame newFrame(int i, ArrayList<Frame> out){
+            evict(1, out);
+            Frame f = spare;
+            spare = null;
+            if (f == null || f.data.length != io.blockSize()){
+                f = new Frame();
+                f.data = new byte[io.blockSize()];
+            }
+            f.blk = i;
+            f.dirty = false;
+            f.pins = 0;
+            f.loading = false;
+            f.writing = false;
+            frames.put(i, f);
+            return f;
+        }
+
+        // evict least recently used unpinned frames until room more fit, the
+        // dirty ones are added to out and kept in leaving until writeOut has
+        // written them; lock held
+        void evict(int room, ArrayList<Frame> out){
+            Iterator<Frame> it = frames.values().iterator();
+            while (frames.size() + room > capacity && it.hasNext()){
+                Frame f = it.next();
+                if (f.pins > 0 || f.loading || f.writing){
+                    continue;
+                }
+                it.remove();
+                evictions.increment();
+                if (f.dirty){
+                    leaving.put(f.blk, f);
+                    out.add(f);
+                    busy++;
+                }
+                else{
+                    spare = f;
+                }
+            }
+        }
+
+        // write the frames evict gave out, without the lock; one that fails
+        // goes back in the cache, still dirty, and the first failure is
+        // thrown once the rest are written
+        void writeOut(ArrayList<Frame> out){
+            RuntimeException failed = null;
+            for (Frame f : out){
+                boolean ok = false;
+                try{
+                    io.writeBlock(f.blk, f.data);
+                    ok = true;
+                    writeBacks.increment();
+                } catch (RuntimeException e){
+                    if (failed == null){
+                        failed = e;
+                    }
+                } finally{
+                    synchronized (this){
+                        leaving.remove(f.blk);
+                        busy--;
+                        if (!ok && !frames.containsKey(f.blk)){
+                            frames.put(f.blk, f);
+                        }
+                        notifyAll();
+                    }
+                }
+            }
+            if (failed != null){
+                throw failed;
+            }
+        }
+
+        // lock held, once nothing else is reading or writing the disk
+        void flush(){
+            while (busy > 0){
+                waitIo();
+            }
+            for (Frame f : frames.values()){
+                if (f.dirty){
+                    io.writeBlock(f.blk, f.data);
+                    f.dirty = false;
+                    writeBacks.increment();
+                }
+            }
+        }
+    }
+
+    private IO_System io;
+    private int capacity;
+    private Segment[] segs;
+
+    private ThreadPoolExecutor background;  // made on first use
+    private volatile int epoch = 0;         // changes when the disk is replaced
+
+    public Block_Cache(IO_System io, int capacity){
+        this.io = io;
+        this.capacity = Math.max(1, capacity);
+        this.segs = new Segment[this.capacity < 64 ? 1 : SEGMENTS];
+        for (int i = 0; i < segs.length; i++){
+            segs[i] = new Segment();
+        }
+        split();
+    }
+
+    // share the capacity out between the segments
+    private void split(){
+        for (int i = 0; i < segs.length; i++){
+            segs[i].capacity = Math.max(1, capacity / segs.length);
+        }
+    }
+
+    private Segment seg(int i){
+        return segs[i & (segs.length - 1)];
+    }
+
+    public int capacity(){
+        return capacity;
+    }
+
+    public void setCapacity(int capacity){
+        this.capacity = Math.max(1, capacity);
+        split();
+        for (Segment s : segs){
+            ArrayList<Frame> out = new ArrayList<Frame>();
+            synchronized (s){
+                s.evict(0, out);
+            }
+            s.writeOut(out);
+        }
+    }
+
+    public void readBlock(int i, byte[] p){
+        readBlock(i, p, 0);
+    }
+
+    public void writeBlock(int i, byte[] p){
+        writeBlock(i, p, 0);
+    }
+
+    // read block i into p[off..off+blockSize)
+    public void readBlock(int i, byte[] p, int off){
+        Segment s = seg(i);
+        Frame f = s.load(i);
+        synchronized (s){
+            System.arraycopy(f.data, 0, p, off, f.data.length);
+            f.pins--;
+        }
+    }
+
+    // write block i from p[off..off+blockSize), the disk is updated later
+    public void writeBlock(int i, byte[] p, int off){
+        Segment s = seg(i);
+        ArrayList<Frame> out = new ArrayList<Frame>();
+        synchronized (s){
+            Frame f = s.settle(i);
+            if (f == null){
+                // whole block overwritten, no need to read it
+                f = s.newFrame(i, out);
+            }
+            System.arraycopy(p, off, f.data, 0, f.data.length);
+            f.dirty = true;
+        }
+        s.writeOut(out);
+    }
+
+    // read block i into dst at its position, which advances a block
+    public void readBlock(int i, ByteBuffer dst){
+        Segment s = seg(i);
+        Frame f = s.load(i);
+        synchronized (s){
+            dst.put(f.data);
+            f.pins--;
+        }
+    }
+
+    // write block i from src at its position, which advances a block
+    public void writeBlock(int i, ByteBuffer src){
+        Segment s = seg(i);
+        ArrayList<Frame> out = new ArrayList<Frame>();
+        synchronized (s){
+            Frame f = s.settle(i);
+            if (f == null){
+                f = s.newFrame(i, out);
+            }
+            src.get(f.data);
+            f.dirty = true;
+        }
+        s.writeOut(out);
+    }
+
+    // keep block i resident and return its buffer, changes through it
+    // must be reported with unpin(i, true)
+    public byte[] pin(int i){
+        return seg(i).load(i).data;
+    }
+
+    public void unpin(int i, boolean dirty){
+        Segment s = seg(i);
+        ArrayList<Frame> out = new ArrayList<Frame>();
+        synchronized (s){
+            Frame f = s.frames.get(i);
+            if (f != null){
+                if (f.pins > 0)
+                    f.pins--;
+                if (dirty)
+                    f.dirty = true;
+            }
+            s.evict(0, out);
+        }
+        s.writeOut(out);
+    }
+
+    // read blocks [i, i+count) into the cache in the background, the ones
+    // there already are left as they are; the disk is read without the
+    // segment's lock, callers of a block being read wait for it alone
+    public void prefetch(int i, int count){
+        int e = epoch;
+        background().execute(() -> {
+            for (int b = i; b < i + count && e == epoch; b++){
+                Segment s = seg(b);
+                ArrayList<Frame> out = new ArrayList<Frame>();
+                Frame f = null;
+                synchronized (s){
+                    if (e == epoch && !s.frames.containsKey(b) && !s.leaving.containsKey(b) && b < io.blocks()){
+                        f = s.newFrame(b, out);
+                        f.loading = true;
+                        f.pins++;
+                        s.busy++;
+                    }
+                }
+                if (f != null){
+                    s.writeOut(out);
+                    s.read(f);
+                    synchronized (s){
+                        f.pins--;
+                    }
+                    s.prefetched.increment();
+                }
+            }
+        });
+    }
+
+    // write the dirty blocks of [i, i+count) to the disk in the background,
+    // they stay in the cache, clean; a copy is written without the
+    // segment's lock
+    public void writeBehind(int i, int count){
+        int e = epoch;
+        background().execute(() -> {
+            for (int b = i; b < i + count && e == epoch; b++){
+                Segment s = seg(b);
+                Frame f;
+                byte[] copy;
+                synchronized (s){
+                    f = s.frames.get(b);
+                    if (e != epoch || f == null || !f.dirty || f.pins > 0 || f.loading || f.writing){
+                        continue;
+                    }
+                    copy = f.data.clone();
+                    f.dirty = false;
+                    f.writing = true;
+                    s.busy++;
+                }
+                boolean ok = false;
+                try{
+                    io.writeBlock(b, copy);
+                    ok = true;
+                    s.writtenBehind.increment();
+                } finally{
+                    synchronized (s){
+                        f.writing = false;
+                        if (!ok){
+                            f.dirty = true;
+                        }
+                        s.busy--;
+                        s.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    // one daemon thread, gone when idle for a second
+    private synchronized ThreadPoolExecutor background(){
+        if (background == null){
+            background = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(BACKGROUND_QUEUE), r -> {
+                        Thread t = new Thread(r, "cache-background");
+                        t.setDaemon(true);
+                        return t;
+                    }, new ThreadPoolExecutor.DiscardPolicy());
+            background.allowCoreThreadTimeOut(true);
+        }
+        return background;
+    }
+
+    // write every dirty block back
+    public void flush(){
+        for (Segment s : segs){
+            synchronized (s){
+                s.flush();
+            }
+        }
+    }
+
+    // stop the background work queued so far, reads and writes of the disk
+    // under way are finished first, call before the disk is replaced or
+    // closed
+    public void quiesce(){
+        epoch++;
+        for (Segment s : segs){
+            synchronized (s){
+                while (s.busy > 0){
+                    s.waitIo();
+                }
+            }
+        }
+    }
+
+    // drop every block without writing back, the disk was replaced
+    public void invalidate(){
+        epoch++;
+        for (Segment s : segs){
+            synchronized (s){
+                while (s.busy > 0){
+                    s.waitIo();
+                }
+                s.frames.clear();
+                s.spare = null;
+            }
+        }
+    }
+
+    public int size(){
+        int n = 0;
+        for (Segment s : segs){
+            synchronized (s){
+                n += s.frames.size();
+            }
+        }
+        return n;
+    }
+
+    public long hits(){
+        long n = 0;
+        for (Segment s : segs){
+            n += s.hits.sum();
+        }
+        return n;
+    }
+
+    public long misses(){
+        long n = 0;
+        for (Segment s : segs){
+            n += s.misses.sum();
+        }
+        return n;
+    }
+
+    public long evictions(){
+        long n = 0;
+        for (Segment s : segs){
+            n += s.evictions.sum();
+        }
+        return n;
+    }
+
+    public long writeBacks(){
+        long n = 0;
+        for (Segment s : segs){
+            n += s.writeBacks.sum();
+        }
+        return n;
+    }
+
+    // blocks read ahead of use and dirty blocks written before eviction
+    public long prefetched(){
+        long n = 0;
+        for (Segment s : segs){
+            n += s.prefetched.sum();
+        }
+        return n;
+    }
+
+    public long writtenBehind(){
+        long n = 0;
+        for (Segment s : segs){
+            n += s.writtenBehind.sum();
+        }
+        return n;
+    }
+
+    public void resetStats(){
+        for (Segment s : segs){
+            s.hits.reset();
+            s.misses.reset();
+            s.evictions.reset();
+            s.writeBacks.reset();
+            s.prefetched.reset();
+            s.writtenBehind.reset();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+import java.io.IOException;
+
+
+// storage behind IO_System, a fixed number of fixed size blocks
+public interface Block_Device{
+    // number of blocks
+    int blocks();
+
+    // bytes per block
+    int blockSize();
+
+    // read block i into p[off..off+blockSize)
+    void read(int i, byte[] p, int off);
+
+    // write block i from p[off..off+blockSize)
+    void write(int i, byte[] p, int off);
+
+    // zero every block
+    void clear();
+
+    // an empty device of the same kind with a new geometry, this one is
+    // no longer usable afterwards
+    Block_Device resize(int numBlocks, int blockSize);
+
+    // push written blocks to stable storage, no-op for memory devices
+    void force() throws IOException;
+
+    // push blocks [first, first+n) to stable storage, those before any
+    // written after this returns
+    void force(int first, int n) throws IOException;
+
+    void close() throws IOException;
+}
@@ -0,0 +1,58 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+// a device over ByteBuffers, split into chunks of at most 1 GiB since a
+// buffer is int indexed
+public abstract class Buffer_Device implements Block_Device{
+    public static final int MAX_CHUNK = 1 << 30;
+
+    protected ByteBuffer[] chunks;
+    protected int numBlocks;
+    protected int blockSize;
+    protected int chunkBlocks;  // blocks per chunk
+
+    protected Buffer_Device(int numBlocks, int blockSize){
+        this.numBlocks = numBlocks;
+        this.blockSize = blockSize;
+        this.chunkBlocks = Math.max(1, MAX_CHUNK / blockSize);
+        this.chunks = new ByteBuffer[(numBlocks + chunkBlocks - 1) / chunkBlocks];
+    }
+
+    // bytes held by chunk c
+    protected long chunkBytes(int c){
+        return (long)Math.min(chunkBlocks, numBlocks - c * chunkBlocks) * blockSize;
+    }
+
+    public int blocks(){
+        return numBlocks;
+    }
+
+    public int blockSize(){
+        return blockSize;
+    }
+
+    public void read(int i, byte[] p, int off){
+        chunks[i / chunkBlocks].get((i % chunkBlocks) * blockSize, p, off, blockSize);
+    }
+
+    public void write(int i, byte[] p, int off){
+        chunks[i / chunkBlocks].put((i % chunkBlocks) * blockSize, p, off, blockSize);
+    }
+
+    public void clear(){
+        byte[] zero = new byte[blockSize];
+        for (int i = 0; i < numBlocks; i++){
+            write(i, zero, 0);
+        }
+    }
+
+    public void force() throws IOException{
+    }
+
+    public void force(int first, int n) throws IOException{
+    }
+
+    public void close() throws IOException{
+    }
+}
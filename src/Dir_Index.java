@@ -0,0 +1,99 @@
+import java.util.HashMap;
+import java.util.TreeSet;
+
+
+// in-memory index over the directory file, the directory on disk stays
+// the source of truth and this is rebuilt whenever the directory is opened
+public class Dir_Index{
+    public static final int ENTRY_SIZE = 8;    // 4 bytes name + 4 bytes descriptor
+
+    class Entry{
+        int slot = 0;   // entry number in the directory file
+        int index = 0;  // descriptor index
+    }
+
+    private HashMap<String, Entry> entries;
+    private TreeSet<Integer> freeSlots;     // empty entries, lowest first
+    private int numSlots;                   // entries in the directory file
+
+    public Dir_Index(){
+        entries = new HashMap<String, Entry>();
+        freeSlots = new TreeSet<Integer>();
+        numSlots = 0;
+    }
+
+    public void clear(){
+        entries.clear();
+        freeSlots.clear();
+        numSlots = 0;
+    }
+
+    // add the next entry read from the directory file
+    public void load(byte[] entry){
+        String fname = IO_System.unpackStr(entry, 0);
+        if (fname.isEmpty()){
+            freeSlots.add(numSlots);
+        }
+        else if (!entries.containsKey(fname)){
+            // first entry wins, same as a directory scan
+            entries.put(fname, newEntry(numSlots, IO_System.unpack(entry, 4)));
+        }
+        numSlots++;
+    }
+
+    // descriptor index of the named file, -1=not found
+    public int lookup(String fname){
+        Entry e = entries.get(fname);
+        return e == null ? -1 : e.index;
+    }
+
+    // directory slot of the named file, -1=not found
+    public int slotOf(String fname){
+        Entry e = entries.get(fname);
+        return e == null ? -1 : e.slot;
+    }
+
+    public boolean contains(String fname){
+        return entries.containsKey(fname);
+    }
+
+    // slot the next create should use, either a hole or the end of the file
+    public int freeSlot(){
+        if (freeSlots.isEmpty()){
+            return numSlots;
+        }
+        return freeSlots.first();
+    }
+
+    // record an entry written at slot
+    public void put(String fname, int slot, int index){
+        entries.put(fname, newEntry(slot, index));
+
+        freeSlots.remove(slot);
+        if (slot >= numSlots){
+            for (int i = numSlots; i < slot; i++){
+                freeSlots.add(i);
+            }
+            numSlots = slot + 1;
+        }
+    }
+
+    // forget the named entry, its slot becomes reusable
+    public void remove(String fname){
+        Entry e = entries.remove(fname);
+        if (e != null){
+            freeSlots.add(e.slot);
+        }
+    }
+
+    private Entry newEntry(int slot, int index){
+        Entry e = new Entry();
+        e.slot = slot;
+        e.index = index;
+        return e;
+    }
+
+    public int size(){
+        return entries.size();
+    }
+}
@@ -0,0 +1,14 @@
+import java.util.List;
+
+
+// one page of a directory listing and the token to ask for the next one
+// with, tokens are only good for the directory that gave them
+public class Dir_Page{
+    public final List<String> names;
+    public final String next;   // null=last page
+
+    public Dir_Page(List<String> names, String next){
+        this.names = names;
+        this.next = next;
+    }
+}
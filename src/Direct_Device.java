@@ -0,0 +1,18 @@
+import java.nio.ByteBuffer;
+
+
+// the disk in off-heap direct buffers, large disks add no GC pressure
+public class Direct_Device extends Buffer_Device{
+
+    public Direct_Device(int numBlocks, int blockSize){
+        super(numBlocks, blockSize);
+        for (int c = 0; c < chunks.length; c++){
+            chunks[c] = ByteBuffer.allocateDirect((int)chunkBytes(c));
+        }
+    }
+
+    public Block_Device resize(int numBlocks, int blockSize){
+        chunks = null;
+        return new Direct_Device(numBlocks, blockSize);
+    }
+}
@@ -0,0 +1,48 @@
+import java.util.function.Predicate;
+
+
+// names of the files and their descriptor indexes, kept in the directory
+// file (descriptor 0)
+// the caller holds the directory lock, shared to look up and list,
+// exclusive to change it
+public interface Directory{
+    // the directory file, positions are bytes from its start
+    interface Store{
+        int length();
+
+        // read count bytes at pos into data[off..], return bytes read
+        int read(int pos, byte[] data, int off, int count);
+
+        // write count bytes from data[off..] at pos, growing the file,
+        // return false=disk full
+        boolean write(int pos, byte[] data, int off, int count);
+    }
+
+    // the directory file was opened, read what is needed of it, an empty
+    // file is set up as an empty directory, return entries looked at
+    int load();
+
+    // can a file be called fname
+    boolean validName(String fname);
+
+    // descriptor index of the named file, -1=not found
+    int lookup(String fname);
+
+    // add a name, return false=no room
+    boolean add(String fname, int index);
+
+    // remove a name, return false=not found or no room
+    boolean remove(String fname);
+
+    // give each name from <= name < to (null=no bound) to each, starting
+    // at cursor (null=the first), until it returns false, return the cursor
+    // of the entry after the last one given, null=none left
+    // a cursor means nothing to another directory, bad ones throw
+    // IllegalArgumentException
+    String list(String from, String to, String cursor, Predicate<String> each);
+
+    // true if list gives the names in order
+    boolean sorted();
+
+    int size();
+}
@@ -0,0 +1,133 @@
+// disk geometry, stored as the superblock at the start of block 0
+//
+// layout: block 0 starts with the header, the bitmap follows it and runs on
+// into as many blocks as needed, then the descriptor blocks, the snapshot
+// area when there is one, then data
+public class Disk_Geometry{
+    public static final int MAGIC = 0x46535953;    // "FSYS"
+    public static final int HEADER_SIZE = 24;      // 6 ints
+    public static final int MAX_HEADER_SIZE = 28;  // and snapBlocks with FLAG_SNAPSHOTS
+
+    // flags
+    public static final int FLAG_EXTENTS = 1;      // descriptors hold extents, not 3 direct blocks
+    public static final int FLAG_BTREE = 2;        // the directory is a B+tree, not 8 byte entries
+    public static final int FLAG_SNAPSHOTS = 4;    // blocks set aside for snapshots, see Snapshot_Store
+
+    public static final int SNAP_MIN_BLOCKS = 4;   // smallest snapshot area
+
+    // 64 blocks of 64 bytes, 24 descriptors, 4 oft entries
+    public static final Disk_Geometry DEFAULT = new Disk_Geometry(IO_System.L, IO_System.B,
+            File_System.NUM_DESCRIPTORS, File_System.OFT_SIZE);
+
+    public final int numBlocks;
+    public final int blockSize;
+    public final int numDescriptors;
+    public final int oftSize;
+    public final int flags;
+    public final int snapBlocks;       // snapshot area, 0=none
+
+    // derived layout
+    public final int headerSize;       // bytes before the bitmap
+    public final int descPerBlk;
+    public final int bitmapBlocks;     // blocks holding the header and bitmap
+    public final int descStart;        // first descriptor block
+    public final int snapStart;        // first block of the snapshot area
+    public final int dataStart;        // first data block (= K)
+
+    // no snapshot area, withSnapshots sets one aside
+    public Disk_Geometry(int numBlocks, int blockSize, int numDescriptors, int oftSize){
+        this(numBlocks, blockSize, numDescriptors, oftSize, FLAG_EXTENTS);
+    }
+
+    public Disk_Geometry(int numBlocks, int blockSize, int numDescriptors, int oftSize, int flags){
+        this(numBlocks, blockSize, numDescriptors, oftSize, flags, 0);
+    }
+
+    // FLAG_SNAPSHOTS goes with snapBlocks > 0, whatever flags says
+    public Disk_Geometry(int numBlocks, int blockSize, int numDescriptors, int oftSize, int flags, int snapBlocks){
+        if (blockSize < MAX_HEADER_SIZE || blockSize % File_System.DESC_SIZE != 0){
+            throw new IllegalArgumentException("bad block size " + blockSize);
+        }
+        if (numDescriptors < 1 || oftSize < 2 || numBlocks < 1){
+            throw new IllegalArgumentException("bad geometry");
+        }
+        if (snapBlocks != 0 && (snapBlocks < SNAP_MIN_BLOCKS || snapBlocks >= numBlocks)){
+            throw new IllegalArgumentException("bad snapshot area " + snapBlocks);
+        }
+        if ((flags & FLAG_BTREE) != 0 && BTree_Directory.maxName(blockSize) < File_System.FILE_NAME_LEN){
+            throw new IllegalArgumentException("block size " + blockSize + " too small for a B+tree directory");
+        }
+        this.numBlocks = numBlocks;
+        this.blockSize = blockSize;
+        this.numDescriptors = numDescriptors;
+        this.oftSize = oftSize;
+        this.flags = snapBlocks > 0 ? flags | FLAG_SNAPSHOTS : flags & ~FLAG_SNAPSHOTS;
+        this.snapBlocks = snapBlocks;
+
+        headerSize = snapBlocks > 0 ? MAX_HEADER_SIZE : HEADER_SIZE;
+        descPerBlk = blockSize / File_System.DESC_SIZE;
+        bitmapBlocks = (int)((headerSize + (numBlocks + 7L) / 8 + blockSize - 1) / blockSize);
+        descStart = bitmapBlocks;
+        snapStart = descStart + (numDescriptors + descPerBlk - 1) / descPerBlk;
+        dataStart = snapStart + snapBlocks;
+        if (dataStart >= numBlocks){
+            throw new IllegalArgumentException("no room for data blocks");
+        }
+    }
+
+    public Disk_Geometry withFlags(int f){
+        return new Disk_Geometry(numBlocks, blockSize, numDescriptors, oftSize, f, snapBlocks);
+    }
+
+    // the same with a snapshot area of blocks, 0=none
+    public Disk_Geometry withSnapshots(int blocks){
+        return new Disk_Geometry(numBlocks, blockSize, numDescriptors, oftSize, flags, blocks);
+    }
+
+    // total image size in bytes
+    public long diskSize(){
+        return (long)numBlocks * blockSize;
+    }
+
+    // block holding descriptor idx
+    public int descBlock(int idx){
+        return descStart + idx / descPerBlk;
+    }
+
+    // write the header into the first block
+    public void pack(byte[] blk){
+        IO_System.packArr(blk, new int[]{MAGIC, numBlocks, blockSize, numDescriptors, oftSize, flags}, 0);
+        if (snapBlocks > 0){
+            IO_System.pack(blk, snapBlocks, HEADER_SIZE);
+        }
+    }
+
+    // read the header from the first block, null=no superblock
+    public static Disk_Geometry unpack(byte[] blk){
+        if (blk.length < HEADER_SIZE || IO_System.unpack(blk, 0) != MAGIC){
+            return null;
+        }
+        int[] v = IO_System.unpackArr(blk, 4, 5);
+        int snap = 0;
+        if ((v[4] & FLAG_SNAPSHOTS) != 0){
+            if (blk.length < MAX_HEADER_SIZE){
+                return null;
+            }
+            snap = IO_System.unpack(blk, HEADER_SIZE);
+            if (snap == 0){
+                return null;
+            }
+        }
+        try{
+            return new Disk_Geometry(v[0], v[1], v[2], v[3], v[4], snap);
+        } catch (IllegalArgumentException e){
+            return null;
+        }
+    }
+
+    public boolean sameLayout(Disk_Geometry o){
+        return numBlocks == o.numBlocks && blockSize == o.blockSize
+                && numDescriptors == o.numDescriptors && oftSize == o.oftSize && flags == o.flags
+                && snapBlocks == o.snapBlocks;
+    }
+}
@@ -0,0 +1,250 @@
+import java.util.Arrays;
+
+
+// logical to physical block map of one file, a list of extents (start, length)
+// an extent starting at block 0 (the superblock, never data) is a hole, blocks
+// of the file that read as zeros and take no room on the disk
+//
+// the descriptor holds the first extent inline, the rest live in a chain of
+// extent map blocks: int next map block (-1=none), int count, count pairs
+public class Extent_Map{
+    public static final int MAP_HEADER = 2;    // next, count
+
+    private int count = 0;          // number of extents
+    private int[] start = new int[4];
+    private int[] len = new int[4];
+    private int[] logical = new int[4];     // first logical block of each extent
+    private int blocks = 0;         // total logical blocks
+
+    private int[] mapBlks = new int[1];     // extent map block chain
+    private int numMapBlks = 0;
+
+    private int last = 0;   // extent of the last lookup, sequential access hits it
+
+    // extents that fit in one map block
+    public static int perBlock(int blockSize){
+        return (blockSize / 4 - MAP_HEADER) / 2;
+    }
+
+    public int count(){
+        return count;
+    }
+
+    public int blocks(){
+        return blocks;
+    }
+
+    public int start(int i){
+        return start[i];
+    }
+
+    public int length(int i){
+        return len[i];
+    }
+
+    // physical block of logical block n, 0=in a hole, -1=past the end
+    public int lookup(int n){
+        int e = find(n);
+        return e < 0 ? -1 : start[e] == 0 ? 0 : start[e] + (n - logical[e]);
+    }
+
+    // contiguous blocks from logical block n to the end of its extent, 0=past the end
+    public int runLength(int n){
+        int e = find(n);
+        return e < 0 ? 0 : len[e] - (n - logical[e]);
+    }
+
+    // extent holding logical block n, -1=past the end
+    public int extentOf(int n){
+        return find(n);
+    }
+
+    // physical block after the last one of the file on the disk, -1=none
+    public int end(){
+        for (int e = count - 1; e >= 0; e--){
+            if (start[e] != 0){
+                return start[e] + len[e];
+            }
+        }
+        return -1;
+    }
+
+    // blocks of the file on the disk, holes left out
+    public int allocated(){
+        int n = 0;
+        for (int e = 0; e < count; e++){
+            if (start[e] != 0){
+                n += len[e];
+            }
+        }
+        return n;
+    }
+
+    // extent holding logical block n, -1=past the end
+    private int find(int n){
+        if (n < 0 || n >= blocks){
+            return -1;
+        }
+        int e = last;
+        if (n >= logical[e] && n < logical[e] + len[e]){
+            return e;
+        }
+        if (e + 1 < count && n >= logical[e+1] && n < logical[e+1] + len[e+1]){
+            last = e + 1;
+            return e + 1;
+        }
+
+        int lo = 0;
+        int hi = count - 1;
+        while (lo < hi){
+            int mid = (lo + hi + 1) >>> 1;
+            if (logical[mid] <= n)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        last = lo;
+        return lo;
+    }
+
+    // append a run of physical blocks (phys=0 a hole), merged into the last
+    // extent when contiguous
+    public void add(int phys, int n){
+        if (n <= 0){
+            return;
+        }
+        if (count > 0 && (start[count-1] == 0 ? phys == 0 : start[count-1] + len[count-1] == phys)){
+            len[count-1] += n;
+        }
+        else{
+            if (count == start.length){
+                start = grow(start);
+                len = grow(len);
+                logical = grow(logical);
+            }
+            start[count] = phys;
+            len[count] = n;
+            logical[count] = blocks;
+            count++;
+        }
+        blocks += n;
+    }
+
+    // map logical blocks [n, n+cnt) of the file to phys.. (phys=0 a hole),
+    // splitting the extents they were in and merging with the neighbours
+    public void replace(int n, int cnt, int phys){
+        int oldCount = count;
+        int[] os = Arrays.copyOf(start, oldCount);
+        int[] ol = Arrays.copyOf(len, oldCount);
+        int[] olog = Arrays.copyOf(logical, oldCount);
+
+        count = 0;
+        blocks = 0;
+        last = 0;
+        for (int e = 0; e < oldCount; e++){
+            int lo = olog[e];
+            int hi = lo + ol[e];
+            int a = Math.min(hi, n);
+            if (a > lo){
+                add(os[e], a - lo);
+            }
+            if (n >= lo && n < hi){
+                add(phys, cnt);
+            }
+            int b = Math.max(lo, n + cnt);
+            if (hi > b){
+                add(os[e] == 0 ? 0 : os[e] + (b - lo), hi - b);
+            }
+        }
+    }
+
+    // drop everything past the first n logical blocks
+    public void truncate(int n){
+        while (count > 0 && logical[count-1] >= n){
+            count--;
+        }
+        if (count > 0 && logical[count-1] + len[count-1] > n){
+            len[count-1] = n - logical[count-1];
+        }
+        blocks = count > 0 ? logical[count-1] + len[count-1] : 0;
+        if (last >= count){
+            last = 0;
+        }
+    }
+
+    // map blocks needed for the extents past the inline one
+    public int mapBlocksNeeded(int blockSize){
+        int cap = perBlock(blockSize);
+        return count <= 1 ? 0 : (count - 1 + cap - 1) / cap;
+    }
+
+    public int numMapBlocks(){
+        return numMapBlks;
+    }
+
+    public int mapBlock(int i){
+        return mapBlks[i];
+    }
+
+    public void addMapBlock(int blk){
+        if (numMapBlks == mapBlks.length){
+            mapBlks = grow(mapBlks);
+        }
+        mapBlks[numMapBlks++] = blk;
+    }
+
+    // forget the last map block, return its block number
+    public int removeMapBlock(){
+        return mapBlks[--numMapBlks];
+    }
+
+    // map block holding extent e (e >= 1)
+    public static int mapBlockOf(int e, int blockSize){
+        return (e - 1) / perBlock(blockSize);
+    }
+
+    // pack map block i into buf
+    public void packBlock(int i, byte[] buf, int blockSize){
+        int cap = perBlock(blockSize);
+        int first = 1 + i * cap;
+        int n = Math.max(0, Math.min(cap, count - first));
+
+        IO_System.pack(buf, i + 1 < numMapBlks ? mapBlks[i+1] : -1, 0);
+        IO_System.pack(buf, n, 4);
+        for (int k = 0; k < cap; k++){
+            int loc = (MAP_HEADER + k * 2) * 4;
+            IO_System.pack(buf, k < n ? start[first+k] : 0, loc);
+            IO_System.pack(buf, k < n ? len[first+k] : 0, loc + 4);
+        }
+    }
+
+    // append the extents stored in a map block, return the next map block
+    public int unpackBlock(byte[] buf, int blockSize){
+        int n = Math.min(IO_System.unpack(buf, 4), perBlock(blockSize));
+        for (int k = 0; k < n; k++){
+            int loc = (MAP_HEADER + k * 2) * 4;
+            int s = IO_System.unpack(buf, loc);
+            int l = IO_System.unpack(buf, loc + 4);
+            if (l > 0){
+                // stored extents are never merged
+                if (count == start.length){
+                    start = grow(start);
+                    len = grow(len);
+                    logical = grow(logical);
+                }
+                start[count] = s;
+                len[count] = l;
+                logical[count] = blocks;
+                count++;
+                blocks += l;
+            }
+        }
+        return IO_System.unpack(buf, 0);
+    }
+
+    private static int[] grow(int[] a){
+        int[] b = new int[a.length * 2];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+}
@@ -1,565 +1,2355 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class File_System{
-    public static final int DATA_BLK_START = 7;    // = K
+    public static final int DATA_BLK_START = 7;    // = K with the default geometry
     public static final int NUM_DESCRIPTORS = 24;  // start from blk 1 to 6
                                                         // each descriptor=4 ints=16 bytes
                                                         // each block=4 descriptors
     public static final int NUM_DESC_PER_BLK = 4;
     public static final int DESC_SIZE = 16;        // 16 bytes
+    public static final int DESC_INTS = 4;         // length, first extent start and length,
+                                                        // extent map block
 
     public static final int OFT_SIZE = 4;
     public static final int FILE_NAME_LEN = 4;
 
+    public static final int LOCK_STRIPES = 64;     // descriptor locks, a power of 2
+
+    public static final int READ_AHEAD_MIN = 4;    // blocks, first window of a sequential reader
+    public static final int READ_AHEAD_MAX = 64;   // blocks, default largest window
+
+    public static final int CHECK_FILES = 8;       // descriptors per check task
+    public static final int CHECK_BLOCKS = 1 << 16;    // bitmap blocks per check task
+
+    private Disk_Geometry geo;
     private IO_System io;
-    private OFTEntry[] oft;
+    private Block_Cache cache;
+    private Directory dir;
+    private final Directory.Store dirFile = new DirFile();
+    private Fs_Stats stats;
+
+    // open file handles, handle 0 is the directory, and the open files they
+    // share by descriptor index
+    private Handle_Table<OFTEntry> oft;
+    private HashMap<Integer, OpenFile> files;
+
+    // write-through copy of descriptor blocks, DESC_INTS ints per descriptor
+    private int[] descTable;
+    private int freeHint = 0;   // descriptors before this one are in use
+    private byte[] descBuf;
+
+    // extent maps, loaded per descriptor on first use
+    private AtomicReferenceArray<Extent_Map> maps;
+    private byte[] mapBuf;
+    private byte[] zeroBuf;     // a block of zeros, what a hole reads as
+
+    // in-memory copy of the superblock and bitmap blocks
+    private Block_Bitmap bitmap;
+    private byte[] bitmapBuf;
+
+    // blocks a sequential reader gets read ahead at most, 0=off, and whether
+    // a sequential writer's finished blocks are written behind it
+    private volatile int readAhead = 0;
+    private volatile boolean writeBehind = false;
+
+    // mounted on a snapshot, every call that would change the disk fails
+    private final boolean readOnly;
+
+    // metadata journal of the image last loaded or saved, when journaling
+    private boolean journaling = false;
+    private Journal journal;
+
+    // locks, always taken in this order:
+    // fsLock    shared by every call, exclusive to format, load and save the disk
+    // dirLock   the directory index, exclusive to create and destroy
+    // stripes   open file state and extents of the descriptors they cover
+    // oftLock   the handle table and open files map
+    // metaLock  bitmap, descriptor table and their buffers
+    private final ReentrantReadWriteLock fsLock = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock dirLock = new ReentrantReadWriteLock();
+    private final ReentrantReadWriteLock[] stripes = new ReentrantReadWriteLock[LOCK_STRIPES];
+    private final Object oftLock = new Object();
+    private final Object metaLock = new Object();
+
+    // a file open through one or more handles
+    class OpenFile{
+        byte[] buffer = new byte[geo.blockSize];
+        int blk = -1;           // logical block in the buffer, -1=none
+        boolean dirty = false;  // buffer changed since it was read
+        int index = 0;  // descriptor index
+        ArrayList<Integer> handles = new ArrayList<Integer>(2);     // handles on it
+    }
 
+    // a handle, each with its own position
     class OFTEntry{
-        byte[] buffer = new byte[IO_System.B];
+        OpenFile file;
         int pos = 0;
-        int index = 0;  // descriptor index
+        int next = 0;   // where the last read or write ended, a call from there is sequential
+        int window = 0; // read-ahead window in blocks, 0=not reading sequentially
+        int ahead = 0;  // logical block read ahead up to
+        int behind = 0; // logical block written behind up to
     }
     
     // default constructor
     public File_System(){
-        io = new IO_System();
-        oft = new OFTEntry[OFT_SIZE];
-        init();
+        this(Disk_Geometry.DEFAULT);
+    }
+
+    public File_System(Disk_Geometry geo){
+        this(new Heap_Device(geo.numBlocks, geo.blockSize), geo);
+    }
+
+    // use a block device, mount the file system on it or format it with
+    // geo when it holds none
+    public File_System(Block_Device dev, Disk_Geometry geo){
+        for (int i = 0; i < stripes.length; i++){
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+        io = new IO_System(dev);
+        stats = io.stats();
+        readOnly = dev instanceof Snapshot_Device && !((Snapshot_Device)dev).isWritable();
+        cache = new Block_Cache(io, Block_Cache.DEFAULT_CAPACITY);
+        if (dev instanceof Mapped_Device){
+            // reads from an image file may wait for the disk
+            readAhead = READ_AHEAD_MAX;
+            writeBehind = true;
+        }
+        if (hasFileSystem()){
+            mountDisk();
+        }
+        else{
+            mount(geo);
+            init();
+        }
+    }
+
+    // open a memory-mapped image file, it is formatted with geo when new or
+    // empty; IOException when an existing one is not as long as its
+    // superblock says, or without one, as geo says
+    public static File_System mapImage(String fname, Disk_Geometry geo) throws IOException{
+        Disk_Geometry g = geo;
+        File f = new File(fname);
+        long len = f.length();
+        if (len > 0){
+            Disk_Geometry old = null;
+            if (len >= Disk_Geometry.MAX_HEADER_SIZE){
+                byte[] first = new byte[Disk_Geometry.MAX_HEADER_SIZE];
+                DataInputStream in = new DataInputStream(new FileInputStream(f));
+                try{
+                    in.readFully(first);
+                } finally{
+                    in.close();
+                }
+                old = Disk_Geometry.unpack(first);
+            }
+            if (old != null){
+                g = old;
+            }
+            if (len != g.diskSize()){
+                throw new IOException(fname + " is " + len + " bytes, not the " + g.diskSize()
+                        + " of its " + (old != null ? "superblock" : "geometry"));
+            }
+        }
+        return new File_System(new Mapped_Device(fname, g.numBlocks, g.blockSize), geo);
+    }
+
+    // size the in-memory tables for a geometry
+    private void mount(Disk_Geometry g){
+        if (geo == null || !geo.sameLayout(g)){
+            geo = g;
+            oft = new Handle_Table<OFTEntry>(OFT_SIZE, geo.oftSize);
+            files = new HashMap<Integer, OpenFile>();
+            descTable = new int[geo.numDescriptors * DESC_INTS];
+            descBuf = new byte[geo.blockSize];
+            maps = new AtomicReferenceArray<Extent_Map>(geo.numDescriptors);
+            mapBuf = new byte[geo.blockSize];
+            zeroBuf = new byte[geo.blockSize];
+            bitmap = new Block_Bitmap(geo.numBlocks, geo.dataStart);
+            bitmapBuf = new byte[geo.bitmapBlocks * geo.blockSize];
+            dir = (geo.flags & Disk_Geometry.FLAG_BTREE) != 0 ? new BTree_Directory(dirFile, geo.blockSize)
+                    : new Flat_Directory(dirFile);
+        }
+    }
+
+    // the block cache in front of the disk
+    public Block_Cache cache(){
+        return cache;
+    }
+
+    // counters and latencies of the disk and every operation
+    public Fs_Stats stats(){
+        return stats;
+    }
+
+    public Disk_Geometry geometry(){
+        return geo;
+    }
+
+    // format a new disk with the given geometry
+    public void format(Disk_Geometry g){
+        checkWritable();
+        fsLock.writeLock().lock();
+        try{
+            mount(g);
+            init();
+        } finally{
+            fsLock.writeLock().unlock();
+        }
     }
 
     // init the file system
     public void init(){
-        io.clear();
-        byte[] buf = new byte[IO_System.B];
+        checkWritable();
+        fsLock.writeLock().lock();
+        try{
+            initDisk();
+        } finally{
+            fsLock.writeLock().unlock();
+        }
+    }
 
-        // first K blocks are used
-        for (int i = 0; i < DATA_BLK_START; i++){
-            IO_System.setBit(buf, true, i);
+    private void initDisk(){
+        closeJournal();
+        cache.quiesce();
+        if (io.blocks() != geo.numBlocks || io.blockSize() != geo.blockSize){
+            io.resize(geo.numBlocks, geo.blockSize);
         }
+        else{
+            io.clear();
+        }
+        cache.invalidate();
 
+        // superblock, then the first K blocks are used
+        byte[] buf = new byte[geo.blockSize];
+        geo.pack(buf);
         io.writeBlock(0, buf);
+        io.snapshots().open();
+        loadBitmap();
+        bitmap.setRange(0, geo.dataStart, true);
+        flushBitmap();
 
         // clear oft entries
-        for (int i = 0; i < OFT_SIZE; i++){
-            oft[i] = null;
-        }
+        oft.clear();
+        files.clear();
 
         // init directory descritpor, each descriptor = 4 ints
-        io.readBlock(1, buf);
-        // length=0, 3blk=-1, -1, -1, blk=-1 mean unused
-        IO_System.packArr(buf, new int[]{0, -1, -1, -1}, 0);
-        io.writeBlock(1, buf);
+        loadDescTable();
+        // length=0, no extent, no map block
+        writeDesc(0, new int[]{0, -1, 0, -1});
 
         openDir();
     }
 
     // open the directory
     private void openDir(){
-        if (oft[0] != null){
+        if (oft.get(0) != null){
             return;
         }
 
         // open directory as first file
-        oft[0] = new OFTEntry();
+        newHandle(0);
+
+        loadDirIndex();
+    }
+
+    // read the directory file as its format needs
+    private void loadDirIndex(){
+        stats.dirScan(dir.load());
+    }
+
+    // the directory file, each access holds the stripe of descriptor 0
+    class DirFile implements Directory.Store{
+        public int length(){
+            stripe(0).writeLock().lock();
+            try{
+                return descLen(0);
+            } finally{
+                stripe(0).writeLock().unlock();
+            }
+        }
+
+        public int read(int pos, byte[] data, int off, int count){
+            stripe(0).writeLock().lock();
+            try{
+                return pread(0, pos, data, off, count);
+            } finally{
+                stripe(0).writeLock().unlock();
+            }
+        }
+
+        public boolean write(int pos, byte[] data, int off, int count){
+            stripe(0).writeLock().lock();
+            try{
+                return pwrite(0, pos, data, off, count);
+            } finally{
+                stripe(0).writeLock().unlock();
+            }
+        }
+    }
+
+    // read the superblock and bitmap blocks into the allocator
+    private void loadBitmap(){
+        for (int i = 0; i < geo.bitmapBlocks; i++){
+            cache.readBlock(i, bitmapBuf, i * geo.blockSize);
+        }
+        bitmap.load(bitmapBuf, geo.headerSize);
+    }
+
+    // write the changed bitmap blocks back
+    private void flushBitmap(){
+        int lo = bitmap.dirtyFirstByte();
+        if (lo < 0){
+            return;
+        }
+        int hi = bitmap.dirtyLastByte();
+        bitmap.storeDirty(bitmapBuf, geo.headerSize);
+
+        int first = (geo.headerSize + lo) / geo.blockSize;
+        int last = (geo.headerSize + hi) / geo.blockSize;
+        for (int i = first; i <= last; i++){
+            metaWrite(i, bitmapBuf, i * geo.blockSize);
+        }
+    }
+
+    // log a metadata block to the journal, which pins it in the cache until
+    // it is committed, then write it there
+    private void metaWrite(int blk, byte[] buf, int off){
+        Journal j = journal;
+        if (j != null){
+            j.log(blk, buf, off);
+        }
+        cache.writeBlock(blk, buf, off);
+    }
+
+    // commit what the journal holds before the cache writes every block out
+    private void commitJournal(){
+        if (journal != null){
+            journal.commitAll();
+        }
+    }
+
+    // read all descriptor blocks into the descriptor table
+    private void loadDescTable(){
+        for (int i = 0; i < maps.length(); i++){
+            maps.set(i, null);
+        }
+        freeHint = 0;
+
+        int ints = geo.descPerBlk * DESC_INTS;
+        for (int i = 0; i < geo.numDescriptors; i += geo.descPerBlk){
+            cache.readBlock(geo.descBlock(i), descBuf);
+            for (int p = 0; p < ints && i * DESC_INTS + p < descTable.length; p++){
+                descTable[i * DESC_INTS + p] = IO_System.unpack(descBuf, p * 4);
+            }
+        }
+    }
+
+    // write the block holding descriptor idx from the table
+    private void flushDesc(int idx){
+        int first = idx - idx % geo.descPerBlk;
+        int ints = geo.descPerBlk * DESC_INTS;
+        for (int p = 0; p < ints; p++){
+            int t = first * DESC_INTS + p;
+            IO_System.pack(descBuf, t < descTable.length ? descTable[t] : 0, p * 4);
+        }
+        metaWrite(geo.descBlock(idx), descBuf, 0);
+    }
+
+    // file length of descriptor idx
+    private int descLen(int idx){
+        return descTable[idx * DESC_INTS];
+    }
+
+    // physical block of the n-th block of descriptor idx, -1=unused
+    private int descBlock(int idx, int n){
+        return fileMap(idx).lookup(n);
+    }
+
+    // blkno=0 mean the descriptor is empty
+    private boolean descFree(int idx){
+        int t = idx * DESC_INTS;
+        return descTable[t+1] == 0 && descTable[t+2] == 0 && descTable[t+3] == 0;
+    }
+
+    // extent map of descriptor idx, loaded on first use
+    private Extent_Map fileMap(int idx){
+        Extent_Map m = maps.get(idx);
+        if (m != null){
+            return m;
+        }
+        synchronized (metaLock){
+            m = maps.get(idx);
+            if (m == null){
+                m = new Extent_Map();
+                int t = idx * DESC_INTS;
+                m.add(descTable[t+1], descTable[t+2]);
+
+                int nb = descTable[t+3];
+                while (nb > 0 && nb < geo.numBlocks && m.numMapBlocks() < geo.numBlocks){
+                    m.addMapBlock(nb);
+                    cache.readBlock(nb, mapBuf);
+                    nb = m.unpackBlock(mapBuf, geo.blockSize);
+                }
+                maps.set(idx, m);
+            }
+            return m;
+        }
+    }
+
+    // write extents from extent e on back to the descriptor and map blocks
+    // return false=no room for map blocks, caller holds metaLock
+    private boolean saveMap(int idx, int e){
+        Extent_Map m = fileMap(idx);
+        int need = m.mapBlocksNeeded(geo.blockSize);
+        int have = m.numMapBlocks();
+
+        int first = e <= 1 ? 0 : Extent_Map.mapBlockOf(e, geo.blockSize);
+        if (need != have && have > 0){
+            // the old last block gets a new next pointer
+            first = Math.min(first, Math.min(need, have) - 1);
+        }
+
+        if (need > have){
+            int[] blks = new int[need - have];
+            if (!bitmap.allocate(blks.length, blks, 0)){
+                return false;
+            }
+            for (int i = 0; i < blks.length; i++){
+                m.addMapBlock(blks[i]);
+            }
+        }
+        while (m.numMapBlocks() > need){
+            bitmap.clear(m.removeMapBlock());
+        }
+
+        for (int i = Math.max(0, first); i < need; i++){
+            m.packBlock(i, mapBuf, geo.blockSize);
+            metaWrite(m.mapBlock(i), mapBuf, 0);
+        }
 
-        // read first file
-        int[] desc = readDesc(0);
-        if (desc[0] > 0){
-            io.readBlock(desc[1], oft[0].buffer);
+        int t = idx * DESC_INTS;
+        descTable[t+1] = m.count() > 0 ? m.start(0) : -1;
+        descTable[t+2] = m.count() > 0 ? m.length(0) : 0;
+        descTable[t+3] = need > 0 ? m.mapBlock(0) : -1;
+        flushDesc(idx);
+        flushBitmap();
+        return true;
+    }
+
+    // convert descriptors holding 3 direct blocks to extents
+    private void convertDirect(){
+        for (int i = 0; i < geo.numDescriptors; i++){
+            if (descFree(i)){
+                continue;
+            }
+            Extent_Map m = new Extent_Map();
+            int t = i * DESC_INTS;
+            for (int k = 1; k < DESC_INTS; k++){
+                if (descTable[t+k] > 0){
+                    m.add(descTable[t+k], 1);
+                }
+            }
+            maps.set(i, m);
+            if (!saveMap(i, 0)){
+                throw new IllegalStateException("no room for extent map blocks");
+            }
         }
+
+        geo = geo.withFlags(geo.flags | Disk_Geometry.FLAG_EXTENTS);
+        geo.pack(bitmapBuf);
+        metaWrite(0, bitmapBuf, 0);
     }
 
     // load file descripty by index
     public int[] readDesc(int idx){
-        byte[] buf = new byte[IO_System.B];
-        int blk = idx / NUM_DESC_PER_BLK + 1;
-        io.readBlock(blk, buf);
-
-        int off = idx % NUM_DESC_PER_BLK;
-        return IO_System.unpackArr(buf, off*DESC_SIZE, 4);
+        int[] desc = new int[DESC_INTS];
+        synchronized (metaLock){
+            System.arraycopy(descTable, idx * DESC_INTS, desc, 0, DESC_INTS);
+        }
+        return desc;
     }
 
     public void writeDesc(int idx, int[] desc){
-        int blk = idx / NUM_DESC_PER_BLK + 1;
-        byte[] buf = new byte[IO_System.B];
-        io.readBlock(blk, buf);
+        synchronized (metaLock){
+            System.arraycopy(desc, 0, descTable, idx * DESC_INTS, DESC_INTS);
+            maps.set(idx, null);
+            flushDesc(idx);
+        }
+    }
+
+    // true if the disk holds a superblock, or is a default size image from
+    // before the superblock with the first K blocks marked used
+    private boolean hasFileSystem(){
+        byte[] blk = new byte[io.blockSize()];
+        io.readBlock(0, blk);
+        if (Disk_Geometry.unpack(blk) != null){
+            return true;
+        }
+        return io.blocks() == IO_System.L && io.blockSize() == IO_System.B
+                && (blk[0] & 0x7f) == 0x7f;
+    }
+
+    // mount the file system found on the disk
+    private void mountDisk(){
+        cache.invalidate();
+        byte[] blk = new byte[io.blockSize()];
+        io.readBlock(0, blk);
+        Disk_Geometry g = Disk_Geometry.unpack(blk);
+        if (g == null){
+            if (io.blocks() != IO_System.L || io.blockSize() != IO_System.B){
+                throw new IllegalStateException("no superblock");
+            }
+            // image from before the superblock, block 0 is only the bitmap
+            g = Disk_Geometry.DEFAULT.withFlags(0);
+            byte[] sb = new byte[io.blockSize()];
+            g.pack(sb);
+            System.arraycopy(blk, 0, sb, g.headerSize, (g.numBlocks + 7) / 8);
+            io.writeBlock(0, sb);
+        }
+        mount(g);
+        io.snapshots().open();
+
+        loadBitmap();
+        loadDescTable();
+        if ((geo.flags & Disk_Geometry.FLAG_EXTENTS) == 0){
+            convertDirect();
+        }
 
-        int off = idx % NUM_DESC_PER_BLK;
-        IO_System.packArr(buf, desc, off*DESC_SIZE);
-        io.writeBlock(blk, buf);
+        // clear oft entries
+        oft.clear();
+        files.clear();
+
+        openDir();
     }
 
     // load disk from file, return true if file exists
     public boolean loadDisk(String fname){
+        if (readOnly){
+            return false;
+        }
+        long t0 = System.nanoTime();
+        fsLock.writeLock().lock();
         try{
+            cache.quiesce();
             io.loadFile(fname);
-
-            // clear oft entries
-            for (int i = 0; i < OFT_SIZE; i++){
-                oft[i] = null;
-            }
-
-            openDir();
+            replayJournal(fname);
+            mountDisk();
 
             return true;
 
         } catch (Exception e){
-            init();
+            initDisk();
             return false;
+        } finally{
+            fsLock.writeLock().unlock();
+            stats.time(Fs_Stats.LOAD, t0);
         }
     }
 
-    // save the file
-    public boolean saveDisk(String fname){
-        for (int i = 0; i < oft.length; i++){
-            if (oft[i] != null && !close(i))
-                return false;
+    // close all files and release the disk, a mapped image is forced out
+    public void closeDisk() throws IOException{
+        fsLock.writeLock().lock();
+        try{
+            for (int i = 0; i < oft.length(); i++){
+                if (oft.get(i) != null){
+                    close(i);
+                }
+            }
+            cache.quiesce();
+            commitJournal();
+            cache.flush();
+            io.close();
+            closeJournal();
+        } finally{
+            fsLock.writeLock().unlock();
         }
+    }
 
+    // save the file
+    public boolean saveDisk(String fname){
+        long t0 = System.nanoTime();
+        fsLock.writeLock().lock();
         try{
-            io.saveFile(fname);
+            for (int i = 0; i < oft.length(); i++){
+                if (oft.get(i) != null && !close(i))
+                    return false;
+            }
+
+            commitJournal();
+            cache.flush();
+            io.saveFile(fname, journaling);
+            checkpoint(fname);
 
             openDir();
 
             return true;
         } catch (IOException e){
             return false;
+        } finally{
+            fsLock.writeLock().unlock();
+            stats.time(Fs_Stats.SAVE, t0);
+        }
+    }
+
+    // save the disk to the file without closing any, only the blocks changed
+    // since it was last saved there or loaded from it are written
+    // force=return once they are on stable storage
+    public boolean sync(String fname, boolean force){
+        long t0 = System.nanoTime();
+        fsLock.writeLock().lock();
+        try{
+            for (OpenFile f : files.values()){
+                writeBack(f);
+            }
+            commitJournal();
+            cache.flush();
+            io.saveFile(fname, force || journaling);
+            checkpoint(fname);
+            return true;
+        } catch (IOException e){
+            return false;
+        } finally{
+            fsLock.writeLock().unlock();
+            stats.time(Fs_Stats.SYNC, t0);
+        }
+    }
+
+    // journal metadata changes, they are replayed when the image is loaded
+    // after a crash, it starts with the next load or save of an image
+    public void setJournal(boolean on){
+        fsLock.writeLock().lock();
+        try{
+            journaling = on;
+            if (!on){
+                closeJournal();
+            }
+        } finally{
+            fsLock.writeLock().unlock();
+        }
+    }
+
+    public boolean isJournaling(){
+        return journaling;
+    }
+
+    // largest read-ahead window in blocks, 0=off, on by default for a
+    // mapped image only, a disk in memory has no reads to hide
+    public void setReadAhead(int blocks){
+        readAhead = Math.max(0, blocks);
+    }
+
+    public int readAhead(){
+        return readAhead;
+    }
+
+    // queue the blocks a sequential writer finishes for writing in the
+    // background, so eviction finds them clean
+    public void setWriteBehind(boolean on){
+        writeBehind = on;
+    }
+
+    public boolean isWriteBehind(){
+        return writeBehind;
+    }
+
+    // true when mounted on a snapshot read-only
+    public boolean isReadOnly(){
+        return readOnly;
+    }
+
+    private void checkWritable(){
+        if (readOnly){
+            throw new IllegalStateException("read-only snapshot");
+        }
+    }
+
+    // take a snapshot of the disk as it is now, open files included, in no
+    // time: blocks are copied one at a time as they are first written after
+    // it, return false=the name is taken, the disk has no snapshot area or
+    // is read-only
+    // it is kept in the snapshot area of the disk, and so in its image
+    public boolean snapshot(String name){
+        if (readOnly){
+            return false;
+        }
+        fsLock.writeLock().lock();
+        try{
+            for (OpenFile f : files.values()){
+                writeBack(f);
+            }
+            cache.quiesce();
+            commitJournal();
+            cache.flush();
+            return io.snapshots().take(name) != null;
+        } finally{
+            fsLock.writeLock().unlock();
+        }
+    }
+
+    // free the blocks only the snapshot kept, false=no such snapshot, or it
+    // is mounted or cloned
+    public boolean deleteSnapshot(String name){
+        return io.snapshots().delete(name);
+    }
+
+    // names of the snapshots, oldest first
+    public List<String> snapshots(){
+        return io.snapshots().names();
+    }
+
+    // the snapshot as a file system of its own that can only be read, null=
+    // no such snapshot; closeDisk lets it be deleted again
+    public File_System mountSnapshot(String name){
+        return openSnapshot(name, false);
+    }
+
+    // a writable copy of the snapshot made in no time, it keeps the blocks
+    // written to it to itself and saveDisk writes it out as a whole image,
+    // null=no such snapshot
+    public File_System cloneSnapshot(String name){
+        return openSnapshot(name, true);
+    }
+
+    private File_System openSnapshot(String name, boolean writable){
+        fsLock.readLock().lock();
+        try{
+            Snapshot_Store.Snapshot s = io.snapshots().get(name);
+            if (s == null){
+                return null;
+            }
+            return new File_System(new Snapshot_Device(io, s, writable), geo);
+        } catch (IllegalStateException e){
+            // deleted meanwhile
+            return null;
+        } finally{
+            fsLock.readLock().unlock();
+        }
+    }
+
+    // the journal of the current image, null=none
+    public Journal journal(){
+        return journal;
+    }
+
+    // replay the journal of image fname onto the loaded disk, it stays open
+    // for new operations when journaling
+    private void replayJournal(String fname) throws IOException{
+        closeJournal();
+        String jname = Journal.nameOf(fname);
+        if (!journaling && !new File(jname).exists()){
+            return;
+        }
+
+        Journal j = new Journal(jname, io.blockSize(), cache);
+        j.replay(io);
+        if (journaling){
+            journal = j;
+        }
+        else{
+            // kept until the image is saved with the replayed blocks
+            j.close();
+        }
+    }
+
+    // image fname was forced out with every change, its journal starts over
+    private void checkpoint(String fname) throws IOException{
+        String jname = Journal.nameOf(fname);
+        if (!journaling){
+            Files.deleteIfExists(Paths.get(jname));
+            return;
+        }
+        if (journal == null || !journal.path().equals(Paths.get(jname).toAbsolutePath())){
+            closeJournal();
+            journal = new Journal(jname, geo.blockSize, cache);
+        }
+        journal.checkpoint();
+    }
+
+    private void closeJournal(){
+        if (journal != null){
+            try{
+                journal.close();
+            } catch (IOException e){
+                // nothing left to log to
+            }
+            journal = null;
         }
     }
 
+    // journal for an operation to log into, null=none, or the caller holds
+    // the whole file system and saves it anyway
+    private Journal opJournal(){
+        return fsLock.isWriteLockedByCurrentThread() ? null : journal;
+    }
+
     // open the named file, return the index , -1=fail
     public int open(String fname){
         fname = fname.trim();
-        if (fname.length() > FILE_NAME_LEN || fname.isEmpty()){
+        if (fname.isEmpty()){
             return -1;
         }
 
-        if (!lseek(0, 0)){
+        long t0 = System.nanoTime();
+        fsLock.readLock().lock();
+        dirLock.readLock().lock();
+        try{
+            if (!dir.validName(fname)){
+                return -1;
+            }
+            int descIdx = dir.lookup(fname);
+            if (descIdx < 0){
+                return -1;
+            }
+
+            ReentrantReadWriteLock.WriteLock l = stripe(descIdx).writeLock();
+            l.lock();
+            try{
+                return newHandle(descIdx);
+            } finally{
+                l.unlock();
+            }
+        } finally{
+            dirLock.readLock().unlock();
+            fsLock.readLock().unlock();
+            stats.time(Fs_Stats.OPEN, t0);
+        }
+    }
+
+    // new handle on descriptor idx, sharing the open file when it is
+    // already open, -1=no free handle
+    // caller holds the write lock of idx
+    private int newHandle(int idx){
+        synchronized (oftLock){
+            OpenFile f = files.get(idx);
+            OFTEntry e = new OFTEntry();
+            e.file = f != null ? f : new OpenFile();
+            e.file.index = idx;
+
+            int h = oft.add(e);
+            if (h < 0){
+                return -1;
+            }
+            if (f == null){
+                files.put(idx, e.file);
+            }
+            e.file.handles.add(h);
+            return h;
+        }
+    }
+
+
+    // close the file
+    public boolean close(int index){
+        long t0 = System.nanoTime();
+        fsLock.readLock().lock();
+        Journal j = opJournal();
+        long tx = j != null ? j.begin() : 0;
+        OFTEntry e = lockEntry(index);
+        try{
+            if (e == null){
+                return false;
+            }
+
+            OpenFile f = e.file;
+
+            // Free the OFT entry, the last one writes blk data back
+            synchronized (oftLock){
+                oft.remove(index);
+                f.handles.remove(Integer.valueOf(index));
+                if (f.handles.isEmpty()){
+                    files.remove(f.index);
+                }
+            }
+            if (f.handles.isEmpty()){
+                writeBack(f);
+            }
+
+            return true;
+        } finally{
+            unlockEntry(e);
+            boolean logged = j != null && j.end();
+            fsLock.readLock().unlock();
+            if (logged){
+                j.commit(tx);
+            }
+            stats.time(Fs_Stats.CLOSE, t0);
+        }
+    }
+
+    // seek to position
+    public boolean lseek(int index, int pos){
+        long t0 = System.nanoTime();
+        fsLock.readLock().lock();
+        OFTEntry e = lockEntry(index);
+        try{
+            if (e == null){
+                return false;
+            }
+
+            // the buffer follows on the next read or write, past the end
+            // of the file a write leaves a hole before it
+            if (pos < 0)
+                return false;
+
+            e.pos = pos;
+            return true;
+        } finally{
+            unlockEntry(e);
+            fsLock.readLock().unlock();
+            stats.time(Fs_Stats.LSEEK, t0);
+        }
+    }
+
+    // lock covering descriptor idx
+    private ReentrantReadWriteLock stripe(int idx){
+        return stripes[idx & (LOCK_STRIPES - 1)];
+    }
+
+    // open file table entry of index, null=not open
+    private OFTEntry entry(int index){
+        synchronized (oftLock){
+            return oft.get(index);
+        }
+    }
+
+    // open file of descriptor idx, null=not open
+    private OpenFile openFile(int idx){
+        synchronized (oftLock){
+            return files.get(idx);
+        }
+    }
+
+    // entry of index with the write lock of its descriptor held, null=not open
+    private OFTEntry lockEntry(int index){
+        OFTEntry e = entry(index);
+        if (e == null){
+            return null;
+        }
+        stripe(e.file.index).writeLock().lock();
+        if (entry(index) != e){
+            // closed while we waited
+            stripe(e.file.index).writeLock().unlock();
+            return null;
+        }
+        return e;
+    }
+
+    private void unlockEntry(OFTEntry e){
+        if (e != null){
+            stripe(e.file.index).writeLock().unlock();
+        }
+    }
+
+    // bring logical block n of f into its buffer, writing the one there back
+    // first when it changed, nothing is staged past the last block
+    private void stage(OpenFile f, int n){
+        if (f.blk == n){
+            return;
+        }
+        writeBack(f);
+
+        // read new data to buffer
+        int blk = descBlock(f.index, n);
+        if (blk > 0){
+            cache.readBlock(blk, f.buffer);
+            f.blk = n;
+        }
+        else if (blk == 0){
+            // a hole
+            Arrays.fill(f.buffer, (byte)0);
+            f.blk = n;
+        }
+        else{
+            f.blk = -1;
+        }
+    }
+
+    // write the buffer of f back to its block if it changed
+    private void writeBack(OpenFile f){
+        if (f.dirty && f.blk >= 0){
+            int blk = descBlock(f.index, f.blk);
+            if (blk > 0){
+                cache.writeBlock(blk, f.buffer);  // write back
+            }
+        }
+        f.dirty = false;
+    }
+
+    // read up to count bytes at pos of descriptor idx into data[off..]
+    // without an open file entry, return number of bytes read
+    // caller holds the write lock of idx
+    private int pread(int idx, int pos, byte[] data, int off, int count){
+        OpenFile f = openFile(idx);
+        if (f != null){
+            writeBack(f);
+        }
+
+        int bsize = geo.blockSize;
+        count = Math.min(count, descLen(idx) - pos);
+        for (int done = 0; done < count; ){
+            int p = pos + done;
+            int n = Math.min(bsize - p % bsize, count - done);
+            int blk = descBlock(idx, p / bsize);
+            if (blk > 0){
+                byte[] b = cache.pin(blk);
+                System.arraycopy(b, p % bsize, data, off + done, n);
+                cache.unpin(blk, false);
+            }
+            else{
+                Arrays.fill(data, off + done, off + done + n, (byte)0);
+            }
+            done += n;
+        }
+        return Math.max(count, 0);
+    }
+
+    // write count bytes from data[off..] at pos of descriptor idx, growing
+    // it, without an open file entry, return false=failed
+    // caller holds the write lock of idx
+    private boolean pwrite(int idx, int pos, byte[] data, int off, int count){
+        if (pos > descLen(idx)){
+            return false;
+        }
+        OpenFile f = openFile(idx);
+        if (f != null){
+            writeBack(f);
+        }
+        if (!grow(idx, pos, pos + count)){
+            return false;
+        }
+
+        int bsize = geo.blockSize;
+        for (int done = 0; done < count; ){
+            int p = pos + done;
+            int n = Math.min(bsize - p % bsize, count - done);
+            int blk = descBlock(idx, p / bsize);
+            byte[] b = cache.pin(blk);
+            System.arraycopy(data, off + done, b, p % bsize, n);
+            if (idx == 0 && journal != null){
+                // the directory is metadata too
+                journal.log(blk, b, 0);
+            }
+            cache.unpin(blk, true);
+            done += n;
+        }
+
+        // the open file reads the new data again
+        if (f != null){
+            f.blk = -1;
+        }
+        return true;
+    }
+
+    // read data from the file, return number of bytes read, -1=failed
+    public int read(int index, byte[] data, int count){
+        return read(index, data, 0, count);
+    }
+
+    // read count bytes into data[off..], return number of bytes read, -1=failed
+    public int read(int index, byte[] data, int off, int count){
+        long t0 = System.nanoTime();
+        fsLock.readLock().lock();
+        OFTEntry e = lockEntry(index);
+        try{
+            if (e == null){
+                return -1;
+            }
+
+            count = readable(e, count);
+            if (count < 0){
+                return -1;
+            }
+            return readData(e, ByteBuffer.wrap(data, off, count), count);
+        } finally{
+            unlockEntry(e);
+            fsLock.readLock().unlock();
+            stats.time(Fs_Stats.READ, t0);
+        }
+    }
+
+    // read into dst from its position, return number of bytes read, -1=failed
+    public int read(int index, ByteBuffer dst){
+        long t0 = System.nanoTime();
+        fsLock.readLock().lock();
+        OFTEntry e = lockEntry(index);
+        try{
+            if (e == null){
+                return -1;
+            }
+
+            int count = readable(e, dst.remaining());
+            if (count < 0){
+                return -1;
+            }
+            return readData(e, dst, count);
+        } finally{
+            unlockEntry(e);
+            fsLock.readLock().unlock();
+            stats.time(Fs_Stats.READ, t0);
+        }
+    }
+
+    // scatter read, fill each buffer in turn, return bytes read, -1=failed
+    public long readv(int index, ByteBuffer[] dsts){
+        long total = 0;
+        for (int i = 0; i < dsts.length; i++){
+            int n = read(index, dsts[i]);
+            if (n < 0){
+                return total > 0 ? total : -1;
+            }
+            total += n;
+            if (dsts[i].hasRemaining()){
+                break;  // end of file
+            }
+        }
+        return total;
+    }
+
+    // count cut to the end of file, none past it
+    private int readable(OFTEntry e, int count){
+        if (e.pos + count > descLen(e.file.index)){
+            count = Math.max(descLen(e.file.index) - e.pos, 0);
+        }
+        return count;
+    }
+
+    private int readData(OFTEntry e, ByteBuffer dst, int count){
+        OpenFile f = e.file;
+        int bsize = geo.blockSize;
+        int readed = 0;
+        if (count > 0 && readAhead > 0){
+            readAhead(e, count);
+        }
+        while (count > 0){
+            int startPos = e.pos % bsize;
+            int blkIdx = e.pos / bsize;
+
+            if (startPos == 0 && count >= bsize){
+                // whole blocks go straight from the cache
+                int n = count / bsize;
+                if (f.blk >= blkIdx && f.blk < blkIdx + n){
+                    writeBack(f);
+                }
+                for (int k = 0; k < n; k++){
+                    int blk = descBlock(f.index, blkIdx + k);
+                    if (blk > 0){
+                        cache.readBlock(blk, dst);
+                    }
+                    else{
+                        dst.put(zeroBuf, 0, bsize);
+                    }
+                }
+
+                readed += n * bsize;
+                e.pos += n * bsize;
+                count -= n * bsize;
+                continue;
+            }
+
+            // calculate real count
+            int rcnt = count;
+            if (startPos + rcnt > bsize){
+                rcnt = bsize - startPos;
+            }
+
+            // read bytes
+            stage(f, blkIdx);
+            dst.put(f.buffer, startPos, rcnt);
+
+            readed += rcnt;
+            e.pos += rcnt;
+            count -= rcnt;
+        }
+        e.next = e.pos;
+
+        stats.read(readed);
+        return readed;
+    }
+
+    // a handle reading on from where it stopped gets the blocks past the
+    // ones it asks for read into the cache in the background, once it is
+    // half way through those read ahead last time, the window doubling each
+    // time up to readAhead blocks; a jump starts it over
+    private void readAhead(OFTEntry e, int count){
+        if (e.pos != e.next){
+            e.window = 0;
+            e.ahead = 0;
+            return;
+        }
+        int bsize = geo.blockSize;
+        int max = Math.min(readAhead, cache.capacity() / 4);
+        int last = (e.pos + count - 1) / bsize;
+        if (e.window == 0){
+            e.window = READ_AHEAD_MIN;
+            e.ahead = 0;
+        }
+        e.window = Math.min(e.window, max);
+        if (e.window == 0 || last + e.window / 2 < e.ahead){
+            return;
+        }
+
+        int from = Math.max(e.ahead, last + 1);
+        int to = Math.min(last + 1 + e.window, (descLen(e.file.index) + bsize - 1) / bsize);
+        forRuns(e.file.index, from, to, (blk, n) -> cache.prefetch(blk, n));
+        e.ahead = Math.max(to, e.ahead);
+        e.window = Math.min(e.window * 2, max);
+    }
+
+    // each run of blocks on the disk backing logical blocks [from, to) of
+    // descriptor idx, holes left out
+    private void forRuns(int idx, int from, int to, BiConsumer<Integer, Integer> each){
+        Extent_Map m = fileMap(idx);
+        for (int n = from; n < to; ){
+            int blk = m.lookup(n);
+            int run = Math.min(m.runLength(n), to - n);
+            if (run <= 0){
+                break;
+            }
+            if (blk > 0){
+                each.accept(blk, run);
+            }
+            n += run;
+        }
+    }
+
+    // write data to the file
+    public int write(int index, byte[] data, int count){
+        return write(index, data, 0, count);
+    }
+
+    // write count bytes from data[off..], return number of bytes written, -1=failed
+    public int write(int index, byte[] data, int off, int count){
+        long t0 = System.nanoTime();
+        fsLock.readLock().lock();
+        Journal j = opJournal();
+        long tx = j != null ? j.begin() : 0;
+        OFTEntry e = lockEntry(index);
+        try{
+            if (e == null){
+                return -1;
+            }
+            if (count <= 0){
+                return 0;
+            }
+
+            count = writable(e, count);
+            if (count < 0){
+                return -1;
+            }
+            return writeData(e, ByteBuffer.wrap(data, off, count), count);
+        } finally{
+            unlockEntry(e);
+            boolean logged = j != null && j.end();
+            fsLock.readLock().unlock();
+            if (logged){
+                j.commit(tx);
+            }
+            stats.time(Fs_Stats.WRITE, t0);
+        }
+    }
+
+    // write from src at its position, return number of bytes written, -1=failed
+    public int write(int index, ByteBuffer src){
+        long t0 = System.nanoTime();
+        fsLock.readLock().lock();
+        Journal j = opJournal();
+        long tx = j != null ? j.begin() : 0;
+        OFTEntry e = lockEntry(index);
+        try{
+            if (e == null){
+                return -1;
+            }
+
+            int count = writable(e, src.remaining());
+            if (count < 0){
+                return -1;
+            }
+            return writeData(e, src, count);
+        } finally{
+            unlockEntry(e);
+            boolean logged = j != null && j.end();
+            fsLock.readLock().unlock();
+            if (logged){
+                j.commit(tx);
+            }
+            stats.time(Fs_Stats.WRITE, t0);
+        }
+    }
+
+    // gather write, drain each buffer in turn, return bytes written, -1=failed
+    public long writev(int index, ByteBuffer[] srcs){
+        long total = 0;
+        for (int i = 0; i < srcs.length; i++){
+            int n = write(index, srcs[i]);
+            if (n < 0){
+                return total > 0 ? total : -1;
+            }
+            total += n;
+            if (srcs[i].hasRemaining()){
+                break;  // file length limit
+            }
+        }
+        return total;
+    }
+
+    // grow the file to take count bytes at the current position,
+    // return count cut to the maximum file length, -1=disk full
+    private int writable(OFTEntry e, int count){
+        if (readOnly){
             return -1;
         }
-        byte[] entry = new byte[8];
+        // maximum file length
+        if (count > Integer.MAX_VALUE - e.pos){
+            count = Integer.MAX_VALUE - e.pos;
+        }
+        return grow(e.file.index, e.pos, e.pos + count) ? count : -1;
+    }
 
-        while (read(0, entry, 8) == 8){
+    // make room for bytes [pos, end) of descriptor idx, return false=disk full
+    // blocks between the end of the file and pos are left a hole, blocks of
+    // the range in a hole or past the end get blocks, next to the ones before
+    // them when those are free, zeroed where the range does not cover them
+    // caller holds the write lock of idx
+    private boolean grow(int descIdx, int pos, int end){
+        int len = descLen(descIdx);
+        if (end <= pos){
+            return true;
+        }
 
-            String oldfname = IO_System.unpackStr(entry, 0).trim();
-            int descIdx = IO_System.unpack(entry, 4);
+        Extent_Map m = fileMap(descIdx);
+        int bsize = geo.blockSize;
+        int first = pos / bsize;
+        int last = (end - 1) / bsize;
+        boolean newFirst = false;   // the first and last block of the range got
+        boolean newLast = false;    // blocks now
+        synchronized (metaLock){
+            int oldNumBlks = m.blocks();
+            int changed = Math.max(0, m.count() - 1);
+            // runs given to holes, logical block, physical block, count
+            ArrayList<int[]> filled = new ArrayList<int[]>();
+            boolean ok = true;
+
+            // holes in the range
+            int inside = Math.min(last + 1, oldNumBlks);
+            for (int n = first; n < inside && ok; ){
+                int run = Math.min(m.runLength(n), inside - n);
+                if (m.lookup(n) == 0){
+                    int prev = n > 0 ? m.lookup(n - 1) : 0;
+                    int[] blks = new int[run];
+                    if (!bitmap.allocateNear(prev > 0 ? prev + 1 : -1, run, blks, 0)){
+                        ok = false;
+                        break;
+                    }
+                    changed = Math.min(changed, Math.max(0, m.extentOf(n) - 1));
+                    for (int i = 0; i < run; ){
+                        // runs of contiguous blocks
+                        int k = 1;
+                        while (i + k < run && blks[i + k] == blks[i] + k){
+                            k++;
+                        }
+                        m.replace(n + i, k, blks[i]);
+                        filled.add(new int[]{n + i, blks[i], k});
+                        i += k;
+                    }
+                    newFirst |= n == first;
+                    newLast |= n + run > last;
+                }
+                n += run;
+            }
 
-            if (oldfname.equals(fname)){
-                // find the file
-                // check if opened
-                int emptyIdx = -1;
-                for (int i = 0; i < oft.length; i++)
-                {
-                    if (oft[i] != null && oft[i].index == descIdx){
-                        return i;
+            // past the end, a hole up to the range
+            int[] blkIdx = null;
+            if (ok && last >= oldNumBlks){
+                m.add(0, first - oldNumBlks);
+                blkIdx = new int[last + 1 - Math.max(first, oldNumBlks)];
+
+                // find empty blocks, after the last one of the file when
+                // they are free, not enough blocks
+                if (bitmap.allocateNear(m.end(), blkIdx.length, blkIdx, 0)){
+                    for (int i = 0; i < blkIdx.length; i++){
+                        m.add(blkIdx[i], 1);
                     }
-                    if (oft[i] == null && emptyIdx < 0)
-                        emptyIdx = i;
+                    newFirst |= first >= oldNumBlks;
+                    newLast = true;
+                }
+                else{
+                    blkIdx = null;
+                    ok = false;
+                }
+            }
+
+            // update extents and bitmap
+            if (ok && (m.blocks() != oldNumBlks || !filled.isEmpty())){
+                ok = saveMap(descIdx, changed);
+            }
+            if (!ok){
+                // give back what was taken
+                stats.allocFailed();
+                m.truncate(oldNumBlks);
+                for (int i = 0; blkIdx != null && i < blkIdx.length; i++){
+                    bitmap.clear(blkIdx[i]);
                 }
-                // no empty oft entry
-                if (emptyIdx < 0){
-                    return -1;
+                for (int[] r : filled){
+                    m.replace(r[0], r[2], 0);
+                    bitmap.setRange(r[1], r[2], false);
+                }
+                flushBitmap();
+                return false;
+            }
+            if (end > len){
+                descTable[descIdx * DESC_INTS] = end;
+                flushDesc(descIdx);
+            }
+        }
+
+        // what the disk had past the old end of the file may not show
+        if (pos > len && len % bsize != 0){
+            zero(descIdx, len / bsize, len % bsize, len / bsize < first ? bsize : pos % bsize);
+        }
+        if (newFirst && pos % bsize != 0){
+            zero(descIdx, first, 0, pos % bsize);
+        }
+        if (newLast && end % bsize != 0){
+            zero(descIdx, last, end % bsize, bsize);
+        }
+        return true;
+    }
+
+    // zero bytes [from, to) of logical block n of descriptor idx, a hole
+    // is zero already, caller holds the write lock of idx
+    private void zero(int idx, int n, int from, int to){
+        int blk = descBlock(idx, n);
+        if (blk <= 0 || from >= to){
+            return;
+        }
+        OpenFile f = openFile(idx);
+        if (f != null && f.blk == n){
+            writeBack(f);
+            f.blk = -1;
+        }
+        byte[] b = cache.pin(blk);
+        Arrays.fill(b, from, to, (byte)0);
+        if (idx == 0 && journal != null){
+            journal.log(blk, b, 0);
+        }
+        cache.unpin(blk, true);
+    }
+
+    // free the blocks holding bytes [pos, pos+count) of the open file index,
+    // the range reads as zeros after and blocks it holds only part of are
+    // zeroed there, the file keeps its length, return false=failed
+    public boolean punchHole(int index, int pos, int count){
+        long t0 = System.nanoTime();
+        fsLock.readLock().lock();
+        Journal j = opJournal();
+        long tx = j != null ? j.begin() : 0;
+        OFTEntry e = lockEntry(index);
+        try{
+            // the directory has no holes
+            if (e == null || e.file.index == 0 || pos < 0 || count < 0 || readOnly){
+                return false;
+            }
+
+            OpenFile f = e.file;
+            int idx = f.index;
+            int len = descLen(idx);
+            int end = (int)Math.min((long)pos + count, len);
+            if (end <= pos){
+                return true;
+            }
+            writeBack(f);
+            f.blk = -1;
+
+            // blocks it covers whole, the last block of the file up to its end
+            int bsize = geo.blockSize;
+            int lo = (pos + bsize - 1) / bsize;
+            int hi = end == len ? (len + bsize - 1) / bsize : end / bsize;
+            if (pos % bsize != 0){
+                zero(idx, pos / bsize, pos % bsize, Math.min(bsize, end - pos / bsize * bsize));
+            }
+            if (end / bsize >= hi && end % bsize != 0 && end / bsize >= lo){
+                zero(idx, end / bsize, 0, end % bsize);
+            }
+
+            Extent_Map m = fileMap(idx);
+            synchronized (metaLock){
+                int changed = -1;
+                for (int n = lo; n < hi; ){
+                    int run = Math.min(m.runLength(n), hi - n);
+                    int blk = m.lookup(n);
+                    if (blk > 0){
+                        changed = changed < 0 ? Math.max(0, m.extentOf(n) - 1) : changed;
+                        bitmap.setRange(blk, run, false);
+                        m.replace(n, run, 0);
+                    }
+                    n += run;
                 }
 
-                // open directory as first file
-                oft[emptyIdx] = new OFTEntry();
-                oft[emptyIdx].index = descIdx;
+                // a split extent may need a map block, what was freed has room
+                if (changed >= 0 && !saveMap(idx, changed)){
+                    return false;
+                }
+            }
+            return true;
+        } finally{
+            unlockEntry(e);
+            boolean logged = j != null && j.end();
+            fsLock.readLock().unlock();
+            if (logged){
+                j.commit(tx);
+            }
+            stats.time(Fs_Stats.PUNCH, t0);
+        }
+    }
 
-                // read first file
-                int[] desc = readDesc(descIdx);
-                if (desc[0] > 0){
-                    io.readBlock(desc[1], oft[emptyIdx].buffer);
+    private int writeData(OFTEntry e, ByteBuffer src, int count){
+        OpenFile f = e.file;
+        int bsize = geo.blockSize;
+        int written = 0;
+        if (e.pos != e.next){
+            e.behind = e.pos / bsize;
+        }
+        while (count > 0){
+            int startPos = e.pos % bsize;
+            int blkIdx = e.pos / bsize;
+
+            if (startPos == 0 && count >= bsize){
+                // whole blocks go straight to the cache, a buffered copy
+                // of one of them is overwritten
+                int n = count / bsize;
+                if (f.blk >= blkIdx && f.blk < blkIdx + n){
+                    f.blk = -1;
+                    f.dirty = false;
                 }
+                for (int k = 0; k < n; k++){
+                    cache.writeBlock(descBlock(f.index, blkIdx + k), src);
+                }
+
+                written += n * bsize;
+                e.pos += n * bsize;
+                count -= n * bsize;
+                continue;
+            }
 
-                return emptyIdx;
+            // calculate real count
+            int rcnt = count;
+            if (startPos + rcnt > bsize){
+                rcnt = bsize - startPos;
             }
+
+            // write to buffer
+            stage(f, blkIdx);
+            src.get(f.buffer, startPos, rcnt);
+            f.dirty = true;
+
+            written += rcnt;
+            e.pos += rcnt;
+            count -= rcnt;
+        }
+        e.next = e.pos;
+        if (writeBehind){
+            writeBehind(e);
         }
 
-        return -1;
+        stats.written(written);
+        return written;
     }
 
-
-    // close the file
-    public boolean close(int index){
-        if (index < 0 || index > oft.length){
-            return false;
+    // queue the blocks a handle has written to the end since it last came
+    // here for writing to the disk, the one in its buffer waits until the
+    // buffer moves on
+    private void writeBehind(OFTEntry e){
+        OpenFile f = e.file;
+        int done = e.pos / geo.blockSize;
+        if (f.dirty && f.blk >= 0){
+            done = Math.min(done, f.blk);
         }
-        if (oft[index] == null){
-            return false;
+        if (done > e.behind){
+            forRuns(f.index, e.behind, done, (blk, n) -> cache.writeBehind(blk, n));
+            e.behind = done;
         }
+    }
 
-        // get the file descriptor
-        int[] desc = readDesc(oft[index].index);
-        // desc[0]=filelength, desc[1]=blk0, desc[2]=blk1, desc[3]=blk2
+    // names a listing reads from the directory at a time
+    public static final int LIST_PAGE = 256;
 
-        // write blk data back
-        int blkIdx = oft[index].pos / IO_System.B;
-        if (blkIdx < desc.length-1 && desc[blkIdx+1] > 0){
-            int blk = desc[blkIdx+1]; // -1=unused, 0=freenode, >0=used
-            io.writeBlock(blk, oft[index].buffer);  // write back
-        }
+    // list the directory, the handle of the directory is left where it is
+    public String directory(){
+        return join(names());
+    }
 
-        // update file length
-        if (oft[index].pos > desc[0]){
-            desc[0] = oft[index].pos;
+    // list the names starting with prefix
+    public String directory(String prefix){
+        return join(names(prefix));
+    }
 
-            // update descriptor
-            writeDesc(oft[index].index, desc);
-        }
+    // list the names from <= name < to, null=no bound, in order when the
+    // directory is a B+tree
+    public String directory(String from, String to){
+        return join(names(from, to));
+    }
 
-        // Free the OFT entry
-        oft[index] = null;
+    private static String join(Stream<String> names){
+        StringBuilder list = new StringBuilder();
+        names.forEachOrdered(fname -> {
+            if (list.length() > 0){
+                list.append(' ');
+            }
+            list.append(fname);
+        });
+        return list.toString();
+    }
 
-        return true;
+    // the names in the directory, read a page at a time as they are used,
+    // no lock is held between pages, a name made or destroyed meanwhile may
+    // or may not be seen, the others are seen once
+    public Stream<String> names(){
+        return names(null, null, null);
     }
 
-    // seek to position
-    public boolean lseek(int index, int pos){
-        if (index < 0 || index > oft.length){
-            return false;
-        }
-        if (oft[index] == null){
-            return false;
-        }
+    public Stream<String> names(String prefix){
+        return names(prefix, null, prefix);
+    }
 
-        int oldblkIdx = oft[index].pos / IO_System.B;
-        int newblkIdx = pos / IO_System.B;
+    public Stream<String> names(String from, String to){
+        return names(from, to, null);
+    }
 
-        // get the file descriptor
-        int[] desc = readDesc(oft[index].index);
-        if (pos > desc[0])  // seek pos > file length
-            return false;
+    private Stream<String> names(String from, String to, String prefix){
+        Iterator<String> it = new Iterator<String>(){
+            Dir_Page page = null;   // read on first use
+            int i = 0;
 
-        if (newblkIdx != oldblkIdx){
-            // write back old data
-            if (oldblkIdx < desc.length-1 && desc[oldblkIdx+1] > 0){
-                int blk = desc[oldblkIdx+1]; // -1=unused, 0=freenode, >0=used
-                io.writeBlock(blk, oft[index].buffer);  // write back
+            public boolean hasNext(){
+                while (page == null || (i >= page.names.size() && page.next != null)){
+                    Dir_Page p = directory(from, to, prefix, page == null ? null : page.next, LIST_PAGE);
+                    page = p != null ? p : new Dir_Page(new ArrayList<String>(), null);
+                    i = 0;
+                }
+                return i < page.names.size();
             }
 
-            // read new data to buffer
-            if (newblkIdx < desc.length-1 && desc[newblkIdx+1] > 0){
-                int blk = desc[newblkIdx+1];
-                io.readBlock(blk, oft[index].buffer);
+            public String next(){
+                if (!hasNext()){
+                    throw new NoSuchElementException();
+                }
+                return page.names.get(i++);
             }
-        }
-
-        oft[index].pos = pos;
-        return true;
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
     }
 
-    // read data from the file, return number of bytes read, -1=failed
-    public int read(int index, byte[] data, int count){
-        if (index < 0 || index > oft.length){
-            return -1;
-        }
-        if (oft[index] == null){
-            return -1;
-        }
+    // one page of up to max names from <= name < to (null=no bound) that
+    // start with prefix (null=any), from token (null=the first page) on
+    // the page holds the token of the next one, null=bad token
+    public Dir_Page directory(String from, String to, String prefix, String token, int max){
+        long t0 = System.nanoTime();
+        fsLock.readLock().lock();
+        dirLock.readLock().lock();
+        stripe(0).writeLock().lock();
+        try{
+            ArrayList<String> names = new ArrayList<String>(Math.min(Math.max(max, 1), LIST_PAGE));
+            boolean sorted = dir.sorted();
+            boolean[] past = new boolean[1];
+            String next = dir.list(from, to, token, fname -> {
+                if (prefix != null && !fname.startsWith(prefix)){
+                    // names after the prefix are all past it in order
+                    past[0] = sorted;
+                    return !sorted;
+                }
+                names.add(fname);
+                return names.size() < max;
+            });
 
-        // get the file descriptor
-        int[] desc = readDesc(oft[index].index);
-        if (oft[index].pos + count > desc[0]){
-            count = desc[0] - oft[index].pos;//return false;
+            stats.dirScan(names.size());
+            return new Dir_Page(names, past[0] ? null : next);
+        } catch (IllegalArgumentException e){
+            return null;
+        } finally{
+            stripe(0).writeLock().unlock();
+            dirLock.readLock().unlock();
+            fsLock.readLock().unlock();
+            stats.time(Fs_Stats.DIRECTORY, t0);
         }
-        if (count < 0){
-            return -1;
+    }
+
+    // create the file
+    public boolean create(String fname){
+        fname = fname.trim();
+        if (fname.isEmpty() || readOnly){
+            return false;
         }
 
-        int startPos = oft[index].pos % IO_System.B;
-        int readed = 0;
-        while (count > 0){
-            // calculate real count
-            int rcnt = count;
-            if (startPos + rcnt > IO_System.B){
-                rcnt = IO_System.B - startPos;
+        long t0 = System.nanoTime();
+        fsLock.readLock().lock();
+        Journal j = opJournal();
+        long tx = j != null ? j.begin() : 0;
+        dirLock.writeLock().lock();
+        try{
+            if (!dir.validName(fname)){
+                return false;
             }
 
-            // read bytes
-            for (int i = 0; i < rcnt; i++){
-                data[readed+i] = oft[index].buffer[startPos + i];
+            // search for a free descriptor
+            int freeDesc = -1;
+            synchronized (metaLock){
+                for (int i = freeHint; i < geo.numDescriptors && freeDesc < 0; i++){
+                    // blkno=0 mean the descriptor is empty
+                    if (descFree(i)){
+                        freeDesc = i;
+                    }
+                }
+                freeHint = freeDesc < 0 ? geo.numDescriptors : freeDesc;
             }
 
-            readed += rcnt;
-            oft[index].pos += rcnt;
-            count -= rcnt;
+            // no empty descriptor
+            if (freeDesc < 0){
+                stats.allocFailed();
+                return false;
+            }
 
-            if (startPos + rcnt == IO_System.B){
-                // write old data
-                int oldblkIdx = (oft[index].pos-1) / IO_System.B;
-                if (oldblkIdx < desc.length-1 && desc[oldblkIdx+1] > 0){
-                    int blk = desc[oldblkIdx+1]; // -1=unused, 0=freenode, >0=used
-                    io.writeBlock(blk, oft[index].buffer);  // write back
-                }
+            if (dir.lookup(fname) >= 0){
+                return false;
+            }
 
-                // read new data to buffer
-                int newblkIdx = oldblkIdx+1;
-                if (newblkIdx < desc.length-1 && desc[newblkIdx+1] > 0){
-                    int blk = desc[newblkIdx+1];
-                    io.readBlock(blk, oft[index].buffer);
-                }
-                startPos = 0;
+            // write entry
+            if (!dir.add(fname, freeDesc)){
+                return false;
             }
-        }
 
-        return readed;
-    }
+            // update the descriptor
+            int[] desc = new int[] {0, -1, 0, -1};
 
-    // write data to the file
-    public int write(int index, byte[] data, int count){
-        if (index < 0 || index > oft.length){
-            return -1;
-        }
-        if (oft[index] == null){
-            return -1;
-        }
+            writeDesc(freeDesc, desc);
 
-        // maximum to 3 blocks
-        if (oft[index].pos + count > IO_System.B * 3){
-            count = IO_System.B * 3 - oft[index].pos;
-            if (count <= 0){
-                return count;
+            return true;
+        } finally{
+            dirLock.writeLock().unlock();
+            boolean logged = j != null && j.end();
+            fsLock.readLock().unlock();
+            if (logged){
+                j.commit(tx);
             }
+            stats.time(Fs_Stats.CREATE, t0);
         }
+    }
 
-        // get the file descriptor
-        int[] desc = readDesc(oft[index].index);
-        if (oft[index].pos + count > desc[0]){
-            // increase file size and block
-            int nflen = oft[index].pos + count;
-            int oldNumBlks = desc[0] / IO_System.B + (desc[0] % IO_System.B > 0 ? 1 : 0);
-            int newNumBlks = nflen / IO_System.B + (nflen % IO_System.B > 0 ? 1 : 0);
+    // destroy the named file.
+    public boolean destroy(String fname){
+        fname = fname.trim();
+        if (fname.isEmpty() || readOnly){
+            return false;
+        }
 
-            // allocate new blocks
-            if (newNumBlks > oldNumBlks){
-                int blks = newNumBlks - oldNumBlks;
-                int[] blkIdx = new int[blks];
+        long t0 = System.nanoTime();
+        fsLock.readLock().lock();
+        Journal j = opJournal();
+        long tx = j != null ? j.begin() : 0;
+        dirLock.writeLock().lock();
+        try{
+            int descIdx = dir.validName(fname) ? dir.lookup(fname) : -1;
+            if (descIdx < 0){
+                return false;
+            }
 
-                // find empty block
-                byte[] tmp = new byte[IO_System.B];
-                io.readBlock(0, tmp);
-                int found = 0;
+            // remove the entry
+            if (!dir.remove(fname)){
+                return false;
+            }
 
-                for (int i = DATA_BLK_START; i < IO_System.L && found < blks; i++){
-                    if (!IO_System.getBit(tmp, i)){
-                        blkIdx[found] = i;
-                        found++;
+            stripe(descIdx).writeLock().lock();
+            try{
+                // close opened file, its own handles only
+                synchronized (oftLock){
+                    OpenFile f = files.remove(descIdx);
+                    if (f != null){
+                        for (int h : f.handles){
+                            oft.remove(h);
+                        }
+                        f.handles.clear();
                     }
                 }
-                // not enough blocks
-                if (found != blks){
-                    return -1;
-                }
 
-                // allocate new blk
-                for (int i = 0; i < blkIdx.length; i++){
-                    IO_System.setBit(tmp, true, blkIdx[i]);
-                    desc[oldNumBlks+i+1] = blkIdx[i];
-                }
+                // clear bitmap, data extents and map blocks
+                Extent_Map m = fileMap(descIdx);
+                synchronized (metaLock){
+                    for (int i = 0; i < m.count(); i++){
+                        // valid blk
+                        if (m.start(i) > 0){
+                            bitmap.setRange(m.start(i), m.length(i), false);
+                        }
+                    }
+                    for (int i = 0; i < m.numMapBlocks(); i++){
+                        bitmap.clear(m.mapBlock(i));
+                    }
 
-                // update bitmap
-                io.writeBlock(0, tmp);
+                    flushBitmap();
+                    writeDesc(descIdx, new int[DESC_INTS]);
+                    freeHint = Math.min(freeHint, descIdx);
+                }
+            } finally{
+                stripe(descIdx).writeLock().unlock();
+            }
 
+            return true;
+        } finally{
+            dirLock.writeLock().unlock();
+            boolean logged = j != null && j.end();
+            fsLock.readLock().unlock();
+            if (logged){
+                j.commit(tx);
             }
-            desc[0] = oft[index].pos + count;
-            writeDesc(oft[index].index, desc);
+            stats.time(Fs_Stats.DESTROY, t0);
         }
+    }
 
-        int startPos = oft[index].pos % IO_System.B;
-        int written = 0;
-        while (count > 0){
-            // calculate real count
-            int rcnt = count;
-            if (startPos + rcnt > IO_System.B){
-                rcnt = IO_System.B - startPos;
+
+    // move the blocks of every file not in one piece into one free
+    // run, the first long enough from the start of the data blocks, so files
+    // end up contiguous and packed to the front
+    // a file at a time with the file system mounted, other calls go on
+    // between files, a file with no free run as long as it stays as it is
+    // return the number of files moved
+    public int defragment(){
+        if (readOnly){
+            return 0;
+        }
+        int moved = 0;
+        for (int idx = 0; idx < geo.numDescriptors; idx++){
+            if (defragment(idx)){
+                moved++;
             }
+        }
+        return moved;
+    }
 
-            // write to buffer
-            for (int i = 0; i < rcnt; i++){
-                oft[index].buffer[startPos + i] = data[written+i];
+    // move descriptor idx into one run, return false=left where it was
+    private boolean defragment(int idx){
+        fsLock.readLock().lock();
+        Journal j = opJournal();
+        long tx = j != null ? j.begin() : 0;
+        dirLock.readLock().lock();
+        stripe(idx).writeLock().lock();
+        try{
+            if (idx >= geo.numDescriptors || descFree(idx)){
+                return false;
+            }
+            // files whose blocks follow each other already, holes between
+            // them do not count
+            Extent_Map m = fileMap(idx);
+            int n = m.allocated();
+            boolean together = true;
+            for (int i = 0, at = -1; i < m.count(); i++){
+                if (m.start(i) != 0){
+                    together &= at < 0 || m.start(i) == at;
+                    at = m.start(i) + m.length(i);
+                }
+            }
+            if (together){
+                return false;
             }
 
-            written += rcnt;
-            oft[index].pos += rcnt;
-            count -= rcnt;
+            int start;
+            synchronized (metaLock){
+                start = bitmap.findRun(0, n);
+                if (start < 0){
+                    return false;
+                }
+                bitmap.setRange(start, n, true);
+            }
 
-            if (startPos + rcnt == IO_System.B){
-                // write old data
-                int oldblkIdx = (oft[index].pos-1) / IO_System.B;
-                if (oldblkIdx < desc.length-1 && desc[oldblkIdx+1] > 0){
-                    int blk = desc[oldblkIdx+1]; // -1=unused, 0=freenode, >0=used
-                    io.writeBlock(blk, oft[index].buffer);  // write back
+            // copy the data, changes in the open file's buffer first, the
+            // old blocks stay as they are until the file points at the new
+            OpenFile f = openFile(idx);
+            if (f != null){
+                writeBack(f);
+            }
+            byte[] b = new byte[geo.blockSize];
+            for (int i = 0, to = start; i < m.blocks(); i++){
+                int blk = m.lookup(i);
+                if (blk > 0){
+                    cache.readBlock(blk, b);
+                    if (idx == 0 && journal != null){
+                        // the directory is metadata too
+                        journal.log(to, b, 0);
+                    }
+                    cache.writeBlock(to, b);
+                    to++;
                 }
+            }
 
-                // read new data to buffer
-                int newblkIdx = oldblkIdx+1;
-                if (newblkIdx < desc.length-1 && desc[newblkIdx+1] > 0){
-                    int blk = desc[newblkIdx+1];
-                    io.readBlock(blk, oft[index].buffer);
+            // free the old extents and map blocks, then point the file at
+            // the run, the holes stay where they were
+            synchronized (metaLock){
+                int count = m.count();
+                int[] starts = new int[count];
+                int[] lens = new int[count];
+                for (int i = 0; i < count; i++){
+                    starts[i] = m.start(i);
+                    lens[i] = m.length(i);
+                    if (starts[i] > 0){
+                        bitmap.setRange(starts[i], lens[i], false);
+                    }
+                }
+                m.truncate(0);
+                for (int i = 0, to = start; i < count; i++){
+                    m.add(starts[i] != 0 ? to : 0, lens[i]);
+                    to += starts[i] != 0 ? lens[i] : 0;
                 }
-                startPos = 0;
+                if (!saveMap(idx, 0)){
+                    // no room for map blocks, the file goes back to its
+                    // old blocks and the run is given back
+                    stats.allocFailed();
+                    m.truncate(0);
+                    for (int i = 0; i < count; i++){
+                        m.add(starts[i], lens[i]);
+                        if (starts[i] > 0){
+                            bitmap.setRange(starts[i], lens[i], true);
+                        }
+                    }
+                    bitmap.setRange(start, n, false);
+                    flushBitmap();
+                    return false;
+                }
+            }
+            return true;
+        } finally{
+            stripe(idx).writeLock().unlock();
+            dirLock.readLock().unlock();
+            boolean logged = j != null && j.end();
+            fsLock.readLock().unlock();
+            if (logged){
+                j.commit(tx);
             }
         }
-
-        return written;
     }
 
-    // list the directory
-    public String directory(){
-        if (!lseek(0, 0)){
-            return null;
-        }
-        byte[] entry = new byte[8];
-        String list = "";
+    // what a check found, shared by its tasks
+    class Check{
+        final Fs_Check report = new Fs_Check();
+        final AtomicIntegerArray owner = new AtomicIntegerArray(geo.numBlocks);    // descriptor + 1, 0=none
+        final Set<Integer> shared = ConcurrentHashMap.newKeySet();  // blocks claimed more than once
+        final Extent_Map[] maps = new Extent_Map[geo.numDescriptors];   // as read from the disk
+        final boolean[] bad = new boolean[geo.numDescriptors];      // extents or map to rebuild
+        final AtomicInteger inUse = new AtomicInteger();
+        final List<String> unlink = new ArrayList<String>();    // dangling and duplicate names
+        final List<Integer> orphans = new ArrayList<Integer>();
+    }
 
-        while (read(0, entry, 8) == 8){
-            String fname = IO_System.unpackStr(entry, 0).trim();
+    // check that the bitmap, the descriptors and the directory agree: every
+    // block in use belongs to one file and is used in the bitmap, every
+    // block used in the bitmap belongs to a file, every name leads to a
+    // descriptor in use and every descriptor in use has a name
+    // the files and the bitmap are scanned by fork-join tasks on all
+    // processors, the disk is held the whole time
+    // repair: a block claimed twice stays with the lowest descriptor and
+    // the others get a copy, blocks out of range become holes, the bitmap
+    // follows the files, bad names are removed and files with no name get
+    // one, #<descriptor>, or are freed when it cannot be added
+    public Fs_Check check(boolean repair){
+        long t0 = System.nanoTime();
+        repair &= !readOnly;
+        fsLock.writeLock().lock();
+        Journal j = repair ? journal : null;
+        long tx = j != null ? j.begin() : 0;
+        Check c = new Check();
+        try{
+            for (OpenFile f : files.values()){
+                writeBack(f);
+            }
+            new ScanFiles(c, 0, geo.numDescriptors).invoke();
+            new ScanBlocks(c, 0, geo.numBlocks).invoke();
+            checkDir(c);
+            if (repair && !c.report.clean()){
+                repair(c);
+            }
 
-            if (!fname.isEmpty()){
-                if (!list.isEmpty()){
-                    list += " ";
+            int n = 0;
+            for (int idx = 1; idx < geo.numDescriptors; idx++){
+                if (!descFree(idx)){
+                    n++;
                 }
-                list += fname;
+            }
+            c.report.done(n, c.inUse.get(), repair && !c.report.clean(), System.nanoTime() - t0);
+            return c.report;
+        } finally{
+            boolean logged = j != null && j.end();
+            fsLock.writeLock().unlock();
+            if (logged){
+                j.commit(tx);
             }
         }
-
-        return list;
     }
 
-    // create the file
-    public boolean create(String fname){
-        fname = fname.trim();
-        if (fname.length() > FILE_NAME_LEN || fname.isEmpty()){
-            return false;
+    // read the extent maps of descriptors [lo, hi) and claim their blocks
+    @SuppressWarnings("serial")
+    class ScanFiles extends RecursiveAction{
+        final Check c;
+        final int lo;
+        final int hi;
+
+        ScanFiles(Check c, int lo, int hi){
+            this.c = c;
+            this.lo = lo;
+            this.hi = hi;
         }
-        // search for a free descriptor
-        int freeDesc = -1;
-        byte[] buf = new byte[IO_System.B];
-        for (int i = 1; i < DATA_BLK_START && freeDesc < 0; i++){
-            io.readBlock(i, buf);
-            for (int p = 0; p < NUM_DESC_PER_BLK && freeDesc < 0; p++){
-                int[] desc = IO_System.unpackArr(buf, p*DESC_SIZE, 4);
-                // blkno=0 mean the descriptor is empty
-                if (desc[1] == 0 && desc[2] == 0 && desc[3] == 0){
-                    freeDesc = (i-1) * NUM_DESC_PER_BLK + p;
+
+        protected void compute(){
+            if (hi - lo > CHECK_FILES){
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new ScanFiles(c, lo, mid), new ScanFiles(c, mid, hi));
+                return;
+            }
+            byte[] buf = new byte[geo.blockSize];
+            for (int idx = lo; idx < hi; idx++){
+                if (!descFree(idx)){
+                    scanFile(c, idx, buf);
                 }
             }
         }
+    }
 
-        // no empty descriptor
-        if (freeDesc < 0){
-            return false;
+    // compare blocks [lo, hi) with the bitmap
+    @SuppressWarnings("serial")
+    class ScanBlocks extends RecursiveAction{
+        final Check c;
+        final int lo;
+        final int hi;
+
+        ScanBlocks(Check c, int lo, int hi){
+            this.c = c;
+            this.lo = lo;
+            this.hi = hi;
         }
 
-        // search directory entry
-        if (!lseek(0, 0)){
-            return false;
+        protected void compute(){
+            if (hi - lo > CHECK_BLOCKS){
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new ScanBlocks(c, lo, mid), new ScanBlocks(c, mid, hi));
+                return;
+            }
+            // described while the report lists more, then counted here and
+            // added at the end, a damaged bitmap does not lock the report
+            // for every block
+            int used = 0;
+            int markedFree = 0;
+            int leaked = 0;
+            boolean full = c.report.full();
+            for (int b = lo; b < hi; b++){
+                boolean owned = b < geo.dataStart || c.owner.get(b) != 0;
+                if (owned){
+                    used++;
+                }
+                if (owned && !bitmap.get(b)){
+                    if (full)
+                        markedFree++;
+                    else{
+                        c.report.found(Fs_Check.MARKED_FREE, "block " + b + " in use, free in the bitmap");
+                        full = c.report.full();
+                    }
+                }
+                else if (!owned && bitmap.get(b)){
+                    if (full)
+                        leaked++;
+                    else{
+                        c.report.found(Fs_Check.LEAKED, "block " + b + " used in the bitmap, in no file");
+                        full = c.report.full();
+                    }
+                }
+            }
+            c.report.found(Fs_Check.MARKED_FREE, markedFree);
+            c.report.found(Fs_Check.LEAKED, leaked);
+            c.inUse.addAndGet(used);
         }
-        byte[] entry = new byte[8];
-
-        int emptyPos = -1;
-        while (read(0, entry, 8) == 8){
-            String oldfname = IO_System.unpackStr(entry, 0).trim();
+    }
 
-            if (oldfname.equals(fname)){
-                return false;
-            }
+    // the extent map of descriptor idx as the disk has it, checked, and
+    // its blocks claimed for it
+    private void scanFile(Check c, int idx, byte[] buf){
+        int t = idx * DESC_INTS;
+        Extent_Map m = new Extent_Map();
+        if (descTable[t+2] < 0){
+            c.report.found(Fs_Check.BAD_EXTENT, "file " + idx + ": first extent of " + descTable[t+2] + " blocks");
+            c.bad[idx] = true;
+        }
+        m.add(descTable[t+1], descTable[t+2]);
 
-            if (oldfname.isEmpty()){
-                emptyPos = oft[0].pos - 8;
+        HashSet<Integer> seen = new HashSet<Integer>();
+        for (int nb = descTable[t+3]; nb != -1; ){
+            if (nb < geo.dataStart || nb >= geo.numBlocks || !seen.add(nb)){
+                c.report.found(Fs_Check.BAD_MAP, "file " + idx + ": extent map block " + nb);
+                c.bad[idx] = true;
                 break;
             }
+            claim(c, nb, idx);
+            m.addMapBlock(nb);
+            cache.readBlock(nb, buf);
+            nb = m.unpackBlock(buf, geo.blockSize);
         }
 
-        // write entry
-        IO_System.packStr(entry, fname, 0);
-        IO_System.pack(entry, freeDesc, 4);
-        if (emptyPos >= 0){
-            if (!lseek(0, emptyPos)){
-                return false;
+        for (int e = 0; e < m.count(); e++){
+            int start = m.start(e);
+            int len = m.length(e);
+            if (start == 0){
+                continue;
+            }
+            if (start < geo.dataStart || start > geo.numBlocks - len){
+                c.report.found(Fs_Check.BAD_EXTENT, "file " + idx + ": blocks " + start + "+" + len);
+                c.bad[idx] = true;
+                continue;
+            }
+            for (int b = start; b < start + len; b++){
+                claim(c, b, idx);
             }
         }
-        if (write(0, entry, 8) != 8){
-            return false;
-        }
-
-        // update the descriptor
-        int[] desc = new int[] {0, -1, -1, -1};
-
-        writeDesc(freeDesc, desc);
 
-        return true;
+        if (descLen(idx) < 0 || descLen(idx) > (long)m.blocks() * geo.blockSize){
+            c.report.found(Fs_Check.BAD_LENGTH, "file " + idx + ": length " + descLen(idx) + " in " + m.blocks() + " blocks");
+        }
+        c.maps[idx] = m;
     }
 
-    // destroy the named file.
-    public boolean destroy(String fname){
-        fname = fname.trim();
-        if (fname.length() > FILE_NAME_LEN || fname.isEmpty()){
-            return false;
+    // claim block b for descriptor idx, the lowest descriptor keeps it
+    private void claim(Check c, int b, int idx){
+        int me = idx + 1;
+        if (c.owner.compareAndSet(b, 0, me)){
+            return;
+        }
+        if (c.shared.add(b)){
+            c.report.found(Fs_Check.CROSS_LINKED, "block " + b + " in more than one file, one is " + idx);
         }
+        int cur = c.owner.get(b);
+        if (cur == me){
+            c.bad[idx] = true;  // twice in the same file
+        }
+        while (me < cur && !c.owner.compareAndSet(b, cur, me)){
+            cur = c.owner.get(b);
+        }
+    }
 
-        if (!lseek(0, 0)){
-            return false;
+    // every name leads to a descriptor in use, once, and every descriptor
+    // in use has a name
+    private void checkDir(Check c){
+        List<String> names = new ArrayList<String>();
+        try{
+            dir.list(null, null, null, fname -> names.add(fname));
+        } catch (RuntimeException e){
+            c.report.found(Fs_Check.BAD_DIR, "directory: " + e);
+            return;
         }
-        byte[] entry = new byte[8];
 
-        while (read(0, entry, 8) == 8){
-            String oldfname = IO_System.unpackStr(entry, 0).trim();
-            int descIdx = IO_System.unpack(entry, 4);
+        int[] links = new int[geo.numDescriptors];
+        for (String fname : names){
+            int idx = dir.lookup(fname);
+            if (idx <= 0 || idx >= geo.numDescriptors || descFree(idx)){
+                c.report.found(Fs_Check.DANGLING, fname + ": descriptor " + idx);
+                c.unlink.add(fname);
+            }
+            else if (links[idx]++ > 0){
+                c.report.found(Fs_Check.DUPLICATE, fname + ": descriptor " + idx + " has another name");
+                c.unlink.add(fname);
+            }
+        }
+        for (int idx = 1; idx < geo.numDescriptors; idx++){
+            if (!descFree(idx) && links[idx] == 0){
+                c.report.found(Fs_Check.ORPHAN, "file " + idx + " has no name");
+                c.orphans.add(idx);
+            }
+        }
+    }
 
-            //if there exist file for destroy
-            if (oldfname.equals(fname)){
-                // find the file, over write
-                lseek(0, oft[0].pos - 8);
-                for (int i = 0; i < 8; i++){
-                    entry[i] = 0;
+    // fix what check found, caller holds the disk
+    private void repair(Check c){
+        synchronized (metaLock){
+            for (int b = 0; b < geo.numBlocks; b++){
+                boolean owned = b < geo.dataStart || c.owner.get(b) != 0;
+                if (owned && !bitmap.get(b)){
+                    bitmap.set(b);
                 }
-                write(0, entry, 8);
-
-                // check if opened
+                else if (!owned && bitmap.get(b)){
+                    bitmap.clear(b);
+                }
+            }
+        }
 
-                int openedIdx = -1;
-                for (int i = 0; i < oft.length; i++){
-                    if (oft[i] != null && oft[i].index == descIdx)
-                        openedIdx = i;
+        byte[] buf = new byte[geo.blockSize];
+        for (int idx = 0; idx < geo.numDescriptors; idx++){
+            Extent_Map m = c.maps[idx];
+            if (m == null){
+                continue;
+            }
+            if (c.bad[idx] || sharesBlocks(c, idx)){
+                rebuild(c, idx, buf);
+                if (idx == 0){
+                    loadDirIndex();
                 }
-                // close opened file
-                if (openedIdx >= 0){
-                    oft[openedIdx] = null;
+            }
+            long max = (long)fileMap(idx).blocks() * geo.blockSize;
+            if (descLen(idx) < 0 || descLen(idx) > max){
+                synchronized (metaLock){
+                    descTable[idx * DESC_INTS] = (int)Math.max(0, Math.min(descLen(idx), max));
+                    flushDesc(idx);
                 }
+            }
+        }
 
-                // read descriptor
-                int[] desc = readDesc(descIdx);
-
-                // clear bitmap
-                byte[] tmp = new byte[IO_System.B];
-                io.readBlock(0, tmp);
-                for (int i = 1; i < desc.length; i++){
-                    // valid blk
-                    if (desc[i] > 0){
-                        IO_System.setBit(tmp, false, desc[i]);
+        dirLock.writeLock().lock();
+        try{
+            for (String fname : c.unlink){
+                dir.remove(fname);
+            }
+            for (int idx : c.orphans){
+                String fname = "#" + idx;
+                if (files.containsKey(idx) || dir.validName(fname) && dir.lookup(fname) < 0 && dir.add(fname, idx)){
+                    continue;
+                }
+                // no name to give it
+                Extent_Map m = fileMap(idx);
+                synchronized (metaLock){
+                    for (int e = 0; e < m.count(); e++){
+                        if (m.start(e) > 0){
+                            bitmap.setRange(m.start(e), m.length(e), false);
+                        }
+                    }
+                    for (int i = 0; i < m.numMapBlocks(); i++){
+                        bitmap.clear(m.mapBlock(i));
                     }
-                    desc[i] = 0;
+                    flushBitmap();
                 }
+                writeDesc(idx, new int[DESC_INTS]);
+                freeHint = Math.min(freeHint, idx);
+            }
+        } finally{
+            dirLock.writeLock().unlock();
+        }
 
-                io.writeBlock(0, tmp);
-                desc[0] = 0;
-                writeDesc(descIdx, desc);
+        synchronized (metaLock){
+            flushBitmap();
+        }
+    }
 
+    // true if descriptor idx uses a block a lower one keeps
+    private boolean sharesBlocks(Check c, int idx){
+        if (c.shared.isEmpty()){
+            return false;
+        }
+        Extent_Map m = c.maps[idx];
+        for (int i = 0; i < m.numMapBlocks(); i++){
+            if (c.shared.contains(m.mapBlock(i)) && c.owner.get(m.mapBlock(i)) != idx + 1){
                 return true;
             }
         }
-
-            return false;
+        for (int e = 0; e < m.count(); e++){
+            for (int b = m.start(e); b > 0 && b < m.start(e) + m.length(e); b++){
+                if (c.shared.contains(b) && c.owner.get(b) != idx + 1){
+                    return true;
+                }
+            }
+        }
+        return false;
     }
 
+    // give descriptor idx an extent map of its own: blocks out of range
+    // become holes, blocks it shares a copy, or a hole when the disk is
+    // full, and new map blocks
+    private void rebuild(Check c, int idx, byte[] buf){
+        Extent_Map old = c.maps[idx];
+        Extent_Map m = new Extent_Map();
+        HashSet<Integer> kept = new HashSet<Integer>();
+        int me = idx + 1;
+        for (int e = 0; e < old.count(); e++){
+            int start = old.start(e);
+            int len = old.length(e);
+            if (start == 0 || start < geo.dataStart || start > geo.numBlocks - len){
+                m.add(0, len);
+                continue;
+            }
+            for (int b = start; b < start + len; b++){
+                if (!c.shared.contains(b) || c.owner.get(b) == me && kept.add(b)){
+                    m.add(b, 1);
+                    continue;
+                }
+                int[] copy = new int[1];
+                boolean room;
+                synchronized (metaLock){
+                    room = bitmap.allocate(1, copy, 0);
+                }
+                if (!room){
+                    m.add(0, 1);
+                    continue;
+                }
+                cache.readBlock(b, buf);
+                if (idx == 0 && journal != null){
+                    journal.log(copy[0], buf, 0);
+                }
+                cache.writeBlock(copy[0], buf);
+                c.owner.set(copy[0], me);
+                m.add(copy[0], 1);
+            }
+        }
+
+        synchronized (metaLock){
+            // the old map blocks it keeps go, saveMap writes new ones
+            for (int i = 0; i < old.numMapBlocks(); i++){
+                int mb = old.mapBlock(i);
+                if (c.owner.get(mb) == me && !kept.contains(mb)){
+                    bitmap.clear(mb);
+                    c.owner.set(mb, 0);
+                }
+            }
+            maps.set(idx, m);
+            if (!saveMap(idx, 0)){
+                // no room for map blocks, the file keeps its first extent
+                for (int e = 1; e < m.count(); e++){
+                    if (m.start(e) > 0){
+                        bitmap.setRange(m.start(e), m.length(e), false);
+                    }
+                }
+                m.truncate(m.count() > 0 ? m.length(0) : 0);
+                saveMap(idx, 0);
+            }
+        }
+        OpenFile f = openFile(idx);
+        if (f != null){
+            f.blk = -1;
+        }
+    }
 
-    // the shell program
+    // the shell program, -b runs the batch shell with the remaining arguments
     public static void main(String[] args) throws IOException{
+        if (args.length > 0 && args[0].equals("-b")){
+            Batch_Shell.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         Scanner sc = new Scanner(System.in);
         PrintStream out = System.out;
         File_System sys = new File_System();
+        sys.stats().register("shell");
         FileOutputStream out_file = new FileOutputStream("output.txt");
         PrintStream print_output = new PrintStream(out_file);
 
@@ -608,6 +2398,19 @@ public class File_System{
                             print_output.println("disk saved");
                         }
                     }
+                    else if (cmd.equals("sy")){
+                        // sy <disk_cont.txt> save the changes, files stay open
+                        String fname = scw.nextLine().trim();
+
+                        if (sys.sync(fname, true)){
+                            out.println("disk synced");
+                            print_output.println("disk synced");
+                        }
+                        else{
+                            out.println("error");
+                            print_output.println("error");
+                        }
+                    }
                     else if (cmd.equals("op")){
                         // op <name> open the file
                         String fname = scw.nextLine().trim();
@@ -646,10 +2449,10 @@ public class File_System{
                             byte[] data = new byte[cnt];
                             if (sys.read(idx, data, cnt) >= 0){
                                 String tmp = new String(data);
-                                String str = "";
+                                StringBuilder str = new StringBuilder(tmp.length());
                                 for (int i = 0; i < tmp.length(); i++)
                                     if (tmp.charAt(i) != 0)
-                                        str += tmp.charAt(i);
+                                        str.append(tmp.charAt(i));
                                 out.println(str);
                                 print_output.println(str);
                             }
@@ -674,16 +2477,15 @@ public class File_System{
                         }
                     }
                     else if (cmd.equals("dr")){
-                        // directory
-                        String result = sys.directory();
-                        if (result == null){
-                            out.println("error");
-                            print_output.println("error");
-                        }
-                        else{
-                            out.println(result);
-                            print_output.println(result);
+                        // dr [prefix]  directory, printed as it is read
+                        Iterator<String> it = scw.hasNext() ? sys.names(scw.nextLine().trim()).iterator() : sys.names().iterator();
+                        for (boolean first = true; it.hasNext(); first = false){
+                            String fname = first ? it.next() : " " + it.next();
+                            out.print(fname);
+                            print_output.print(fname);
                         }
+                        out.println();
+                        print_output.println();
                     }
                     else if (cmd.equals("wr")){
                         // wr <index> <char> <count>  write the data
@@ -736,6 +2538,30 @@ public class File_System{
                             print_output.println("error");
                         }
                     }
+                    else if (cmd.equals("df")){
+                        // df  defragment
+                        String result = sys.defragment() + " files moved";
+                        out.println(result);
+                        print_output.println(result);
+                    }
+                    else if (cmd.equals("ss")){
+                        // ss <name> take a snapshot of the disk
+                        String name = scw.nextLine().trim();
+                        if (!name.isEmpty() && sys.snapshot(name)){
+                            out.println(name + " snapshot taken");
+                            print_output.println(name + " snapshot taken");
+                        }
+                        else{
+                            out.println("error");
+                            print_output.println("error");
+                        }
+                    }
+                    else if (cmd.equals("st")){
+                        // st  counters and latencies so far
+                        String result = sys.stats().snapshot();
+                        out.println(result);
+                        print_output.println(result);
+                    }
 
                     else
                     {
@@ -0,0 +1,90 @@
+import java.util.function.Predicate;
+
+
+// the original directory format, a file of 8 byte entries, a 4 byte name
+// and the descriptor index, an empty name marks a free entry
+// the whole file is indexed in memory when it is opened
+public class Flat_Directory implements Directory{
+    private Store file;
+    private Dir_Index index = new Dir_Index();
+
+    public Flat_Directory(Store file){
+        this.file = file;
+    }
+
+    public int load(){
+        index.clear();
+
+        byte[] entry = new byte[Dir_Index.ENTRY_SIZE];
+        int n = 0;
+        for (int p = 0; file.read(p, entry, 0, entry.length) == entry.length; p += entry.length){
+            index.load(entry);
+            n++;
+        }
+        return n;
+    }
+
+    public boolean validName(String fname){
+        return !fname.isEmpty() && fname.length() <= File_System.FILE_NAME_LEN;
+    }
+
+    public int lookup(String fname){
+        return index.lookup(fname);
+    }
+
+    public boolean add(String fname, int idx){
+        byte[] entry = new byte[Dir_Index.ENTRY_SIZE];
+        IO_System.packStr(entry, fname, 0);
+        IO_System.pack(entry, idx, 4);
+
+        int slot = index.freeSlot();
+        if (!file.write(slot * Dir_Index.ENTRY_SIZE, entry, 0, entry.length)){
+            return false;
+        }
+        index.put(IO_System.unpackStr(entry, 0), slot, idx);
+        return true;
+    }
+
+    public boolean remove(String fname){
+        int slot = index.slotOf(fname);
+        if (slot < 0){
+            return false;
+        }
+
+        // over write the entry
+        byte[] entry = new byte[Dir_Index.ENTRY_SIZE];
+        if (!file.write(slot * Dir_Index.ENTRY_SIZE, entry, 0, entry.length)){
+            return false;
+        }
+        index.remove(fname);
+        return true;
+    }
+
+    // names in file order, the cursor is the number of an entry
+    public String list(String from, String to, String cursor, Predicate<String> each){
+        int slot = cursor == null ? 0 : Integer.parseInt(cursor);
+        if (slot < 0){
+            throw new IllegalArgumentException("bad cursor " + cursor);
+        }
+        byte[] entry = new byte[Dir_Index.ENTRY_SIZE];
+        for (; file.read(slot * Dir_Index.ENTRY_SIZE, entry, 0, entry.length) == entry.length; slot++){
+            String fname = IO_System.unpackStr(entry, 0).trim();
+            if (fname.isEmpty() || (from != null && fname.compareTo(from) < 0)
+                    || (to != null && fname.compareTo(to) >= 0)){
+                continue;
+            }
+            if (!each.test(fname)){
+                return Integer.toString(slot + 1);
+            }
+        }
+        return null;
+    }
+
+    public boolean sorted(){
+        return false;
+    }
+
+    public int size(){
+        return index.size();
+    }
+}
@@ -0,0 +1,145 @@
+import java.util.ArrayList;
+import java.util.List;
+
+
+// what File_System.check found: problems counted by kind, the first ones
+// described, and whether they were repaired
+//
+// usage: Fs_Check [-r] image
+//   -r  repair the problems found and save the image again
+// exits with 0 when the image is clean, 1 when it had problems, 2 when it
+// could not be loaded
+public class Fs_Check{
+    public static final int MAX_LISTED = 100;      // problems described, the rest only counted
+
+    // kinds of problem
+    public static final int BAD_EXTENT = 0;        // blocks out of the data area
+    public static final int BAD_MAP = 1;           // extent map chain out of range or looping
+    public static final int BAD_LENGTH = 2;        // length past the file's blocks
+    public static final int CROSS_LINKED = 3;      // block claimed by more than one file
+    public static final int MARKED_FREE = 4;       // block in use, free in the bitmap
+    public static final int LEAKED = 5;            // block used in the bitmap, owned by no file
+    public static final int DANGLING = 6;          // directory entry of a free or bad descriptor
+    public static final int DUPLICATE = 7;         // second directory entry of a descriptor
+    public static final int ORPHAN = 8;            // descriptor in use with no directory entry
+    public static final int BAD_DIR = 9;           // directory unreadable
+    public static final int KINDS = 10;
+
+    private static final String[] NAMES = {"bad extents", "bad extent maps", "bad lengths",
+            "cross-linked blocks", "used blocks marked free", "leaked blocks",
+            "dangling entries", "duplicate entries", "orphan files", "unreadable directory"};
+
+    private final int[] counts = new int[KINDS];
+    private final List<String> listed = new ArrayList<String>();
+    private int files = 0;
+    private int blocksInUse = 0;
+    private boolean repaired = false;
+    private long nanos = 0;
+
+    // count a problem, described while fewer than MAX_LISTED are
+    synchronized void found(int kind, String what){
+        counts[kind]++;
+        if (listed.size() < MAX_LISTED){
+            listed.add(what);
+        }
+    }
+
+    // count n problems found without a description
+    synchronized void found(int kind, int n){
+        counts[kind] += n;
+    }
+
+    // no more problems will be described, only counted
+    synchronized boolean full(){
+        return listed.size() >= MAX_LISTED;
+    }
+
+    void done(int files, int blocksInUse, boolean repaired, long nanos){
+        this.files = files;
+        this.blocksInUse = blocksInUse;
+        this.repaired = repaired;
+        this.nanos = nanos;
+    }
+
+    public synchronized int count(int kind){
+        return counts[kind];
+    }
+
+    public synchronized int problems(){
+        int n = 0;
+        for (int k = 0; k < KINDS; k++){
+            n += counts[k];
+        }
+        return n;
+    }
+
+    public boolean clean(){
+        return problems() == 0;
+    }
+
+    // the first problems found, described
+    public synchronized List<String> listed(){
+        return new ArrayList<String>(listed);
+    }
+
+    public int files(){
+        return files;
+    }
+
+    public int blocksInUse(){
+        return blocksInUse;
+    }
+
+    public boolean repaired(){
+        return repaired;
+    }
+
+    public synchronized String toString(){
+        StringBuilder s = new StringBuilder();
+        s.append(files).append(" files, ").append(blocksInUse).append(" blocks in use, checked in ")
+                .append(String.format("%.1f ms", nanos / 1e6));
+        for (int k = 0; k < KINDS; k++){
+            if (counts[k] > 0){
+                s.append(System.lineSeparator()).append(counts[k]).append(' ').append(NAMES[k]);
+            }
+        }
+        for (String p : listed){
+            s.append(System.lineSeparator()).append("  ").append(p);
+        }
+        if (problems() > listed.size()){
+            s.append(System.lineSeparator()).append("  ...");
+        }
+        s.append(System.lineSeparator()).append(clean() ? "clean" : repaired ? "repaired" : "not repaired");
+        return s.toString();
+    }
+
+    public static void main(String[] args){
+        boolean repair = false;
+        String image = null;
+        for (String a : args){
+            if (a.equals("-r")){
+                repair = true;
+            }
+            else{
+                image = a;
+            }
+        }
+        if (image == null){
+            System.err.println("usage: Fs_Check [-r] image");
+            System.exit(2);
+        }
+
+        File_System sys = new File_System();
+        if (!sys.loadDisk(image)){
+            System.err.println(image + ": no file system");
+            System.exit(2);
+        }
+        Fs_Check report = sys.check(repair);
+        System.out.println(report);
+        if (repair && !report.clean() && !sys.saveDisk(image)){
+            System.err.println(image + ": could not save");
+            System.exit(2);
+        }
+        System.exit(report.clean() ? 0 : 1);
+    }
+}
@@ -0,0 +1,318 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+// counters and latency histograms of one file system
+//
+// every count is a LongAdder, which spreads updates from many threads over
+// cells and only sums them when read, so counting costs no contention
+// histograms keep 4 buckets per power of 2, values are within 25% of exact
+//
+// registered with the platform MBean server it shows up in jconsole and
+// other JMX clients as File_System:type=Fs_Stats,name=<name>
+public class Fs_Stats implements Fs_StatsMBean{
+    // timed operations
+    public static final int CREATE = 0;
+    public static final int DESTROY = 1;
+    public static final int OPEN = 2;
+    public static final int CLOSE = 3;
+    public static final int READ = 4;
+    public static final int WRITE = 5;
+    public static final int LSEEK = 6;
+    public static final int DIRECTORY = 7;
+    public static final int LOAD = 8;
+    public static final int SAVE = 9;
+    public static final int SYNC = 10;
+    public static final int PUNCH = 11;
+    public static final String[] OPS = {"create", "destroy", "open", "close", "read",
+            "write", "lseek", "directory", "loadDisk", "saveDisk", "sync", "punchHole"};
+
+    // histogram of non-negative longs
+    static class Histogram{
+        static final int BUCKETS = 160;     // up to 2^40
+
+        LongAdder[] counts = new LongAdder[BUCKETS];
+        LongAdder sum = new LongAdder();
+        LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram(){
+            for (int i = 0; i < BUCKETS; i++){
+                counts[i] = new LongAdder();
+            }
+        }
+
+        // bucket of v, 0..3 exact, then 4 a power of 2
+        static int bucket(long v){
+            if (v < 4){
+                return (int)Math.max(v, 0);
+            }
+            int e = 63 - Long.numberOfLeadingZeros(v);
+            int b = (e - 1) * 4 + (int)((v >>> (e - 2)) & 3);
+            return Math.min(b, BUCKETS - 1);
+        }
+
+        // smallest value in bucket b
+        static long lowest(int b){
+            if (b < 4){
+                return b;
+            }
+            int e = b / 4 + 1;
+            return (long)(4 + b % 4) << (e - 2);
+        }
+
+        void record(long v){
+            counts[bucket(v)].increment();
+            sum.add(v);
+            max.accumulate(v);
+        }
+
+        long count(){
+            long n = 0;
+            for (LongAdder c : counts){
+                n += c.sum();
+            }
+            return n;
+        }
+
+        // value at or under which p percent of the records fall, the top of
+        // its bucket but no more than the largest record
+        long percentile(double p){
+            long[] c = new long[BUCKETS];
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++){
+                c[i] = counts[i].sum();
+                n += c[i];
+            }
+            if (n == 0){
+                return 0;
+            }
+            long rank = (long)Math.ceil(n * Math.min(Math.max(p, 0), 100) / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++){
+                seen += c[i];
+                if (seen >= Math.max(rank, 1)){
+                    return Math.min(i + 1 < BUCKETS ? lowest(i + 1) - 1 : Long.MAX_VALUE, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        long mean(){
+            long n = count();
+            return n == 0 ? 0 : sum.sum() / n;
+        }
+
+        void reset(){
+            for (LongAdder c : counts){
+                c.reset();
+            }
+            sum.reset();
+            max.reset();
+        }
+    }
+
+    // block device traffic
+    private final LongAdder blockReads = new LongAdder();
+    private final LongAdder blockWrites = new LongAdder();
+    private final LongAdder blockBytesRead = new LongAdder();
+    private final LongAdder blockBytesWritten = new LongAdder();
+
+    // bytes moved by read and write
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+
+    // entries looked at by directory listings and rebuilds
+    private final Histogram dirScans = new Histogram();
+
+    // no free block or descriptor
+    private final LongAdder allocFailures = new LongAdder();
+
+    // nanoseconds per operation
+    private final Histogram[] latency = new Histogram[OPS.length];
+
+    private ObjectName name;    // null=not registered
+
+    public Fs_Stats(){
+        for (int i = 0; i < latency.length; i++){
+            latency[i] = new Histogram();
+        }
+    }
+
+    public void blockRead(int bytes){
+        blockReads.increment();
+        blockBytesRead.add(bytes);
+    }
+
+    public void blockWritten(int bytes){
+        blockWrites.increment();
+        blockBytesWritten.add(bytes);
+    }
+
+    public void read(int bytes){
+        bytesRead.add(bytes);
+    }
+
+    public void written(int bytes){
+        bytesWritten.add(bytes);
+    }
+
+    // a scan of the directory looked at n entries
+    public void dirScan(int n){
+        dirScans.record(n);
+    }
+
+    public void allocFailed(){
+        allocFailures.increment();
+    }
+
+    // operation op started at System.nanoTime() t0 has ended
+    public void time(int op, long t0){
+        latency[op].record(System.nanoTime() - t0);
+    }
+
+    // register as an MBean under name, return false=failed
+    public synchronized boolean register(String name){
+        try{
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName n = new ObjectName("File_System:type=Fs_Stats,name=" + ObjectName.quote(name));
+            unregister();
+            server.registerMBean(this, n);
+            this.name = n;
+            return true;
+        } catch (JMException e){
+            return false;
+        }
+    }
+
+    public synchronized void unregister(){
+        if (name != null){
+            try{
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e){
+                // already gone
+            }
+            name = null;
+        }
+    }
+
+    public long getBlockReads(){
+        return blockReads.sum();
+    }
+
+    public long getBlockWrites(){
+        return blockWrites.sum();
+    }
+
+    public long getBlockBytesRead(){
+        return blockBytesRead.sum();
+    }
+
+    public long getBlockBytesWritten(){
+        return blockBytesWritten.sum();
+    }
+
+    public long getBytesRead(){
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten(){
+        return bytesWritten.sum();
+    }
+
+    public long getDirectoryScans(){
+        return dirScans.count();
+    }
+
+    public long getDirectoryEntriesScanned(){
+        return dirScans.sum.sum();
+    }
+
+    public long getAllocationFailures(){
+        return allocFailures.sum();
+    }
+
+    public String[] getOperations(){
+        return OPS.clone();
+    }
+
+    // index of the named operation, -1=none
+    private static int op(String name){
+        for (int i = 0; i < OPS.length; i++){
+            if (OPS[i].equals(name)){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public long count(String op){
+        int i = op(op);
+        return i < 0 ? 0 : latency[i].count();
+    }
+
+    public long meanNanos(String op){
+        int i = op(op);
+        return i < 0 ? 0 : latency[i].mean();
+    }
+
+    public long percentileNanos(String op, double p){
+        int i = op(op);
+        return i < 0 ? 0 : latency[i].percentile(p);
+    }
+
+    public void reset(){
+        blockReads.reset();
+        blockWrites.reset();
+        blockBytesRead.reset();
+        blockBytesWritten.reset();
+        bytesRead.reset();
+        bytesWritten.reset();
+        dirScans.reset();
+        allocFailures.reset();
+        for (Histogram h : latency){
+            h.reset();
+        }
+    }
+
+    // every counter, then a line per operation that ran, times in microseconds
+    public String snapshot(){
+        StringBuilder sb = new StringBuilder();
+        String nl = System.lineSeparator();
+        sb.append("block reads ").append(getBlockReads())
+                .append(" (").append(getBlockBytesRead()).append(" bytes)").append(nl);
+        sb.append("block writes ").append(getBlockWrites())
+                .append(" (").append(getBlockBytesWritten()).append(" bytes)").append(nl);
+        sb.append("bytes read ").append(getBytesRead())
+                .append(", written ").append(getBytesWritten()).append(nl);
+        sb.append("directory scans ").append(getDirectoryScans())
+                .append(", entries ").append(getDirectoryEntriesScanned())
+                .append(", longest ").append(dirScans.percentile(100)).append(nl);
+        sb.append("allocation failures ").append(getAllocationFailures()).append(nl);
+        sb.append("op count mean p50 p99 max (us)");
+        for (int i = 0; i < OPS.length; i++){
+            Histogram h = latency[i];
+            long n = h.count();
+            if (n == 0){
+                continue;
+            }
+            sb.append(nl).append(OPS[i]).append(' ').append(n)
+                    .append(' ').append(micros(h.mean()))
+                    .append(' ').append(micros(h.percentile(50)))
+                    .append(' ').append(micros(h.percentile(99)))
+                    .append(' ').append(micros(h.percentile(100)));
+        }
+        return sb.toString();
+    }
+
+    public String getSnapshot(){
+        return snapshot();
+    }
+
+    private static String micros(long nanos){
+        return String.format("%.1f", nanos / 1000.0);
+    }
+}
@@ -0,0 +1,24 @@
+// management interface of Fs_Stats, attributes are the getters
+public interface Fs_StatsMBean{
+    long getBlockReads();
+    long getBlockWrites();
+    long getBlockBytesRead();
+    long getBlockBytesWritten();
+    long getBytesRead();
+    long getBytesWritten();
+    long getDirectoryScans();
+    long getDirectoryEntriesScanned();
+    long getAllocationFailures();
+    String[] getOperations();
+    String getSnapshot();
+
+    // calls of the named operation
+    long count(String op);
+
+    long meanNanos(String op);
+
+    // latency at or under which p percent of the calls finished
+    long percentileNanos(String op, double p);
+
+    void reset();
+}
@@ -0,0 +1,96 @@
+import java.util.Arrays;
+
+
+// table of open file handles, grown on demand up to a limit
+// used handles are kept as a bit set, so the lowest free handle is found a
+// word at a time from the first word that may have one, like the old scan
+public class Handle_Table<T>{
+    private Object[] items;
+    private long[] used;    // bit h set = handle h in use
+    private int low;        // words before this one are full
+    private int max;        // most handles
+    private int size;
+
+    public Handle_Table(int initial, int max){
+        this.max = max;
+        this.items = new Object[Math.max(1, Math.min(initial, max))];
+        this.used = new long[(items.length + 63) / 64];
+    }
+
+    // item of handle h, null=free
+    @SuppressWarnings("unchecked")
+    public T get(int h){
+        if (h < 0 || h >= items.length){
+            return null;
+        }
+        return (T)items[h];
+    }
+
+    // store item under the lowest free handle, -1=table full
+    public int add(T item){
+        int w = low;
+        while (w < used.length && used[w] == -1L){
+            w++;
+        }
+        low = w;
+
+        int h = w < used.length ? (w << 6) + Long.numberOfTrailingZeros(~used[w]) : used.length << 6;
+        if (h >= max){
+            return -1;
+        }
+        if (h >= items.length){
+            grow(h + 1);
+        }
+        used[h >>> 6] |= 1L << h;
+        items[h] = item;
+        size++;
+        return h;
+    }
+
+    // free handle h, return false=not in use
+    public boolean remove(int h){
+        if (get(h) == null){
+            return false;
+        }
+        items[h] = null;
+        used[h >>> 6] &= ~(1L << h);
+        if ((h >>> 6) < low){
+            low = h >>> 6;
+        }
+        size--;
+        return true;
+    }
+
+    public void clear(){
+        Arrays.fill(items, null);
+        Arrays.fill(used, 0);
+        low = 0;
+        size = 0;
+    }
+
+    // handles in use
+    public int size(){
+        return size;
+    }
+
+    // handles below this may be in use
+    public int length(){
+        return items.length;
+    }
+
+    public int max(){
+        return max;
+    }
+
+    private void grow(int need){
+        int n = (int)Math.min(max, Math.max(need, items.length * 2L));
+        Object[] a = new Object[n];
+        System.arraycopy(items, 0, a, 0, items.length);
+        items = a;
+        if ((n + 63) / 64 > used.length){
+            long[] u = new long[(n + 63) / 64];
+            System.arraycopy(used, 0, u, 0, used.length);
+            used = u;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+
+// the disk as an on-heap byte[L][B]
+public class Heap_Device implements Block_Device{
+    private byte[][] ldisk;
+    private int blockSize;
+
+    public Heap_Device(int numBlocks, int blockSize){
+        this.ldisk = new byte[numBlocks][blockSize];
+        this.blockSize = blockSize;
+    }
+
+    public int blocks(){
+        return ldisk.length;
+    }
+
+    public int blockSize(){
+        return blockSize;
+    }
+
+    public void read(int i, byte[] p, int off){
+        System.arraycopy(ldisk[i], 0, p, off, blockSize);
+    }
+
+    public void write(int i, byte[] p, int off){
+        System.arraycopy(p, off, ldisk[i], 0, blockSize);
+    }
+
+    public void clear(){
+        for (int i = 0; i < ldisk.length; i++){
+            Arrays.fill(ldisk[i], (byte)0);
+        }
+    }
+
+    public Block_Device resize(int numBlocks, int blockSize){
+        return new Heap_Device(numBlocks, blockSize);
+    }
+
+    public void force() throws IOException{
+    }
+
+    public void force(int first, int n) throws IOException{
+    }
+
+    public void close() throws IOException{
+    }
+}
@@ -1,57 +1,315 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 
 public class IO_System{
-    public static final int L = 64;   // 64 blocks
-    public static final int B = 64;   // 64 bytes per block
+    public static final int L = 64;   // default 64 blocks
+    public static final int B = 64;   // default 64 bytes per block
 
-    byte[][] ldisk;
+    private Block_Device dev;
+    private final Fs_Stats stats = new Fs_Stats();
+
+    // blocks written since the disk was last saved to or loaded from image,
+    // so saving there again only writes those
+    private AtomicLongArray dirty;
+    private Path image;         // null=no image, the next save writes everything
+    private long imageLength;   // image length and time when it was last written
+    private long imageTime;
+
+    // copy-on-write snapshots, kept in the snapshot area of the disk
+    private final Snapshot_Store snaps;
 
     // constructor, create the ldisk
     public IO_System(){
-        ldisk = new byte[L][B];
-        clear();
+        this(L, B);
+    }
+
+    public IO_System(int numBlocks, int blockSize){
+        this(new Heap_Device(numBlocks, blockSize));
+    }
+
+    public IO_System(Block_Device dev){
+        this.dev = dev;
+        this.dirty = new AtomicLongArray((dev.blocks() + 63) / 64);
+        this.snaps = new Snapshot_Store(this);
+    }
+
+    public Block_Device device(){
+        return dev;
+    }
+
+    // counters of this disk and the file system on it
+    public Fs_Stats stats(){
+        return stats;
+    }
+
+    public Snapshot_Store snapshots(){
+        return snaps;
+    }
+
+    // number of blocks
+    public int blocks(){
+        return dev.blocks();
+    }
+
+    // bytes per block
+    public int blockSize(){
+        return dev.blockSize();
+    }
+
+    // replace the disk with an empty one of the same kind
+    public void resize(int numBlocks, int blockSize){
+        snaps.reset(numBlocks, blockSize);
+        dev = dev.resize(numBlocks, blockSize);
+        dirty = new AtomicLongArray((dev.blocks() + 63) / 64);
+        image = null;
     }
 
     public void clear(){
-        for (int i = 0; i < L; i++)
-            for (int j = 0; j < B; j++)
-                ldisk[i][j] = 0;
+        snaps.reset(dev.blocks(), dev.blockSize());
+        dev.clear();
+        image = null;
     }
 
     public void readBlock(int i, byte[] p){
-        for (int j = 0; j < B; j++){
-            p[j] = ldisk[i][j];
-        }
+        readBlock(i, p, 0);
     }
 
     public void writeBlock(int i, byte[] p){
-        for (int j = 0; j < B; j++){
-            ldisk[i][j] = p[j];
+        writeBlock(i, p, 0);
+    }
+
+    // read block i into p[off..off+blockSize)
+    public void readBlock(int i, byte[] p, int off){
+        dev.read(i, p, off);
+        stats.blockRead(dev.blockSize());
+    }
+
+    // write block i from p[off..off+blockSize)
+    public void writeBlock(int i, byte[] p, int off){
+        if (snaps.isEmpty()){
+            dev.write(i, p, off);
+        }
+        else{
+            snaps.write(i, p, off);
+        }
+        touch(i);
+        stats.blockWritten(dev.blockSize());
+    }
+
+    // write block i past the snapshots, for their own area
+    void writeRaw(int i, byte[] p, int off){
+        dev.write(i, p, off);
+        touch(i);
+        stats.blockWritten(dev.blockSize());
+    }
+
+    // mark block i changed since the last save
+    private void touch(int i){
+        int w = i >>> 6;
+        long bit = 1L << i;
+        long v = dirty.get(w);
+        while ((v & bit) == 0 && !dirty.compareAndSet(w, v, v | bit)){
+            v = dirty.get(w);
+        }
+    }
+
+    // number of blocks changed since the last save
+    public int dirtyBlocks(){
+        int n = 0;
+        for (int w = 0; w < dirty.length(); w++){
+            n += Long.bitCount(dirty.get(w));
         }
+        return n;
+    }
+
+    // push written blocks to stable storage
+    public void force() throws IOException{
+        dev.force();
+    }
+
+    public void close() throws IOException{
+        dev.close();
+    }
+
+    // true if the disk is the named image file itself
+    public boolean isImage(String fname){
+        return dev instanceof Mapped_Device && ((Mapped_Device)dev).isImage(fname);
     }
 
     // save disk to a file
     public void saveFile(String fname) throws IOException{
-        FileOutputStream file = new FileOutputStream(fname);
-        for (int i = 0; i < L; i++){
-            file.write(ldisk[i]);
+        saveFile(fname, false);
+    }
+
+    // save disk to a file, in place and only the changed blocks when it is
+    // the image last saved or loaded and nobody else wrote it since
+    // force=return once the blocks are on stable storage
+    public void saveFile(String fname, boolean force) throws IOException{
+        if (isImage(fname)){
+            dev.force();
+            return;
+        }
+
+        Path path = Paths.get(fname).toAbsolutePath().normalize();
+        if (Packed_Image.wanted(path)){
+            // free blocks are left out unless a snapshot may still read them
+            image = null;
+            Packed_Image.write(dev, path, snaps.isEmpty(), force);
+            return;
+        }
+        File f = path.toFile();
+        boolean all = image == null || !image.equals(path)
+                || f.length() != imageLength || f.lastModified() != imageTime;
+        long size = (long)dev.blocks() * dev.blockSize();
+
+        image = null;   // a failed save leaves the file unknown
+        FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try{
+            if (all){
+                file.truncate(size);
+            }
+            writeBlocks(file, all);
+            if (file.size() < size){
+                // zero blocks past the last one written
+                file.write(ByteBuffer.allocate(1), size - 1);
+            }
+            if (force){
+                file.force(false);
+            }
+        } finally{
+            file.close();
+        }
+
+        image = path;
+        imageLength = f.length();
+        imageTime = f.lastModified();
+    }
+
+    // write the dirty blocks, or all, at their offsets, runs of blocks
+    // are gathered into one write
+    private void writeBlocks(FileChannel file, boolean all) throws IOException{
+        int bsize = dev.blockSize();
+        byte[] buf = new byte[Math.max(bsize, 64 * 1024) / bsize * bsize];
+        int per = buf.length / bsize;
+
+        int first = -1;     // first block in buf
+        int n = 0;
+        for (int w = 0; w < dirty.length(); w++){
+            // clear first, a block written meanwhile stays dirty
+            long v = dirty.getAndSet(w, 0);
+            if (all){
+                v = -1L;
+            }
+            while (v != 0){
+                int i = (w << 6) + Long.numberOfTrailingZeros(v);
+                v &= v - 1;
+                if (i >= dev.blocks()){
+                    break;
+                }
+                if (n > 0 && (i != first + n || n == per)){
+                    writeRun(file, buf, first, n);
+                    n = 0;
+                }
+                if (n == 0){
+                    first = i;
+                }
+                dev.read(i, buf, n * bsize);
+                n++;
+            }
+        }
+        if (n > 0){
+            writeRun(file, buf, first, n);
         }
-        file.close();
     }
 
-    // load disk from a file
+    private void writeRun(FileChannel file, byte[] buf, int first, int n) throws IOException{
+        ByteBuffer b = ByteBuffer.wrap(buf, 0, n * dev.blockSize());
+        long pos = (long)first * dev.blockSize();
+        while (b.hasRemaining()){
+            pos += file.write(b, pos);
+        }
+    }
+
+    // load disk from a file, the superblock decides the geometry
+    // an image without one must be a default size image, a packed image
+    // is found by its header
     public void loadFile(String fname) throws IOException{
-        FileInputStream file = new FileInputStream(fname);
-        for (int i = 0; i < L; i++){
-            if (file.read(ldisk[i]) != B){
-                file.close();
+        if (isImage(fname)){
+            return;
+        }
+        image = null;
+
+        Path path = Paths.get(fname).toAbsolutePath().normalize();
+        if (Packed_Image.isPacked(path)){
+            Packed_Image img = Packed_Image.open(path);
+            snaps.reset(img.blocks(), img.blockSize());
+            if (dev.blocks() != img.blocks() || dev.blockSize() != img.blockSize()){
+                dev = dev.resize(img.blocks(), img.blockSize());
+            }
+            img.read(dev);
+            snaps.open();
+            // the next save of a raw image writes every block
+            dirty = new AtomicLongArray((dev.blocks() + 63) / 64);
+            return;
+        }
+
+        long len = new File(fname).length();
+        DataInputStream file = new DataInputStream(new BufferedInputStream(new FileInputStream(fname), 64 * 1024));
+        try{
+            byte[] first = new byte[Disk_Geometry.MAX_HEADER_SIZE];
+            file.readFully(first);
+
+            Disk_Geometry geo = Disk_Geometry.unpack(first);
+            int nblks = L;
+            int bsize = B;
+            if (geo != null){
+                nblks = geo.numBlocks;
+                bsize = geo.blockSize;
+            }
+            if (len != (long)nblks * bsize){
                 throw new IOException("Error reading");
             }
+
+            snaps.reset(nblks, bsize);
+            if (dev.blocks() != nblks || dev.blockSize() != bsize){
+                dev = dev.resize(nblks, bsize);
+            }
+            byte[] blk = new byte[bsize];
+            System.arraycopy(first, 0, blk, 0, first.length);
+            file.readFully(blk, first.length, bsize - first.length);
+            dev.write(0, blk, 0);
+            for (int i = 1; i < nblks; i++){
+                file.readFully(blk);
+                dev.write(i, blk, 0);
+            }
+        } finally{
+            file.close();
+        }
+        snaps.open();
+
+        // the disk now matches the file
+        if (dirty.length() != (dev.blocks() + 63) / 64){
+            dirty = new AtomicLongArray((dev.blocks() + 63) / 64);
+        }
+        else{
+            for (int w = 0; w < dirty.length(); w++){
+                dirty.set(w, 0);
+            }
         }
-        file.close();
+        File f = new File(fname);
+        image = f.toPath().toAbsolutePath().normalize();
+        imageLength = f.length();
+        imageTime = f.lastModified();
     }
 
 
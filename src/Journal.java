@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+
+// write-ahead journal of metadata blocks, kept next to an image file
+//
+// superblock, bitmap, descriptor, extent map and directory blocks are logged
+// as whole block copies into the open batch, an operation commits by
+// appending the batch in one write and forcing it, so every operation that
+// waited on the same force shares it (group commit)
+// a block logged stays pinned in the cache until its record is forced, so
+// neither eviction nor write-behind puts it on the disk first: replay only
+// redoes, it could not undo a block that got there ahead of its record
+// file data is not logged nor written before the record that points at it
+// (writeback mode): after a crash a data block written since the last save
+// may read as it was then, and a block allocated since may still hold what
+// a file freed before it left there
+//
+// record: int magic, long batch, int count, int block size, count times
+// (int block, block bytes), then int crc32 of everything before it
+// a torn or bad record ends the journal
+public class Journal{
+    public static final int MAGIC = 0x4a524e4c;    // "JRNL"
+    public static final int RECORD_HEADER = 20;    // magic, batch, count, block size
+
+    class Batch{
+        long seq = 0;
+        LinkedHashMap<Integer, byte[]> blocks = new LinkedHashMap<Integer, byte[]>();
+        int active = 0;     // operations logging into it
+    }
+
+    private Path path;
+    private FileChannel file;
+    private int blockSize;
+    private final Block_Cache cache;    // where logged blocks are pinned, null=none
+    private long end = 0;       // length of the good records
+
+    private Batch cur = new Batch();
+    private boolean draining = false;   // a batch is being closed, new operations wait
+    private long durable = -1;          // last batch on stable storage
+    private final Object writer = new Object();
+    private final ThreadLocal<boolean[]> logged = ThreadLocal.withInitial(() -> new boolean[1]);
+
+    private long batches = 0;   // records written
+
+    // open or create the journal file, blocks logged are pinned in cache
+    // until they are on stable storage
+    public Journal(String fname, int blockSize, Block_Cache cache) throws IOException{
+        this.path = Paths.get(fname).toAbsolutePath();
+        this.blockSize = blockSize;
+        this.cache = cache;
+        this.file = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // journal file of an image
+    public static String nameOf(String image){
+        return image + ".jnl";
+    }
+
+    public Path path(){
+        return path;
+    }
+
+    // write the blocks of every good record onto io in order, drop anything
+    // after them, return the number of records replayed
+    public int replay(IO_System io) throws IOException{
+        int n = 0;
+        long pos = 0;
+        ByteBuffer head = ByteBuffer.allocate(RECORD_HEADER);
+        while (true){
+            head.clear();
+            if (readFully(head, pos) < RECORD_HEADER){
+                break;
+            }
+            head.flip();
+            int magic = head.getInt();
+            long seq = head.getLong();
+            int count = head.getInt();
+            int bsize = head.getInt();
+            if (magic != MAGIC || bsize != io.blockSize() || count < 0
+                    || count > io.blocks()){
+                break;
+            }
+
+            long len = RECORD_HEADER + (long)count * (4 + bsize) + 4;
+            if (pos + len > file.size()){
+                break;
+            }
+            ByteBuffer rec = ByteBuffer.allocate((int)len);
+            readFully(rec, pos);
+            CRC32 crc = new CRC32();
+            crc.update(rec.array(), 0, (int)len - 4);
+            if ((int)crc.getValue() != rec.getInt((int)len - 4)){
+                break;
+            }
+
+            rec.position(RECORD_HEADER);
+            byte[] blk = new byte[bsize];
+            for (int i = 0; i < count; i++){
+                int b = rec.getInt();
+                rec.get(blk);
+                if (b >= 0 && b < io.blocks()){
+                    io.writeBlock(b, blk);
+                }
+            }
+            cur.seq = seq + 1;
+            pos += len;
+            n++;
+        }
+
+        end = pos;
+        file.truncate(end);
+        durable = cur.seq - 1;
+        return n;
+    }
+
+    private int readFully(ByteBuffer b, long pos) throws IOException{
+        int n = 0;
+        while (b.hasRemaining()){
+            int r = file.read(b, pos + n);
+            if (r < 0){
+                break;
+            }
+            n += r;
+        }
+        return n;
+    }
+
+    // start an operation, return the batch it logs into
+    public synchronized long begin(){
+        while (draining){
+            try{
+                wait();
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+            }
+        }
+        cur.active++;
+        logged.get()[0] = false;
+        return cur.seq;
+    }
+
+    // log block blk from data[off..off+blockSize), a later copy of the same
+    // block in the batch replaces it
+    // log before the block is written to the cache, which it is pinned in
+    // from the first time it is logged in the batch until it is committed
+    public synchronized void log(int blk, byte[] data, int off){
+        byte[] b = cur.blocks.get(blk);
+        if (b == null){
+            b = new byte[blockSize];
+            cur.blocks.put(blk, b);
+            if (cache != null){
+                cache.pin(blk);
+            }
+        }
+        System.arraycopy(data, off, b, 0, blockSize);
+        logged.get()[0] = true;
+    }
+
+    // finish an operation, return true if it logged anything
+    public synchronized boolean end(){
+        if (--cur.active == 0 && draining){
+            notifyAll();
+        }
+        return logged.get()[0];
+    }
+
+    // return once batch seq is on stable storage, the first operation to
+    // get here writes it together with everyone else's in it
+    public void commit(long seq){
+        synchronized (writer){
+            if (durable >= seq){
+                return;
+            }
+
+            Batch b;
+            synchronized (this){
+                // let operations already in the batch finish
+                draining = true;
+                while (cur.active > 0){
+                    try{
+                        wait();
+                    } catch (InterruptedException e){
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                b = cur;
+                cur = new Batch();
+                cur.seq = b.seq + 1;
+                draining = false;
+                notifyAll();
+            }
+
+            try{
+                write(b);
+            } catch (IOException e){
+                // its blocks stay pinned, they are not safe on the disk
+                throw new UncheckedIOException(e);
+            }
+            durable = b.seq;
+            unpin(b.blocks);
+        }
+    }
+
+    // commit every operation that has logged so far, no operation may be
+    // running, call before the cache is flushed
+    public void commitAll(){
+        long seq;
+        synchronized (this){
+            seq = cur.seq;
+        }
+        commit(seq);
+    }
+
+    // the records of these blocks are on stable storage or no longer
+    // needed, the cache may write them out
+    private void unpin(Map<Integer, byte[]> blocks){
+        if (cache != null){
+            for (int blk : blocks.keySet()){
+                cache.unpin(blk, false);
+            }
+        }
+    }
+
+    private void write(Batch b) throws IOException{
+        if (b.blocks.isEmpty()){
+            return;
+        }
+        int len = RECORD_HEADER + b.blocks.size() * (4 + blockSize) + 4;
+        ByteBuffer rec = ByteBuffer.allocate(len);
+        rec.putInt(MAGIC);
+        rec.putLong(b.seq);
+        rec.putInt(b.blocks.size());
+        rec.putInt(blockSize);
+        for (Map.Entry<Integer, byte[]> e : b.blocks.entrySet()){
+            rec.putInt(e.getKey());
+            rec.put(e.getValue());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(rec.array(), 0, len - 4);
+        rec.putInt((int)crc.getValue());
+        rec.flip();
+
+        long pos = end;
+        while (rec.hasRemaining()){
+            pos += file.write(rec, pos);
+        }
+        file.force(false);
+        end = pos;
+        batches++;
+    }
+
+    // the image holds everything logged so far, empty the journal
+    // no operation may be running
+    public void checkpoint() throws IOException{
+        synchronized (writer){
+            synchronized (this){
+                unpin(cur.blocks);
+                cur.blocks.clear();
+                durable = cur.seq;
+                cur.seq++;
+            }
+            file.truncate(0);
+            file.force(true);
+            end = 0;
+        }
+    }
+
+    // stop logging, operations still to commit return at once
+    public void close() throws IOException{
+        synchronized (writer){
+            synchronized (this){
+                unpin(cur.blocks);
+                cur.blocks.clear();
+                durable = cur.seq;
+            }
+            file.close();
+        }
+    }
+
+    // records written, each with one force
+    public long batches(){
+        return batches;
+    }
+}
@@ -0,0 +1,97 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+
+// the disk as a memory-mapped image file, persistent and page-cached by
+// the OS without an explicit save
+public class Mapped_Device extends Buffer_Device{
+    private Path path;
+    private FileChannel channel;
+
+    // map an image file, grown to the given size when new or empty,
+    // IOException when it already holds another size
+    public Mapped_Device(String fname, int numBlocks, int blockSize) throws IOException{
+        super(numBlocks, blockSize);
+        this.path = Paths.get(fname).toAbsolutePath();
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = (long)numBlocks * blockSize;
+        if (channel.size() != 0 && channel.size() != size){
+            long had = channel.size();
+            channel.close();
+            throw new IOException(fname + " is " + had + " bytes, not " + size);
+        }
+        map();
+    }
+
+    // the file is empty or the size already
+    private void map() throws IOException{
+        long size = (long)numBlocks * blockSize;
+        if (channel.size() < size){
+            // extend the file, the new tail reads as zeros
+            channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+        for (int c = 0; c < chunks.length; c++){
+            chunks[c] = channel.map(FileChannel.MapMode.READ_WRITE, (long)c * chunkBlocks * blockSize, chunkBytes(c));
+        }
+    }
+
+    // the image file behind this device
+    public Path path(){
+        return path;
+    }
+
+    // true if fname names the mapped image
+    public boolean isImage(String fname){
+        return Paths.get(fname).toAbsolutePath().normalize().equals(path.normalize());
+    }
+
+    // cut the file to nothing and grow it back, the OS hands back zero pages
+    public void clear(){
+        try{
+            channel.truncate(0);
+            map();
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public Block_Device resize(int numBlocks, int blockSize){
+        try{
+            chunks = null;
+            channel.truncate(0);
+            Mapped_Device dev = new Mapped_Device(path.toString(), numBlocks, blockSize);
+            channel.close();
+            return dev;
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void force() throws IOException{
+        for (int c = 0; c < chunks.length; c++){
+            ((MappedByteBuffer)chunks[c]).force();
+        }
+    }
+
+    public void force(int first, int n) throws IOException{
+        for (int i = first; i < first + n; ){
+            int c = i / chunkBlocks;
+            int k = Math.min(first + n, (c + 1) * chunkBlocks) - i;
+            ((MappedByteBuffer)chunks[c]).force((i % chunkBlocks) * blockSize, k * blockSize);
+            i += k;
+        }
+    }
+
+    public void close() throws IOException{
+        force();
+        chunks = new ByteBuffer[0];
+        channel.close();
+    }
+}
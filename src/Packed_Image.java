@@ -0,0 +1,350 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.stream.IntStream;
+
+
+// a disk image that leaves out free and zero blocks and deflates the rest
+// a chunk at a time, chunks are packed and unpacked in parallel, a window
+// of them at a time when packing
+//
+// header: int magic, int blocks, int blockSize, int chunkBlocks, int chunks
+// then per chunk: long offset, int length (0=every block zero), int crc of
+// the chunk before deflating, then int crc of the header and table
+// a chunk deflates a bitmap of the blocks it stores, bit i%8 of byte i/8,
+// followed by those blocks
+public class Packed_Image{
+    public static final int MAGIC = 0x46535a31;    // "FSZ1"
+    public static final int HEADER_SIZE = 20;      // 5 ints
+    public static final int ENTRY_SIZE = 16;       // long, 2 ints
+    public static final int CHUNK_BYTES = 256 * 1024;  // blocks per chunk hold this much
+    public static final String SUFFIX = ".fsz";    // new images with this name are packed
+    public static final int WINDOW = 2;            // chunks packed at once per processor
+
+    private final FileChannel file;
+    private final int blocks;
+    private final int blockSize;
+    private final int chunkBlocks;
+    private final long[] offset;
+    private final int[] length;
+    private final int[] crc;
+
+    private Packed_Image(FileChannel file) throws IOException{
+        this.file = file;
+        ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(file, h, 0);
+        h.flip();
+        if (h.getInt() != MAGIC){
+            throw new IOException("not a packed image");
+        }
+        blocks = h.getInt();
+        blockSize = h.getInt();
+        chunkBlocks = h.getInt();
+        int chunks = h.getInt();
+        if (blocks < 1 || blockSize < Disk_Geometry.HEADER_SIZE || chunkBlocks < 1
+                || chunks != (blocks + chunkBlocks - 1) / chunkBlocks){
+            throw new IOException("bad packed image header");
+        }
+
+        ByteBuffer t = ByteBuffer.allocate(chunks * ENTRY_SIZE + 4);
+        readFully(file, t, HEADER_SIZE);
+        t.flip();
+        CRC32 sum = new CRC32();
+        sum.update(h.array(), 0, HEADER_SIZE);
+        sum.update(t.array(), 0, chunks * ENTRY_SIZE);
+        offset = new long[chunks];
+        length = new int[chunks];
+        crc = new int[chunks];
+        for (int c = 0; c < chunks; c++){
+            offset[c] = t.getLong();
+            length[c] = t.getInt();
+            crc[c] = t.getInt();
+            if (length[c] < 0 || offset[c] < 0 || offset[c] + length[c] > file.size()){
+                throw new IOException("bad packed image table");
+            }
+        }
+        if (t.getInt() != (int)sum.getValue()){
+            throw new IOException("bad packed image checksum");
+        }
+    }
+
+    // true if fname is a packed image
+    public static boolean isPacked(Path path){
+        if (!Files.isRegularFile(path)){
+            return false;
+        }
+        try (FileChannel f = FileChannel.open(path, StandardOpenOption.READ)){
+            ByteBuffer b = ByteBuffer.allocate(4);
+            return f.read(b, 0) == 4 && b.getInt(0) == MAGIC;
+        } catch (IOException e){
+            return false;
+        }
+    }
+
+    // a save to path packs: the file there is packed, or it is new and
+    // named *.fsz
+    public static boolean wanted(Path path){
+        return Files.exists(path) ? isPacked(path) : path.toString().endsWith(SUFFIX);
+    }
+
+    // open a packed image to read its geometry, then its blocks
+    public static Packed_Image open(Path path) throws IOException{
+        FileChannel f = FileChannel.open(path, StandardOpenOption.READ);
+        try{
+            return new Packed_Image(f);
+        } catch (IOException e){
+            f.close();
+            throw e;
+        }
+    }
+
+    public int blocks(){
+        return blocks;
+    }
+
+    public int blockSize(){
+        return blockSize;
+    }
+
+    // unpack every block onto dev, which has this geometry, the chunks on
+    // all processors, and close the image
+    public void read(Block_Device dev) throws IOException{
+        try{
+            IntStream.range(0, offset.length).parallel().forEach(c -> {
+                try{
+                    readChunk(dev, c);
+                } catch (IOException e){
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e){
+            throw e.getCause();
+        } finally{
+            file.close();
+        }
+    }
+
+    private void readChunk(Block_Device dev, int c) throws IOException{
+        int first = c * chunkBlocks;
+        int n = Math.min(chunkBlocks, blocks - first);
+        int mapLen = (n + 7) / 8;
+        byte[] zero = new byte[blockSize];
+        if (length[c] == 0){
+            for (int i = 0; i < n; i++){
+                dev.write(first + i, zero, 0);
+            }
+            return;
+        }
+
+        ByteBuffer in = ByteBuffer.allocate(length[c]);
+        readFully(file, in, offset[c]);
+        Inflater inf = new Inflater();
+        byte[] raw = new byte[mapLen + n * blockSize];
+        int len = 0;
+        try{
+            inf.setInput(in.array(), 0, length[c]);
+            while (!inf.finished() && len < raw.length){
+                int k = inf.inflate(raw, len, raw.length - len);
+                if (k == 0 && (inf.needsInput() || inf.needsDictionary())){
+                    break;
+                }
+                len += k;
+            }
+        } catch (DataFormatException e){
+            throw new IOException("bad packed chunk " + c, e);
+        } finally{
+            inf.end();
+        }
+        CRC32 sum = new CRC32();
+        sum.update(raw, 0, len);
+        if (len < mapLen || (int)sum.getValue() != crc[c]){
+            throw new IOException("bad packed chunk " + c);
+        }
+
+        int at = mapLen;
+        for (int i = 0; i < n; i++){
+            if (IO_System.getBit(raw, i)){
+                if (at + blockSize > len){
+                    throw new IOException("bad packed chunk " + c);
+                }
+                dev.write(first + i, raw, at);
+                at += blockSize;
+            }
+            else{
+                dev.write(first + i, zero, 0);
+            }
+        }
+    }
+
+    // pack dev into path, leaving out zero blocks and, when skipFree, the
+    // blocks the bitmap in the superblock marks free
+    // the image is written to <path>.tmp, forced and moved over path, so a
+    // save that fails or is cut short leaves the old image as it was
+    // up to WINDOW chunks per processor are packed at once, each written
+    // as soon as the ones before it are
+    // force=return once the move is on stable storage too
+    public static void write(Block_Device dev, Path path, boolean skipFree, boolean force) throws IOException{
+        int blocks = dev.blocks();
+        int bsize = dev.blockSize();
+        int chunkBlocks = Math.max(1, CHUNK_BYTES / bsize);
+        int chunks = (blocks + chunkBlocks - 1) / chunkBlocks;
+        byte[] used = skipFree ? usedMap(dev) : null;
+        int window = WINDOW * Runtime.getRuntime().availableProcessors();
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE + chunks * ENTRY_SIZE + 4);
+        head.putInt(MAGIC).putInt(blocks).putInt(bsize).putInt(chunkBlocks).putInt(chunks);
+        int[] crc = new int[chunks];
+        ArrayDeque<CompletableFuture<byte[]>> packing = new ArrayDeque<CompletableFuture<byte[]>>();
+        boolean written = false;
+        FileChannel file = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try{
+            // chunks after the header and table, which are written last
+            long pos = head.capacity();
+            int next = 0;
+            for (int c = 0; c < chunks; c++){
+                for (; next < chunks && next < c + window; next++){
+                    int k = next;
+                    packing.add(CompletableFuture.supplyAsync(() -> packChunk(dev, used, k * chunkBlocks,
+                            Math.min(chunkBlocks, blocks - k * chunkBlocks), crc, k)));
+                }
+                byte[] packed = packing.remove().join();
+                int len = packed != null ? packed.length : 0;
+                if (packed != null){
+                    writeFully(file, ByteBuffer.wrap(packed), pos);
+                }
+                head.putLong(pos).putInt(len).putInt(crc[c]);
+                pos += len;
+            }
+
+            CRC32 sum = new CRC32();
+            sum.update(head.array(), 0, head.position());
+            head.putInt((int)sum.getValue());
+            head.flip();
+            writeFully(file, head, 0);
+            file.force(false);
+            written = true;
+        } finally{
+            file.close();
+            if (!written){
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (force){
+            forceDir(path.getParent());
+        }
+    }
+
+    // force the entry of a file moved into dir, not every platform can
+    // open a directory
+    private static void forceDir(Path dir){
+        if (dir == null){
+            return;
+        }
+        try (FileChannel d = FileChannel.open(dir, StandardOpenOption.READ)){
+            d.force(true);
+        } catch (IOException e){
+            // the file itself is forced
+        }
+    }
+
+    // the bitmap of a disk with a superblock, null=none, keep every block
+    private static byte[] usedMap(Block_Device dev){
+        int bsize = dev.blockSize();
+        byte[] blk = new byte[bsize];
+        dev.read(0, blk, 0);
+        Disk_Geometry geo = Disk_Geometry.unpack(blk);
+        if (geo == null || geo.numBlocks != dev.blocks() || geo.blockSize != bsize){
+            return null;
+        }
+        byte[] map = new byte[geo.bitmapBlocks * bsize];
+        for (int i = 0; i < geo.bitmapBlocks; i++){
+            dev.read(i, map, i * bsize);
+        }
+        byte[] used = new byte[(dev.blocks() + 7) / 8];
+        System.arraycopy(map, geo.headerSize, used, 0, used.length);
+        return used;
+    }
+
+    // deflate blocks [first, first+n), null=all of them left out
+    private static byte[] packChunk(Block_Device dev, byte[] used, int first, int n, int[] crc, int c){
+        int bsize = dev.blockSize();
+        int mapLen = (n + 7) / 8;
+        byte[] raw = new byte[mapLen + n * bsize];
+        int len = mapLen;
+        for (int i = 0; i < n; i++){
+            if (used != null && !IO_System.getBit(used, first + i)){
+                continue;
+            }
+            dev.read(first + i, raw, len);
+            if (!zero(raw, len, bsize)){
+                IO_System.setBit(raw, true, i);
+                len += bsize;
+            }
+        }
+        if (len == mapLen){
+            return null;
+        }
+
+        CRC32 sum = new CRC32();
+        sum.update(raw, 0, len);
+        crc[c] = (int)sum.getValue();
+
+        Deflater def = new Deflater(Deflater.BEST_SPEED);
+        try{
+            def.setInput(raw, 0, len);
+            def.finish();
+            byte[] out = new byte[len / 2 + 64];
+            int outLen = 0;
+            while (!def.finished()){
+                if (outLen == out.length){
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                outLen += def.deflate(out, outLen, out.length - outLen);
+            }
+            return Arrays.copyOf(out, outLen);
+        } finally{
+            def.end();
+        }
+    }
+
+    private static boolean zero(byte[] b, int off, int len){
+        for (int i = off; i < off + len; i++){
+            if (b[i] != 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void readFully(FileChannel f, ByteBuffer b, long pos) throws IOException{
+        while (b.hasRemaining()){
+            int r = f.read(b, pos);
+            if (r < 0){
+                throw new IOException("packed image cut short");
+            }
+            pos += r;
+        }
+    }
+
+    private static void writeFully(FileChannel f, ByteBuffer b, long pos) throws IOException{
+        while (b.hasRemaining()){
+            pos += f.write(b, pos);
+        }
+    }
+}
@@ -0,0 +1,743 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+
+// file system that logs every call of its public operations to a trace
+// file, for Trace_Replayer to run again later
+//
+// trace: int magic, then per call a record
+//   byte op (the Fs_Stats operation codes, then the ones below)
+//   varlong start, nanoseconds after the previous record's start (zigzag)
+//   varlong nanoseconds the call took
+//   arguments: a name as a short length and bytes, handles, counts and
+//   positions as zigzag varints, sync also its force flag as a byte,
+//   punchHole the handle, position and count, check its repair flag as a
+//   byte, format the six numbers of the geometry
+//   a listing its kind as a byte, then the names it takes (a null name as
+//   length 0xffff), a page also its max
+//   varint result (zigzag), a count, handle, or 1/0 for true/false, the
+//   length of a listing string, the names a stream or page gave, the
+//   problems a check found, 1/0 for a snapshot file system or null
+// data is not kept, only how many bytes were read or written, readv and
+// writev are logged as one read or write of all their bytes
+//
+// calls are logged when they return, calls made by other calls (a save
+// closing files) are left out
+// a names() stream is logged when it is used up or closed, the pages it
+// reads are part of it and not logged themselves
+//
+// every public operation is logged but closeDisk, which ends the trace, and
+// the methods in NOT_RECORDED, which only get or set how the file system
+// runs or hand out its parts; calls on a file system from mountSnapshot or
+// cloneSnapshot are not logged
+public class Recording_File_System extends File_System{
+    public static final int MAGIC = 0x46535432;    // "FST2"
+    public static final int MAGIC_V1 = 0x46535431; // "FST1", listings had no arguments
+
+    // kinds of listing in a Fs_Stats.DIRECTORY record
+    public static final int LIST = 0;           // directory()
+    public static final int LIST_PREFIX = 1;    // directory(prefix)
+    public static final int LIST_RANGE = 2;     // directory(from, to)
+    public static final int NAMES = 3;          // names()
+    public static final int NAMES_PREFIX = 4;   // names(prefix)
+    public static final int NAMES_RANGE = 5;    // names(from, to)
+    public static final int PAGE = 6;           // directory(from, to, prefix, token, max)
+
+    // operations File_System does not time, numbered on from Fs_Stats.PUNCH
+    public static final int FORMAT = 12;
+    public static final int INIT = 13;
+    public static final int DEFRAGMENT = 14;
+    public static final int SNAPSHOT = 15;
+    public static final int DELETE_SNAPSHOT = 16;
+    public static final int MOUNT_SNAPSHOT = 17;
+    public static final int CLONE_SNAPSHOT = 18;
+    public static final int CHECK = 19;
+    public static final String[] OPS = ops("format", "init", "defragment", "snapshot",
+            "deleteSnapshot", "mountSnapshot", "cloneSnapshot", "check");
+
+    // public methods of File_System that are not operations and are not
+    // logged, a test checks that every other one is overridden here
+    public static final List<String> NOT_RECORDED = Collections.unmodifiableList(Arrays.asList(
+            "cache", "stats", "geometry", "journal", "readDesc", "writeDesc", "snapshots",
+            "setJournal", "isJournaling", "setReadAhead", "readAhead", "setWriteBehind",
+            "isWriteBehind", "isReadOnly"));
+
+    private DataOutputStream trace;
+    private long last;  // start of the previous record
+    private final ThreadLocal<int[]> depth = ThreadLocal.withInitial(() -> new int[1]);
+
+    public Recording_File_System(String fname) throws IOException{
+        this(Disk_Geometry.DEFAULT, fname);
+    }
+
+    public Recording_File_System(Disk_Geometry geo, String fname) throws IOException{
+        this(new Heap_Device(geo.numBlocks, geo.blockSize), geo, fname);
+    }
+
+    public Recording_File_System(Block_Device dev, Disk_Geometry geo, String fname) throws IOException{
+        super(dev, geo);
+        trace = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fname), 64 * 1024));
+        trace.writeInt(MAGIC);
+        last = System.nanoTime();
+    }
+
+    // names of every op in a trace, Fs_Stats.OPS then more
+    private static String[] ops(String... more){
+        String[] all = Arrays.copyOf(Fs_Stats.OPS, Fs_Stats.OPS.length + more.length);
+        System.arraycopy(more, 0, all, Fs_Stats.OPS.length, more.length);
+        return all;
+    }
+
+    // start of an outer call, -1=nested or not recording, -2=still in the
+    // constructor
+    private long enter(){
+        if (depth == null){
+            return -2;
+        }
+        return depth.get()[0]++ == 0 && trace != null ? System.nanoTime() : -1;
+    }
+
+    private void leave(long t0){
+        if (t0 != -2){
+            depth.get()[0]--;
+        }
+    }
+
+    private void record(int op, long t0, String name, int a, int b, int result){
+        record(op, t0, name, a, b, 0, result);
+    }
+
+    private synchronized void record(int op, long t0, String name, int a, int b, int c, int result){
+        if (trace == null){
+            return;
+        }
+        try{
+            trace.writeByte(op);
+            writeVar(trace, zigzag(t0 - last));
+            writeVar(trace, System.nanoTime() - t0);
+            last = t0;
+            switch (op){
+                case Fs_Stats.CREATE:
+                case Fs_Stats.DESTROY:
+                case Fs_Stats.OPEN:
+                case Fs_Stats.LOAD:
+                case Fs_Stats.SAVE:
+                case SNAPSHOT:
+                case DELETE_SNAPSHOT:
+                case MOUNT_SNAPSHOT:
+                case CLONE_SNAPSHOT:
+                    writeName(name);
+                    break;
+                case CHECK:
+                    trace.writeByte(a);
+                    break;
+                case Fs_Stats.SYNC:
+                    writeName(name);
+                    trace.writeByte(a);
+                    break;
+                case Fs_Stats.CLOSE:
+                    writeVar(trace, zigzag(a));
+                    break;
+                case Fs_Stats.READ:
+                case Fs_Stats.WRITE:
+                case Fs_Stats.LSEEK:
+                    writeVar(trace, zigzag(a));
+                    writeVar(trace, zigzag(b));
+                    break;
+                case Fs_Stats.PUNCH:
+                    writeVar(trace, zigzag(a));
+                    writeVar(trace, zigzag(b));
+                    writeVar(trace, zigzag(c));
+                    break;
+                default:
+                    break;
+            }
+            writeVar(trace, zigzag(result));
+        } catch (IOException e){
+            // the trace ends here, the file system goes on
+            trace = null;
+        }
+    }
+
+    // format with geometry g
+    private synchronized void recordFormat(long t0, Disk_Geometry g){
+        if (trace == null){
+            return;
+        }
+        try{
+            trace.writeByte(FORMAT);
+            writeVar(trace, zigzag(t0 - last));
+            writeVar(trace, System.nanoTime() - t0);
+            last = t0;
+            writeVar(trace, zigzag(g.numBlocks));
+            writeVar(trace, zigzag(g.blockSize));
+            writeVar(trace, zigzag(g.numDescriptors));
+            writeVar(trace, zigzag(g.oftSize));
+            writeVar(trace, zigzag(g.flags));
+            writeVar(trace, zigzag(g.snapBlocks));
+            writeVar(trace, 0);
+        } catch (IOException e){
+            trace = null;
+        }
+    }
+
+    // a listing of kind, names as its arguments are laid out
+    private synchronized void recordList(int kind, long t0, String from, String to, String prefix,
+            String token, int max, int result){
+        if (trace == null){
+            return;
+        }
+        try{
+            trace.writeByte(Fs_Stats.DIRECTORY);
+            writeVar(trace, zigzag(t0 - last));
+            writeVar(trace, System.nanoTime() - t0);
+            last = t0;
+            trace.writeByte(kind);
+            switch (kind){
+                case LIST_PREFIX:
+                case NAMES_PREFIX:
+                    writeName(prefix);
+                    break;
+                case LIST_RANGE:
+                case NAMES_RANGE:
+                    writeName(from);
+                    writeName(to);
+                    break;
+                case PAGE:
+                    writeName(from);
+                    writeName(to);
+                    writeName(prefix);
+                    writeName(token);
+                    writeVar(trace, zigzag(max));
+                    break;
+                default:
+                    break;
+            }
+            writeVar(trace, zigzag(result));
+        } catch (IOException e){
+            trace = null;
+        }
+    }
+
+    // a short length and the bytes, 0xffff=null
+    private void writeName(String name) throws IOException{
+        if (name == null){
+            trace.writeShort(0xffff);
+            return;
+        }
+        byte[] b = name.getBytes();
+        int n = Math.min(b.length, 0xfffe);
+        trace.writeShort(n);
+        trace.write(b, 0, n);
+    }
+
+    static long zigzag(long v){
+        return (v << 1) ^ (v >> 63);
+    }
+
+    static long unzigzag(long v){
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    // 7 bits a byte, low first, high bit set on all but the last
+    static void writeVar(DataOutputStream out, long v) throws IOException{
+        while ((v & ~0x7fL) != 0){
+            out.writeByte((int)(v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte((int)v);
+    }
+
+    // write out what is buffered
+    public synchronized void flushTrace() throws IOException{
+        if (trace != null){
+            trace.flush();
+        }
+    }
+
+    // stop recording and close the trace file
+    public synchronized void closeTrace() throws IOException{
+        if (trace != null){
+            DataOutputStream t = trace;
+            trace = null;
+            t.close();
+        }
+    }
+
+    // the files it closes are not logged
+    public void closeDisk() throws IOException{
+        long t = enter();
+        try{
+            super.closeDisk();
+        } finally{
+            leave(t);
+        }
+        closeTrace();
+    }
+
+    public void format(Disk_Geometry g){
+        long t = enter();
+        try{
+            super.format(g);
+            if (t >= 0)
+                recordFormat(t, g);
+        } finally{
+            leave(t);
+        }
+    }
+
+    public void init(){
+        long t = enter();
+        try{
+            super.init();
+            if (t >= 0)
+                record(INIT, t, null, 0, 0, 0);
+        } finally{
+            leave(t);
+        }
+    }
+
+    public boolean create(String fname){
+        long t = enter();
+        try{
+            boolean r = super.create(fname);
+            if (t >= 0)
+                record(Fs_Stats.CREATE, t, fname, 0, 0, r ? 1 : 0);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public boolean destroy(String fname){
+        long t = enter();
+        try{
+            boolean r = super.destroy(fname);
+            if (t >= 0)
+                record(Fs_Stats.DESTROY, t, fname, 0, 0, r ? 1 : 0);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public int open(String fname){
+        long t = enter();
+        try{
+            int r = super.open(fname);
+            if (t >= 0)
+                record(Fs_Stats.OPEN, t, fname, 0, 0, r);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public boolean close(int index){
+        long t = enter();
+        try{
+            boolean r = super.close(index);
+            if (t >= 0)
+                record(Fs_Stats.CLOSE, t, null, index, 0, r ? 1 : 0);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public boolean lseek(int index, int pos){
+        long t = enter();
+        try{
+            boolean r = super.lseek(index, pos);
+            if (t >= 0)
+                record(Fs_Stats.LSEEK, t, null, index, pos, r ? 1 : 0);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public int read(int index, byte[] data, int count){
+        long t = enter();
+        try{
+            int r = super.read(index, data, count);
+            if (t >= 0)
+                record(Fs_Stats.READ, t, null, index, count, r);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public int read(int index, byte[] data, int off, int count){
+        long t = enter();
+        try{
+            int r = super.read(index, data, off, count);
+            if (t >= 0)
+                record(Fs_Stats.READ, t, null, index, count, r);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public int read(int index, ByteBuffer dst){
+        long t = enter();
+        try{
+            int count = dst.remaining();
+            int r = super.read(index, dst);
+            if (t >= 0)
+                record(Fs_Stats.READ, t, null, index, count, r);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public long readv(int index, ByteBuffer[] dsts){
+        long t = enter();
+        try{
+            long count = remaining(dsts);
+            long r = super.readv(index, dsts);
+            if (t >= 0)
+                record(Fs_Stats.READ, t, null, index, (int)Math.min(count, Integer.MAX_VALUE), (int)r);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public int write(int index, byte[] data, int count){
+        long t = enter();
+        try{
+            int r = super.write(index, data, count);
+            if (t >= 0)
+                record(Fs_Stats.WRITE, t, null, index, count, r);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public int write(int index, byte[] data, int off, int count){
+        long t = enter();
+        try{
+            int r = super.write(index, data, off, count);
+            if (t >= 0)
+                record(Fs_Stats.WRITE, t, null, index, count, r);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public int write(int index, ByteBuffer src){
+        long t = enter();
+        try{
+            int count = src.remaining();
+            int r = super.write(index, src);
+            if (t >= 0)
+                record(Fs_Stats.WRITE, t, null, index, count, r);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public long writev(int index, ByteBuffer[] srcs){
+        long t = enter();
+        try{
+            long count = remaining(srcs);
+            long r = super.writev(index, srcs);
+            if (t >= 0)
+                record(Fs_Stats.WRITE, t, null, index, (int)Math.min(count, Integer.MAX_VALUE), (int)r);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    private static long remaining(ByteBuffer[] bufs){
+        long n = 0;
+        for (ByteBuffer b : bufs){
+            n += b.remaining();
+        }
+        return n;
+    }
+
+    public boolean punchHole(int index, int pos, int count){
+        long t = enter();
+        try{
+            boolean r = super.punchHole(index, pos, count);
+            if (t >= 0)
+                record(Fs_Stats.PUNCH, t, null, index, pos, count, r ? 1 : 0);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public String directory(){
+        long t = enter();
+        try{
+            String r = super.directory();
+            if (t >= 0)
+                recordList(LIST, t, null, null, null, null, 0, r == null ? -1 : r.length());
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public String directory(String prefix){
+        long t = enter();
+        try{
+            String r = super.directory(prefix);
+            if (t >= 0)
+                recordList(LIST_PREFIX, t, null, null, prefix, null, 0, r == null ? -1 : r.length());
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public String directory(String from, String to){
+        long t = enter();
+        try{
+            String r = super.directory(from, to);
+            if (t >= 0)
+                recordList(LIST_RANGE, t, from, to, null, null, 0, r == null ? -1 : r.length());
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public Dir_Page directory(String from, String to, String prefix, String token, int max){
+        long t = enter();
+        try{
+            Dir_Page r = super.directory(from, to, prefix, token, max);
+            if (t >= 0)
+                recordList(PAGE, t, from, to, prefix, token, max, r == null ? -1 : r.names.size());
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public Stream<String> names(){
+        long t = enter();
+        try{
+            Stream<String> r = super.names();
+            return t >= 0 ? new Listing(NAMES, t, null, null, null, r).stream() : r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public Stream<String> names(String prefix){
+        long t = enter();
+        try{
+            Stream<String> r = super.names(prefix);
+            return t >= 0 ? new Listing(NAMES_PREFIX, t, null, null, prefix, r).stream() : r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public Stream<String> names(String from, String to){
+        long t = enter();
+        try{
+            Stream<String> r = super.names(from, to);
+            return t >= 0 ? new Listing(NAMES_RANGE, t, from, to, null, r).stream() : r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    // a names() stream, its pages are read as nested calls, logged with the
+    // names taken when it is used up or closed
+    private class Listing implements Iterator<String>{
+        final int kind;
+        final long t0;
+        final String from;
+        final String to;
+        final String prefix;
+        final Stream<String> names;
+        final Iterator<String> it;
+        int taken = 0;
+        boolean ended = false;
+
+        Listing(int kind, long t0, String from, String to, String prefix, Stream<String> names){
+            this.kind = kind;
+            this.t0 = t0;
+            this.from = from;
+            this.to = to;
+            this.prefix = prefix;
+            this.names = names;
+            this.it = names.iterator();
+        }
+
+        Stream<String> stream(){
+            return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this,
+                    Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(this::end);
+        }
+
+        public boolean hasNext(){
+            int[] d = depth.get();
+            d[0]++;
+            try{
+                boolean r = it.hasNext();
+                if (!r){
+                    end();
+                }
+                return r;
+            } finally{
+                d[0]--;
+            }
+        }
+
+        public String next(){
+            if (!hasNext()){
+                throw new NoSuchElementException();
+            }
+            int[] d = depth.get();
+            d[0]++;
+            try{
+                String r = it.next();
+                taken++;
+                return r;
+            } finally{
+                d[0]--;
+            }
+        }
+
+        synchronized void end(){
+            if (!ended){
+                ended = true;
+                recordList(kind, t0, from, to, prefix, null, 0, taken);
+                names.close();
+            }
+        }
+    }
+
+    public boolean loadDisk(String fname){
+        long t = enter();
+        try{
+            boolean r = super.loadDisk(fname);
+            if (t >= 0)
+                record(Fs_Stats.LOAD, t, fname, 0, 0, r ? 1 : 0);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public boolean saveDisk(String fname){
+        long t = enter();
+        try{
+            boolean r = super.saveDisk(fname);
+            if (t >= 0)
+                record(Fs_Stats.SAVE, t, fname, 0, 0, r ? 1 : 0);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public boolean sync(String fname, boolean force){
+        long t = enter();
+        try{
+            boolean r = super.sync(fname, force);
+            if (t >= 0)
+                record(Fs_Stats.SYNC, t, fname, force ? 1 : 0, 0, r ? 1 : 0);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public int defragment(){
+        long t = enter();
+        try{
+            int r = super.defragment();
+            if (t >= 0)
+                record(DEFRAGMENT, t, null, 0, 0, r);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public boolean snapshot(String name){
+        long t = enter();
+        try{
+            boolean r = super.snapshot(name);
+            if (t >= 0)
+                record(SNAPSHOT, t, name, 0, 0, r ? 1 : 0);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public boolean deleteSnapshot(String name){
+        long t = enter();
+        try{
+            boolean r = super.deleteSnapshot(name);
+            if (t >= 0)
+                record(DELETE_SNAPSHOT, t, name, 0, 0, r ? 1 : 0);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public File_System mountSnapshot(String name){
+        long t = enter();
+        try{
+            File_System r = super.mountSnapshot(name);
+            if (t >= 0)
+                record(MOUNT_SNAPSHOT, t, name, 0, 0, r != null ? 1 : 0);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public File_System cloneSnapshot(String name){
+        long t = enter();
+        try{
+            File_System r = super.cloneSnapshot(name);
+            if (t >= 0)
+                record(CLONE_SNAPSHOT, t, name, 0, 0, r != null ? 1 : 0);
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+
+    public Fs_Check check(boolean repair){
+        long t = enter();
+        try{
+            Fs_Check r = super.check(repair);
+            if (t >= 0)
+                record(CHECK, t, null, repair ? 1 : 0, 0, r.problems());
+            return r;
+        } finally{
+            leave(t);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+// a snapshot of a disk as a block device, read-only, or a clone that keeps
+// the blocks written to it to itself and reads the rest from the snapshot
+public class Snapshot_Device implements Block_Device{
+    private final IO_System disk;
+    private final Snapshot_Store.Snapshot snap;
+    private final boolean writable;
+    private final int blocks;
+    private final int blockSize;
+
+    private final ConcurrentHashMap<Integer, byte[]> written = new ConcurrentHashMap<Integer, byte[]>();
+    private volatile boolean cleared = false;  // zeros where nothing was written
+    private boolean closed = false;
+
+    // open snapshot s of disk, IllegalStateException when it was dropped
+    public Snapshot_Device(IO_System disk, Snapshot_Store.Snapshot snap, boolean writable){
+        if (!disk.snapshots().acquire(snap)){
+            throw new IllegalStateException("snapshot " + snap.name() + " dropped");
+        }
+        this.disk = disk;
+        this.snap = snap;
+        this.writable = writable;
+        this.blocks = disk.blocks();
+        this.blockSize = disk.blockSize();
+    }
+
+    public boolean isWritable(){
+        return writable;
+    }
+
+    public Snapshot_Store.Snapshot snapshot(){
+        return snap;
+    }
+
+    public int blocks(){
+        return blocks;
+    }
+
+    public int blockSize(){
+        return blockSize;
+    }
+
+    public void read(int i, byte[] p, int off){
+        byte[] b = written.get(i);
+        if (b != null){
+            System.arraycopy(b, 0, p, off, blockSize);
+        }
+        else if (cleared){
+            Arrays.fill(p, off, off + blockSize, (byte)0);
+        }
+        else{
+            disk.snapshots().read(snap, i, p, off);
+        }
+    }
+
+    public void write(int i, byte[] p, int off){
+        if (!writable){
+            throw new UnsupportedOperationException("read-only snapshot");
+        }
+        byte[] b = written.computeIfAbsent(i, k -> new byte[blockSize]);
+        System.arraycopy(p, off, b, 0, blockSize);
+    }
+
+    public void clear(){
+        if (!writable){
+            throw new UnsupportedOperationException("read-only snapshot");
+        }
+        cleared = true;
+        written.clear();
+    }
+
+    // a clone formatted to another size is on its own from then on
+    public Block_Device resize(int numBlocks, int blockSize){
+        if (!writable){
+            throw new UnsupportedOperationException("read-only snapshot");
+        }
+        release();
+        return new Heap_Device(numBlocks, blockSize);
+    }
+
+    public void force() throws IOException{
+    }
+
+    public void force(int first, int n) throws IOException{
+    }
+
+    public void close() throws IOException{
+        release();
+    }
+
+    private synchronized void release(){
+        if (!closed){
+            closed = true;
+            disk.snapshots().release(snap);
+        }
+    }
+}
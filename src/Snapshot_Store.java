@@ -0,0 +1,530 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+// copy-on-write snapshots of a disk, kept in the snapshot area its
+// geometry sets aside (Disk_Geometry.FLAG_SNAPSHOTS), a disk without one
+// takes none
+//
+// taking a snapshot copies nothing, the first write to a block after it
+// saves the old contents in a slot of the area, shared by every snapshot
+// taken since the block was last saved; a snapshot reads the blocks saved
+// for it from their slots and the rest from the disk, where they have not
+// changed since
+// the old contents and the slot's table entry are forced to the disk before
+// the new contents are written, and the list of snapshots when it changes,
+// so the snapshots are in the image, saved and loaded with it and kept by a
+// memory-mapped one through a crash; when no slot is left the oldest
+// snapshots nobody has mounted or cloned are dropped until one is, and
+// with all of them in use the write fails
+//
+// area: the table, then a block per slot
+// table: int magic, int nextId, int snapshots, per snapshot int id, long
+//   time, short name length and name bytes, in the first listBlocks blocks;
+//   then per slot int block (-1=free), int lo, int hi: the block saved for
+//   the snapshots with lo < id <= hi, SLOT_BYTES each, none across blocks
+// a table that does not read back is taken as empty
+//
+// the copy-on-write of a block runs under one of STRIPES locks, changes to
+// the list of snapshots hold every stripe and the monitor
+public class Snapshot_Store{
+    public static final int MAGIC = 0x534e4150;    // "SNAP"
+    public static final int LIST_BYTES = 4096;     // room for the list, a quarter of the area at most
+    public static final int SLOT_BYTES = 12;       // 3 ints
+    public static final int STRIPES = 64;          // a power of 2
+
+    public static class Snapshot{
+        private final int id;
+        private final String name;
+        private final long time;
+        // block, slot; each block's entry is put under its stripe
+        private final ConcurrentHashMap<Integer, Integer> saved = new ConcurrentHashMap<Integer, Integer>();
+        private int users = 0;          // mounts and clones open on it
+        private volatile boolean dropped = false;
+
+        Snapshot(int id, String name, long time){
+            this.id = id;
+            this.name = name;
+            this.time = time;
+        }
+
+        public String name(){
+            return name;
+        }
+
+        // when it was taken, ms since the epoch
+        public long time(){
+            return time;
+        }
+    }
+
+    private final IO_System io;
+    private final ReentrantLock[] stripes = new ReentrantLock[STRIPES];
+    private final Object slotLock = new Object();   // slot table and free slots
+
+    private volatile Snapshot[] snaps = new Snapshot[0];    // oldest first, replaced whole
+    private int nextId = 1;
+
+    private int blocks;
+    private int blockSize;
+    private int[] copied;       // per block, newest snapshot when it was last saved
+
+    // the area, start=-1 none
+    private int start = -1;
+    private int listBlocks;
+    private int slotStart;      // block of slot 0
+    private int perBlock;       // slot entries per table block
+    private int[] slotBlock = new int[0];
+    private int[] slotLo = new int[0];
+    private int[] slotHi = new int[0];
+    private int[] refs = new int[0];
+    private final ArrayDeque<Integer> free = new ArrayDeque<Integer>();
+    private Object[] tableLocks = new Object[0];    // per slot table block
+
+    public Snapshot_Store(IO_System io){
+        this.io = io;
+        for (int i = 0; i < STRIPES; i++){
+            stripes[i] = new ReentrantLock();
+        }
+        reset(io.blocks(), io.blockSize());
+    }
+
+    private ReentrantLock stripe(int i){
+        return stripes[i & (STRIPES - 1)];
+    }
+
+    private void lockAll(){
+        for (ReentrantLock l : stripes){
+            l.lock();
+        }
+    }
+
+    private void unlockAll(){
+        for (int i = STRIPES - 1; i >= 0; i--){
+            stripes[i].unlock();
+        }
+    }
+
+    // forget every snapshot and the area, the disk was formatted or
+    // replaced, mounts and clones of them fail from now on
+    public void reset(int blocks, int blockSize){
+        lockAll();
+        try{
+            synchronized (this){
+                for (Snapshot s : snaps){
+                    s.dropped = true;
+                }
+                snaps = new Snapshot[0];
+                nextId = 1;
+                this.blocks = blocks;
+                this.blockSize = blockSize;
+                copied = new int[blocks];
+                start = -1;
+                layout(0, 0);
+            }
+        } finally{
+            unlockAll();
+        }
+    }
+
+    // read the snapshots from the area the superblock on the disk sets
+    // aside, none when it has none
+    public void open(){
+        lockAll();
+        try{
+            synchronized (this){
+                Block_Device dev = io.device();
+                reset(dev.blocks(), dev.blockSize());
+                byte[] b = new byte[blockSize];
+                dev.read(0, b, 0);
+                Disk_Geometry g = Disk_Geometry.unpack(b);
+                if (g == null || g.snapBlocks == 0 || g.numBlocks != blocks || g.blockSize != blockSize){
+                    return;
+                }
+                start = g.snapStart;
+                layout(g.snapStart, g.snapBlocks);
+                readTable();
+            }
+        } finally{
+            unlockAll();
+        }
+    }
+
+    // split an area of n blocks at first into the list, the slot table and
+    // as many slots as fit
+    private void layout(int first, int n){
+        listBlocks = n == 0 ? 0 : Math.max(1, Math.min((LIST_BYTES + blockSize - 1) / blockSize, n / 4));
+        perBlock = blockSize / SLOT_BYTES;
+        int slots = n - listBlocks;
+        while (slots > 0 && listBlocks + (slots + perBlock - 1) / perBlock + slots > n){
+            slots--;
+        }
+        int tableBlocks = (slots + perBlock - 1) / perBlock;
+        slotStart = first + listBlocks + tableBlocks;
+        slotBlock = new int[slots];
+        Arrays.fill(slotBlock, -1);
+        slotLo = new int[slots];
+        slotHi = new int[slots];
+        refs = new int[slots];
+        free.clear();
+        for (int k = 0; k < slots; k++){
+            free.add(k);
+        }
+        tableLocks = new Object[tableBlocks];
+        for (int t = 0; t < tableBlocks; t++){
+            tableLocks[t] = new Object();
+        }
+    }
+
+    private void readTable(){
+        Block_Device dev = io.device();
+        byte[] list = new byte[listBlocks * blockSize];
+        for (int b = 0; b < listBlocks; b++){
+            dev.read(start + b, list, b * blockSize);
+        }
+        ArrayList<Snapshot> found = new ArrayList<Snapshot>();
+        int next = 1;
+        try{
+            if (IO_System.unpack(list, 0) != MAGIC){
+                return;
+            }
+            next = IO_System.unpack(list, 4);
+            int n = IO_System.unpack(list, 8);
+            int at = 12;
+            for (int k = 0; k < n; k++){
+                int id = IO_System.unpack(list, at);
+                long time = ((long)IO_System.unpack(list, at + 4) << 32) | (IO_System.unpack(list, at + 8) & 0xffffffffL);
+                int len = ((list[at + 12] & 0xff) << 8) | (list[at + 13] & 0xff);
+                String name = new String(list, at + 14, len, StandardCharsets.UTF_8);
+                if (id <= 0 || id >= next){
+                    return;
+                }
+                found.add(new Snapshot(id, name, time));
+                at += 14 + len;
+            }
+        } catch (IndexOutOfBoundsException e){
+            return;
+        }
+
+        // the slots and the snapshots they hold a block for
+        byte[] b = new byte[blockSize];
+        for (int k = 0; k < slotBlock.length; k++){
+            if (k % perBlock == 0){
+                dev.read(start + listBlocks + k / perBlock, b, 0);
+            }
+            int at = (k % perBlock) * SLOT_BYTES;
+            int blk = IO_System.unpack(b, at);
+            int lo = IO_System.unpack(b, at + 4);
+            int hi = IO_System.unpack(b, at + 8);
+            if (blk < 0 || blk >= blocks){
+                continue;
+            }
+            for (Snapshot s : found){
+                if (s.id > lo && s.id <= hi){
+                    s.saved.put(blk, k);
+                    refs[k]++;
+                }
+            }
+            if (refs[k] > 0){
+                slotBlock[k] = blk;
+                slotLo[k] = lo;
+                slotHi[k] = hi;
+                copied[blk] = Math.max(copied[blk], hi);
+                free.remove(k);
+            }
+        }
+        nextId = next;
+        snaps = found.toArray(new Snapshot[0]);
+    }
+
+    public boolean isEmpty(){
+        return snaps.length == 0;
+    }
+
+    // true if block i is in the snapshot area
+    public boolean inArea(int i){
+        return start >= 0 && i >= start && i < slotStart + slotBlock.length;
+    }
+
+    // take a snapshot of the disk as it is now, null=the name is taken, the
+    // disk has no snapshot area or its list is full
+    public Snapshot take(String name){
+        lockAll();
+        try{
+            synchronized (this){
+                if (start < 0 || slotBlock.length == 0 || get(name) != null){
+                    return null;
+                }
+                Snapshot s = new Snapshot(nextId, name, System.currentTimeMillis());
+                Snapshot[] now = Arrays.copyOf(snaps, snaps.length + 1);
+                now[snaps.length] = s;
+                byte[] list = packList(now, nextId + 1);
+                if (list == null){
+                    return null;
+                }
+                nextId++;
+                snaps = now;
+                writeList(list);
+                force(start, listBlocks);
+                return s;
+            }
+        } finally{
+            unlockAll();
+        }
+    }
+
+    // false=no such snapshot, or mounted or cloned
+    public boolean delete(String name){
+        lockAll();
+        try{
+            synchronized (this){
+                Snapshot s = get(name);
+                if (s == null || s.users > 0){
+                    return false;
+                }
+                drop(s);
+                return true;
+            }
+        } finally{
+            unlockAll();
+        }
+    }
+
+    // take s off the list and free the slots only it held, every stripe
+    // and the monitor held
+    private void drop(Snapshot s){
+        ArrayList<Snapshot> now = new ArrayList<Snapshot>(Arrays.asList(snaps));
+        now.remove(s);
+        s.dropped = true;
+        snaps = now.toArray(new Snapshot[0]);
+        boolean freed = false;
+        synchronized (slotLock){
+            for (int slot : s.saved.values()){
+                if (--refs[slot] == 0){
+                    slotBlock[slot] = -1;
+                    free.add(slot);
+                    freed = true;
+                }
+            }
+        }
+        // off the list on the disk before its slots can be taken again
+        writeList(packList(snaps, nextId));
+        force(start, listBlocks);
+        if (freed){
+            for (int t = 0; t < tableLocks.length; t++){
+                writeTable(t);
+            }
+        }
+    }
+
+    // drop the oldest snapshot nobody has mounted or cloned, unless a slot
+    // is free meanwhile, false=every snapshot is in use
+    private boolean dropOldest(){
+        lockAll();
+        try{
+            synchronized (this){
+                synchronized (slotLock){
+                    if (!free.isEmpty()){
+                        return true;
+                    }
+                }
+                for (Snapshot s : snaps){
+                    if (s.users == 0){
+                        drop(s);
+                        return true;
+                    }
+                }
+                return false;
+            }
+        } finally{
+            unlockAll();
+        }
+    }
+
+    public synchronized Snapshot get(String name){
+        for (Snapshot s : snaps){
+            if (s.name.equals(name)){
+                return s;
+            }
+        }
+        return null;
+    }
+
+    // names, oldest first
+    public synchronized List<String> names(){
+        List<String> names = new ArrayList<String>();
+        for (Snapshot s : snaps){
+            names.add(s.name);
+        }
+        return names;
+    }
+
+    // blocks saved for the snapshots, each once however many share it
+    public int savedBlocks(){
+        synchronized (slotLock){
+            return slotBlock.length - free.size();
+        }
+    }
+
+    // a mount or clone opened on s, false=it was dropped
+    public synchronized boolean acquire(Snapshot s){
+        if (s.dropped){
+            return false;
+        }
+        s.users++;
+        return true;
+    }
+
+    public synchronized void release(Snapshot s){
+        if (s.users > 0){
+            s.users--;
+        }
+    }
+
+    // write block i of the disk, saving its old contents first for the
+    // snapshots taken since it was last saved
+    public void write(int i, byte[] p, int off){
+        while (true){
+            ReentrantLock l = stripe(i);
+            l.lock();
+            try{
+                Snapshot[] list = snaps;
+                int newest = list.length > 0 ? list[list.length - 1].id : 0;
+                if (copied[i] >= newest || inArea(i)){
+                    io.device().write(i, p, off);
+                    return;
+                }
+                int slot;
+                synchronized (slotLock){
+                    Integer k = free.poll();
+                    slot = k != null ? k : -1;
+                }
+                if (slot >= 0){
+                    save(list, i, slot);
+                    io.device().write(i, p, off);
+                    return;
+                }
+            } finally{
+                l.unlock();
+            }
+            if (!dropOldest()){
+                throw new UncheckedIOException(new IOException("snapshot area full, every snapshot in use"));
+            }
+        }
+    }
+
+    // copy block i into slot for the snapshots in list taken since it was
+    // last saved, its stripe held
+    private void save(Snapshot[] list, int i, int slot){
+        byte[] old = new byte[blockSize];
+        io.device().read(i, old, 0);
+        io.writeRaw(slotStart + slot, old, 0);
+
+        int n = 0;
+        for (int k = list.length - 1; k >= 0 && list[k].id > copied[i]; k--){
+            n++;
+        }
+        synchronized (slotLock){
+            slotBlock[slot] = i;
+            slotLo[slot] = copied[i];
+            slotHi[slot] = list[list.length - 1].id;
+            refs[slot] = n;
+        }
+        writeTable(slot / perBlock);
+        force(slotStart + slot, 1);
+        force(start + listBlocks + slot / perBlock, 1);
+
+        for (int k = list.length - 1; k >= 0 && list[k].id > copied[i]; k--){
+            list[k].saved.put(i, slot);
+        }
+        copied[i] = list[list.length - 1].id;
+    }
+
+    // read block i of snapshot s from its slot, or from the disk when
+    // unchanged; the snapshot area reads as zeros, a snapshot holds none
+    public void read(Snapshot s, int i, byte[] p, int off){
+        ReentrantLock l = stripe(i);
+        l.lock();
+        try{
+            if (s.dropped){
+                throw new IllegalStateException("snapshot " + s.name + " dropped");
+            }
+            Integer slot = s.saved.get(i);
+            if (slot != null){
+                io.device().read(slotStart + slot, p, off);
+            }
+            else if (inArea(i)){
+                Arrays.fill(p, off, off + blockSize, (byte)0);
+            }
+            else{
+                io.device().read(i, p, off);
+            }
+        } finally{
+            l.unlock();
+        }
+    }
+
+    // push blocks of the area to stable storage
+    private void force(int first, int n){
+        try{
+            io.device().force(first, n);
+        } catch (IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // the list of snapshots as the table holds it, null=it does not fit
+    private byte[] packList(Snapshot[] list, int next){
+        byte[] b = new byte[listBlocks * blockSize];
+        if (b.length < 12){
+            return null;
+        }
+        IO_System.pack(b, MAGIC, 0);
+        IO_System.pack(b, next, 4);
+        IO_System.pack(b, list.length, 8);
+        int at = 12;
+        for (Snapshot s : list){
+            byte[] name = s.name.getBytes(StandardCharsets.UTF_8);
+            if (name.length > 0xffff || at + 14 + name.length > b.length){
+                return null;
+            }
+            IO_System.pack(b, s.id, at);
+            IO_System.pack(b, (int)(s.time >>> 32), at + 4);
+            IO_System.pack(b, (int)s.time, at + 8);
+            b[at + 12] = (byte)(name.length >>> 8);
+            b[at + 13] = (byte)name.length;
+            System.arraycopy(name, 0, b, at + 14, name.length);
+            at += 14 + name.length;
+        }
+        return b;
+    }
+
+    private void writeList(byte[] list){
+        for (int b = 0; b < listBlocks; b++){
+            io.writeRaw(start + b, list, b * blockSize);
+        }
+    }
+
+    // write block t of the slot table as it is now
+    private void writeTable(int t){
+        byte[] b = new byte[blockSize];
+        synchronized (tableLocks[t]){
+            synchronized (slotLock){
+                for (int k = t * perBlock; k < Math.min(slotBlock.length, (t + 1) * perBlock); k++){
+                    int at = (k % perBlock) * SLOT_BYTES;
+                    IO_System.pack(b, slotBlock[k], at);
+                    IO_System.pack(b, slotLo[k], at + 4);
+                    IO_System.pack(b, slotHi[k], at + 8);
+                }
+            }
+            io.writeRaw(start + listBlocks + t, b, 0);
+        }
+    }
+}
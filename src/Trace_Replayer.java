@@ -0,0 +1,468 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+
+// run a trace written by Recording_File_System again and report latency
+// percentiles and throughput per operation
+//
+// closed loop: each call starts when the one before it returns, no faster
+// than -r calls a second when given, latency is the time the call took
+// open loop: each call has a start time, its recorded start divided by -s
+// or one every 1/-r seconds, latency counts from that time, so time spent
+// waiting behind a slow call is counted as well
+//
+// the trace is read into memory before the clock starts, calls run one at
+// a time in trace order, handles are mapped from the recorded ones to the
+// ones the replay got
+//
+// usage: Trace_Replayer [-o] [-r rate] [-s speed] [-i image] [-x] trace
+//   -o  open loop
+//   -r  calls per second
+//   -s  speed of the recorded timing in open loop, 2=twice as fast
+//   -i  load the disk image first, otherwise a new disk is formatted
+//   -x  leave out the loads, saves and syncs in the trace
+public class Trace_Replayer{
+    static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    // one call of the trace
+    static class Call{
+        int op;
+        long start;     // nanoseconds after the first call
+        long took;      // nanoseconds when recorded
+        String name;
+        String to;      // a listing's other names
+        String prefix;
+        String token;
+        Disk_Geometry geo;  // format's
+        int a;
+        int b;
+        int c;
+        int result;
+    }
+
+    private File_System sys;
+    private boolean openLoop = false;
+    private double rate = 0;        // calls a second, 0=as recorded or as fast as possible
+    private double speed = 1;
+    private boolean skipDisk = false;
+
+    private Fs_Stats.Histogram[] latency = new Fs_Stats.Histogram[Recording_File_System.OPS.length];
+    private long calls = 0;
+    private long differed = 0;  // results other than recorded
+    private long elapsed = 0;
+
+    public Trace_Replayer(File_System sys){
+        this.sys = sys;
+        for (int i = 0; i < latency.length; i++){
+            latency[i] = new Fs_Stats.Histogram();
+        }
+    }
+
+    public void setOpenLoop(boolean on){
+        openLoop = on;
+    }
+
+    public void setRate(double callsPerSecond){
+        rate = callsPerSecond;
+    }
+
+    public void setSpeed(double s){
+        speed = s;
+    }
+
+    public void setSkipDisk(boolean on){
+        skipDisk = on;
+    }
+
+    // read every call of a trace
+    public static ArrayList<Call> load(String fname) throws IOException{
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fname), 64 * 1024));
+        try{
+            int magic = in.readInt();
+            if (magic != Recording_File_System.MAGIC && magic != Recording_File_System.MAGIC_V1){
+                throw new IOException(fname + " is not a trace");
+            }
+            ArrayList<Call> calls = new ArrayList<Call>();
+            long t = 0;
+            while (true){
+                int op = in.read();
+                if (op < 0){
+                    break;
+                }
+                Call c = new Call();
+                c.op = op;
+                t += Recording_File_System.unzigzag(readVar(in));
+                c.start = t;
+                c.took = readVar(in);
+                switch (op){
+                    case Fs_Stats.CREATE:
+                    case Fs_Stats.DESTROY:
+                    case Fs_Stats.OPEN:
+                    case Fs_Stats.LOAD:
+                    case Fs_Stats.SAVE:
+                    case Recording_File_System.SNAPSHOT:
+                    case Recording_File_System.DELETE_SNAPSHOT:
+                    case Recording_File_System.MOUNT_SNAPSHOT:
+                    case Recording_File_System.CLONE_SNAPSHOT:
+                        c.name = readName(in);
+                        break;
+                    case Recording_File_System.CHECK:
+                        c.a = in.readByte();
+                        break;
+                    case Recording_File_System.FORMAT:
+                        c.geo = new Disk_Geometry(readInt(in), readInt(in), readInt(in), readInt(in), readInt(in), readInt(in));
+                        break;
+                    case Recording_File_System.INIT:
+                    case Recording_File_System.DEFRAGMENT:
+                        break;
+                    case Fs_Stats.SYNC:
+                        c.name = readName(in);
+                        c.a = in.readByte();
+                        break;
+                    case Fs_Stats.CLOSE:
+                        c.a = readInt(in);
+                        break;
+                    case Fs_Stats.READ:
+                    case Fs_Stats.WRITE:
+                    case Fs_Stats.LSEEK:
+                        c.a = readInt(in);
+                        c.b = readInt(in);
+                        break;
+                    case Fs_Stats.PUNCH:
+                        c.a = readInt(in);
+                        c.b = readInt(in);
+                        c.c = readInt(in);
+                        break;
+                    case Fs_Stats.DIRECTORY:
+                        // the kind of listing and what it took
+                        c.a = magic == Recording_File_System.MAGIC_V1 ? Recording_File_System.LIST : in.readByte();
+                        switch (c.a){
+                            case Recording_File_System.LIST_PREFIX:
+                            case Recording_File_System.NAMES_PREFIX:
+                                c.prefix = readName(in);
+                                break;
+                            case Recording_File_System.LIST_RANGE:
+                            case Recording_File_System.NAMES_RANGE:
+                                c.name = readName(in);
+                                c.to = readName(in);
+                                break;
+                            case Recording_File_System.PAGE:
+                                c.name = readName(in);
+                                c.to = readName(in);
+                                c.prefix = readName(in);
+                                c.token = readName(in);
+                                c.b = readInt(in);
+                                break;
+                            default:
+                                break;
+                        }
+                        break;
+                    default:
+                        throw new IOException("bad call " + op + " in " + fname);
+                }
+                c.result = readInt(in);
+                calls.add(c);
+            }
+
+            // times from the first call
+            long first = calls.isEmpty() ? 0 : calls.get(0).start;
+            for (Call c : calls){
+                c.start -= first;
+            }
+            return calls;
+        } catch (EOFException e){
+            throw new IOException(fname + " is cut short");
+        } finally{
+            in.close();
+        }
+    }
+
+    static long readVar(DataInputStream in) throws IOException{
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7){
+            int b = in.readUnsignedByte();
+            v |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0){
+                return v;
+            }
+        }
+        throw new IOException("bad varint");
+    }
+
+    private static int readInt(DataInputStream in) throws IOException{
+        return (int)Recording_File_System.unzigzag(readVar(in));
+    }
+
+    // 0xffff=null
+    private static String readName(DataInputStream in) throws IOException{
+        int n = in.readUnsignedShort();
+        if (n == 0xffff){
+            return null;
+        }
+        byte[] b = new byte[n];
+        in.readFully(b);
+        return new String(b);
+    }
+
+    // run the calls, adding to the totals
+    public void replay(ArrayList<Call> trace){
+        HashMap<Integer, Integer> handles = new HashMap<Integer, Integer>();
+        handles.put(0, 0);
+        int most = 1;
+        for (Call c : trace){
+            if (c.op == Fs_Stats.READ || c.op == Fs_Stats.WRITE){
+                most = Math.max(most, c.b);
+            }
+        }
+        byte[] data = new byte[most];
+
+        long begin = System.nanoTime();
+        long i = 0;
+        long t0;
+        for (Call c : trace){
+            if (skipDisk && (c.op == Fs_Stats.LOAD || c.op == Fs_Stats.SAVE || c.op == Fs_Stats.SYNC)){
+                continue;
+            }
+
+            // when the call is due
+            if (rate > 0 || openLoop){
+                long due = begin + (long)(rate > 0 ? i * 1e9 / rate : c.start / speed);
+                waitUntil(due);
+                t0 = openLoop ? due : System.nanoTime();
+            }
+            else{
+                t0 = System.nanoTime();
+            }
+
+            int r = run(c, handles, data);
+            latency[c.op].record(System.nanoTime() - t0);
+            if (r != c.result){
+                differed++;
+            }
+            i++;
+        }
+        elapsed += System.nanoTime() - begin;
+        calls += i;
+    }
+
+    private static void waitUntil(long due){
+        long left;
+        while ((left = due - System.nanoTime()) > 0){
+            if (left > 100000){
+                LockSupport.parkNanos(left - 50000);
+            }
+            else{
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    // make one call, return its result as the trace has it
+    private int run(Call c, HashMap<Integer, Integer> handles, byte[] data){
+        switch (c.op){
+            case Fs_Stats.CREATE:
+                return sys.create(c.name) ? 1 : 0;
+            case Fs_Stats.DESTROY:
+                return sys.destroy(c.name) ? 1 : 0;
+            case Fs_Stats.OPEN:{
+                int h = sys.open(c.name);
+                if (c.result >= 0){
+                    handles.put(c.result, h);
+                }
+                // same result when it got a handle where the recording did
+                return h == c.result || (h >= 0 && c.result >= 0) ? c.result : h;
+            }
+            case Fs_Stats.CLOSE:{
+                boolean ok = sys.close(handle(handles, c.a));
+                if (ok){
+                    handles.remove(c.a);
+                }
+                return ok ? 1 : 0;
+            }
+            case Fs_Stats.LSEEK:
+                return sys.lseek(handle(handles, c.a), c.b) ? 1 : 0;
+            case Fs_Stats.READ:
+                return sys.read(handle(handles, c.a), data, 0, Math.max(c.b, 0));
+            case Fs_Stats.WRITE:
+                return sys.write(handle(handles, c.a), data, 0, Math.max(c.b, 0));
+            case Fs_Stats.PUNCH:
+                return sys.punchHole(handle(handles, c.a), c.b, c.c) ? 1 : 0;
+            case Fs_Stats.DIRECTORY:
+                return list(c);
+            case Fs_Stats.LOAD:
+                return sys.loadDisk(c.name) ? 1 : 0;
+            case Fs_Stats.SAVE:
+                return sys.saveDisk(c.name) ? 1 : 0;
+            case Fs_Stats.SYNC:
+                return sys.sync(c.name, c.a != 0) ? 1 : 0;
+            case Recording_File_System.FORMAT:
+                sys.format(c.geo);
+                return 0;
+            case Recording_File_System.INIT:
+                sys.init();
+                return 0;
+            case Recording_File_System.DEFRAGMENT:
+                return sys.defragment();
+            case Recording_File_System.SNAPSHOT:
+                return sys.snapshot(c.name) ? 1 : 0;
+            case Recording_File_System.DELETE_SNAPSHOT:
+                return sys.deleteSnapshot(c.name) ? 1 : 0;
+            case Recording_File_System.MOUNT_SNAPSHOT:
+                return unmount(sys.mountSnapshot(c.name));
+            case Recording_File_System.CLONE_SNAPSHOT:
+                return unmount(sys.cloneSnapshot(c.name));
+            case Recording_File_System.CHECK:
+                return sys.check(c.a != 0).problems();
+            default:
+                return -1;
+        }
+    }
+
+    // calls on a snapshot's file system are not in the trace, it is closed
+    // again at once so the snapshot can be deleted
+    private static int unmount(File_System snap){
+        if (snap == null){
+            return 0;
+        }
+        try{
+            snap.closeDisk();
+        } catch (IOException e){
+            // nothing was written to it
+        }
+        return 1;
+    }
+
+    // a listing as the trace has it, a stream taking as many names as the
+    // recording did
+    private int list(Call c){
+        String list = null;
+        Stream<String> names = null;
+        switch (c.a){
+            case Recording_File_System.LIST:
+                list = sys.directory();
+                break;
+            case Recording_File_System.LIST_PREFIX:
+                list = sys.directory(c.prefix);
+                break;
+            case Recording_File_System.LIST_RANGE:
+                list = sys.directory(c.name, c.to);
+                break;
+            case Recording_File_System.NAMES:
+                names = sys.names();
+                break;
+            case Recording_File_System.NAMES_PREFIX:
+                names = sys.names(c.prefix);
+                break;
+            case Recording_File_System.NAMES_RANGE:
+                names = sys.names(c.name, c.to);
+                break;
+            case Recording_File_System.PAGE:{
+                Dir_Page p = sys.directory(c.name, c.to, c.prefix, c.token, c.b);
+                return p == null ? -1 : p.names.size();
+            }
+            default:
+                return -1;
+        }
+        if (names != null){
+            try{
+                return (int)names.limit(Math.max(c.result, 0)).count();
+            } finally{
+                names.close();
+            }
+        }
+        return list == null ? -1 : list.length();
+    }
+
+    // handle the replay got for a recorded one, the same number when it
+    // was not opened in the trace
+    private static int handle(HashMap<Integer, Integer> handles, int h){
+        Integer r = handles.get(h);
+        return r != null ? r : h;
+    }
+
+    // throughput, then a line per operation with latencies in microseconds
+    public String report(){
+        StringBuilder sb = new StringBuilder();
+        String nl = System.lineSeparator();
+        double secs = elapsed / 1e9;
+        sb.append(String.format("%d calls in %.3f s, %.0f calls/s, %s", calls, secs,
+                secs > 0 ? calls / secs : 0, openLoop ? "open loop" : "closed loop")).append(nl);
+        if (differed > 0){
+            sb.append(differed).append(" results differ from the trace").append(nl);
+        }
+        sb.append("op count mean");
+        for (double p : PERCENTILES){
+            sb.append(" p").append(p == Math.rint(p) ? Long.toString((long)p) : Double.toString(p));
+        }
+        sb.append(" max (us)");
+        for (int i = 0; i < latency.length; i++){
+            Fs_Stats.Histogram h = latency[i];
+            long n = h.count();
+            if (n == 0){
+                continue;
+            }
+            sb.append(nl).append(Recording_File_System.OPS[i]).append(' ').append(n)
+                    .append(String.format(" %.1f", h.mean() / 1000.0));
+            for (double p : PERCENTILES){
+                sb.append(String.format(" %.1f", h.percentile(p) / 1000.0));
+            }
+            sb.append(String.format(" %.1f", h.percentile(100) / 1000.0));
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws IOException{
+        boolean open = false;
+        double rate = 0;
+        double speed = 1;
+        String image = null;
+        boolean skip = false;
+        int a = 0;
+        try{
+            while (a < args.length && args[a].startsWith("-")){
+                if (args[a].equals("-o"))
+                    open = true;
+                else if (args[a].equals("-r"))
+                    rate = Double.parseDouble(args[++a]);
+                else if (args[a].equals("-s"))
+                    speed = Double.parseDouble(args[++a]);
+                else if (args[a].equals("-i"))
+                    image = args[++a];
+                else if (args[a].equals("-x"))
+                    skip = true;
+                else
+                    throw new IllegalArgumentException(args[a]);
+                a++;
+            }
+            if (a != args.length - 1 || speed <= 0){
+                throw new IllegalArgumentException();
+            }
+        } catch (RuntimeException e){
+            System.err.println("usage: Trace_Replayer [-o] [-r rate] [-s speed] [-i image] [-x] trace");
+            return;
+        }
+
+        ArrayList<Call> trace = load(args[a]);
+        File_System sys = new File_System();
+        if (image != null && !sys.loadDisk(image)){
+            System.err.println("cannot load " + image);
+            return;
+        }
+
+        Trace_Replayer rp = new Trace_Replayer(sys);
+        rp.setOpenLoop(open);
+        rp.setRate(rate);
+        rp.setSpeed(speed);
+        rp.setSkipDisk(skip);
+        rp.replay(trace);
+        System.out.println(rp.report());
+        sys.closeDisk();
+    }
+}
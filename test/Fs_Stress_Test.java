@@ -0,0 +1,234 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+// THREADS threads create, open, write, seek, read, close, destroy and list
+// on one File_System at once, then the disk is saved, loaded again and
+// checked
+//
+// each thread has files of its own, whose contents it knows and checks as
+// it goes; every thread also creates and destroys a few shared names, and
+// opens, writes and reads a few common files that are never destroyed, as
+// destroy closes every handle on a file and a handle left behind could be
+// handed out again to another thread
+public class Fs_Stress_Test{
+    static final int THREADS = 8;
+    static final int OPS = 4000;            // per thread
+    static final int OWN = 6;               // files of each thread
+    static final int SHARED = 8;            // names every thread creates and destroys
+    static final int COMMON = 4;            // files every thread opens
+    static final int MAX_LEN = 8 * 1024;    // bytes, largest file
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    public void flat() throws Exception{
+        stress(new Disk_Geometry(16384, 256, 256, 128), false);
+    }
+
+    @Test
+    public void btree() throws Exception{
+        stress(new Disk_Geometry(16384, 1024, 256, 128, Disk_Geometry.FLAG_EXTENTS | Disk_Geometry.FLAG_BTREE), false);
+    }
+
+    @Test
+    public void journaled() throws Exception{
+        stress(new Disk_Geometry(16384, 256, 256, 128), true);
+    }
+
+    void stress(Disk_Geometry geo, boolean journal) throws Exception{
+        File_System fs = new File_System(geo);
+        String img = tmp.resolve("stress.img").toString();
+        if (journal){
+            fs.setJournal(true);
+            assertTrue(fs.saveDisk(img));
+        }
+        for (int i = 0; i < COMMON; i++){
+            assertTrue(fs.create("c" + i));
+        }
+
+        List<Map<String, byte[]>> models = new ArrayList<Map<String, byte[]>>();
+        ConcurrentLinkedQueue<Throwable> failed = new ConcurrentLinkedQueue<Throwable>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++){
+            Map<String, byte[]> model = new HashMap<String, byte[]>();
+            models.add(model);
+            int id = t;
+            Thread th = new Thread(() -> {
+                try{
+                    start.await();
+                    run(fs, id, model);
+                } catch (Throwable e){
+                    failed.add(e);
+                }
+            });
+            threads.add(th);
+            th.start();
+        }
+        start.countDown();
+        for (Thread th : threads){
+            th.join();
+        }
+        for (Throwable e : failed){
+            throw new AssertionError(e);
+        }
+
+        Fs_Check live = fs.check(false);
+        assertTrue(live.clean(), live.toString());
+        verify(fs, models);
+
+        assertTrue(fs.saveDisk(img));
+        File_System loaded = new File_System();
+        assertTrue(loaded.loadDisk(img));
+        Fs_Check report = loaded.check(false);
+        assertTrue(report.clean(), report.toString());
+        assertEquals(names(fs), names(loaded));
+        verify(loaded, models);
+        fs.closeDisk();
+        loaded.closeDisk();
+    }
+
+    // one thread's calls, its own files checked against model
+    void run(File_System fs, int id, Map<String, byte[]> model){
+        Random r = new Random(id * 7919L + 1);
+        int[] handles = new int[OWN];
+        Arrays.fill(handles, -1);
+        byte[] buf = new byte[MAX_LEN];
+
+        for (int op = 0; op < OPS; op++){
+            int k = r.nextInt(OWN);
+            String own = own(id, k);
+            String shared = "s" + r.nextInt(SHARED);
+            switch (r.nextInt(10)){
+            case 0:
+                // create, or destroy and start over
+                if (model.containsKey(own)){
+                    if (handles[k] >= 0){
+                        assertTrue(fs.close(handles[k]));
+                        handles[k] = -1;
+                    }
+                    assertTrue(fs.destroy(own), own);
+                    model.remove(own);
+                }
+                assertTrue(fs.create(own), own);
+                model.put(own, new byte[0]);
+                break;
+            case 1:
+                if (model.containsKey(own) && handles[k] < 0){
+                    handles[k] = fs.open(own);
+                    assertTrue(handles[k] > 0, own);
+                }
+                break;
+            case 2:
+            case 3:
+                // write somewhere in or just past the end
+                if (handles[k] >= 0){
+                    byte[] old = model.get(own);
+                    int pos = r.nextInt(Math.min(MAX_LEN - 1, old.length + 512));
+                    int n = 1 + r.nextInt(Math.min(MAX_LEN - pos, 1500));
+                    byte[] d = new byte[n];
+                    r.nextBytes(d);
+                    assertTrue(fs.lseek(handles[k], pos));
+                    assertEquals(n, fs.write(handles[k], d, n), own);
+                    byte[] now = Arrays.copyOf(old, Math.max(old.length, pos + n));
+                    System.arraycopy(d, 0, now, pos, n);
+                    model.put(own, now);
+                }
+                break;
+            case 4:
+                // read the whole file back
+                if (handles[k] >= 0){
+                    byte[] want = model.get(own);
+                    assertTrue(fs.lseek(handles[k], 0));
+                    int got = fs.read(handles[k], buf, buf.length);
+                    assertEquals(want.length, Math.max(0, got), own);
+                    assertArrayEquals(want, Arrays.copyOf(buf, want.length), own);
+                }
+                break;
+            case 5:
+                if (handles[k] >= 0){
+                    assertTrue(fs.close(handles[k]));
+                    handles[k] = -1;
+                }
+                break;
+            case 6:
+                // every name listed is one that can exist
+                for (String n : fs.directory().split(" ")){
+                    assertTrue(n.isEmpty() || n.length() == 2 && "sc".indexOf(n.charAt(0)) >= 0
+                            || Character.isUpperCase(n.charAt(0)), n);
+                }
+                assertTrue(fs.names().allMatch(n -> !n.isEmpty()));
+                break;
+            case 7:
+                fs.create(shared);
+                break;
+            case 8:
+                fs.destroy(shared);
+                break;
+            default:
+                // a short write and read on a common file
+                String common = "c" + r.nextInt(COMMON);
+                int h = fs.open(common);
+                assertTrue(h > 0, common);
+                byte[] d = new byte[1 + r.nextInt(300)];
+                r.nextBytes(d);
+                assertTrue(fs.lseek(h, r.nextInt(1024)));
+                assertEquals(d.length, fs.write(h, d, d.length), common);
+                assertTrue(fs.lseek(h, 0));
+                assertTrue(fs.read(h, buf, 1024) > 0, common);
+                assertTrue(fs.close(h));
+                break;
+            }
+        }
+        for (int k = 0; k < OWN; k++){
+            if (handles[k] >= 0){
+                assertTrue(fs.close(handles[k]));
+            }
+        }
+    }
+
+    // names up to 2 chars: a capital letter per thread and a digit
+    static String own(int id, int k){
+        return "" + (char)('A' + id) + k;
+    }
+
+    // every file of every thread holds what it wrote last
+    void verify(File_System fs, List<Map<String, byte[]>> models){
+        byte[] buf = new byte[MAX_LEN + 1];
+        for (Map<String, byte[]> model : models){
+            for (Map.Entry<String, byte[]> e : model.entrySet()){
+                int h = fs.open(e.getKey());
+                assertTrue(h > 0, e.getKey());
+                int got = fs.read(h, buf, buf.length);
+                assertEquals(e.getValue().length, Math.max(0, got), e.getKey());
+                assertArrayEquals(e.getValue(), Arrays.copyOf(buf, e.getValue().length), e.getKey());
+                assertTrue(fs.close(h));
+            }
+        }
+        TreeSet<String> listed = names(fs);
+        for (Map<String, byte[]> model : models){
+            assertTrue(listed.containsAll(model.keySet()), listed.toString());
+        }
+    }
+
+    static TreeSet<String> names(File_System fs){
+        return fs.names().collect(Collectors.toCollection(TreeSet::new));
+    }
+}
@@ -0,0 +1,112 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+// every public operation of File_System is recorded, and a trace of all of
+// them replays with the results it recorded
+public class Recording_File_System_Test{
+    @TempDir
+    Path tmp;
+
+    // a public method added to File_System must be recorded here too, or
+    // listed in NOT_RECORDED
+    @Test
+    public void everyOperationOverridden(){
+        List<String> missing = new ArrayList<String>();
+        TreeSet<String> names = new TreeSet<String>();
+        for (Method m : File_System.class.getDeclaredMethods()){
+            if (!Modifier.isPublic(m.getModifiers()) || Modifier.isStatic(m.getModifiers()) || m.isSynthetic()){
+                continue;
+            }
+            names.add(m.getName());
+            if (Recording_File_System.NOT_RECORDED.contains(m.getName())){
+                continue;
+            }
+            try{
+                Recording_File_System.class.getDeclaredMethod(m.getName(), m.getParameterTypes());
+            } catch (NoSuchMethodException e){
+                missing.add(m.toString());
+            }
+        }
+        assertTrue(missing.isEmpty(), "not recorded: " + missing);
+        for (String n : Recording_File_System.NOT_RECORDED){
+            assertTrue(names.contains(n), n + " is no public method of File_System");
+        }
+    }
+
+    @Test
+    public void replaysEveryOperation() throws Exception{
+        String trace = tmp.resolve("run.trace").toString();
+        String img = tmp.resolve("run.img").toString();
+        Disk_Geometry geo = new Disk_Geometry(1024, 512, 32, 8).withSnapshots(64);
+        Recording_File_System fs = new Recording_File_System(geo, trace);
+        byte[] b = new byte[1000];
+
+        fs.format(geo);
+        fs.init();
+        assertTrue(fs.create("a"));
+        assertTrue(fs.create("b"));
+        int h = fs.open("a");
+        assertEquals(1000, fs.write(h, b, b.length));
+        assertEquals(100, fs.write(h, b, 0, 100));
+        assertEquals(300, fs.writev(h, new ByteBuffer[]{ByteBuffer.allocate(100), ByteBuffer.allocate(200)}));
+        assertEquals(10, fs.write(h, ByteBuffer.allocate(10)));
+        assertTrue(fs.lseek(h, 0));
+        assertEquals(1000, fs.read(h, b, b.length));
+        assertEquals(100, fs.read(h, b, 0, 100));
+        assertEquals(300, fs.readv(h, new ByteBuffer[]{ByteBuffer.allocate(100), ByteBuffer.allocate(200)}));
+        assertEquals(10, fs.read(h, ByteBuffer.allocate(10)));
+        assertTrue(fs.punchHole(h, 0, 512));
+        assertTrue(fs.close(h));
+        assertEquals("a b", fs.directory());
+        assertEquals("a", fs.directory("a"));
+        assertEquals("a", fs.directory("a", "b"));
+        assertEquals(2, fs.names().count());
+        assertEquals(1, fs.names("b").count());
+        assertEquals(1, fs.names("b", null).count());
+        assertEquals(2, fs.directory(null, null, null, null, 10).names.size());
+        fs.defragment();
+        assertTrue(fs.snapshot("s"));
+        File_System snap = fs.mountSnapshot("s");
+        snap.closeDisk();
+        File_System clone = fs.cloneSnapshot("s");
+        clone.closeDisk();
+        assertTrue(fs.deleteSnapshot("s"));
+        assertTrue(fs.check(false).clean());
+        assertTrue(fs.saveDisk(img));
+        assertTrue(fs.sync(img, false));
+        assertTrue(fs.loadDisk(img));
+        assertTrue(fs.destroy("b"));
+        fs.closeDisk();
+
+        // the calls above in order, readv, writev and the ByteBuffer calls
+        // recorded as read and write, names and pages as directory
+        List<String> want = List.of("format", "init", "create", "create", "open",
+                "write", "write", "write", "write", "lseek", "read", "read", "read", "read",
+                "punchHole", "close", "directory", "directory", "directory", "directory",
+                "directory", "directory", "directory", "defragment", "snapshot", "mountSnapshot",
+                "cloneSnapshot", "deleteSnapshot", "check", "saveDisk", "sync", "loadDisk", "destroy");
+        ArrayList<Trace_Replayer.Call> calls = Trace_Replayer.load(trace);
+        List<String> ops = new ArrayList<String>();
+        for (Trace_Replayer.Call c : calls){
+            ops.add(Recording_File_System.OPS[c.op]);
+        }
+        assertEquals(want, ops);
+        assertEquals(new TreeSet<String>(List.of(Recording_File_System.OPS)), new TreeSet<String>(ops));
+
+        Trace_Replayer rp = new Trace_Replayer(new File_System(geo));
+        rp.replay(calls);
+        assertFalse(rp.report().contains("differ"), rp.report());
+    }
+}